@@ -0,0 +1,109 @@
+package com.github.pms1.jdbctracing.api;
+
+/**
+ * A {@link TracingCallback} that reports primitive results by boxing them and
+ * calling {@link #exitReturn(Object, Object, int)}. Subclasses that care about
+ * the allocation should override the primitive variants.
+ *
+ * The timed exit variants drop the time and call the untimed ones, subclasses
+ * interested in the time override them.
+ *
+ * @author pms1
+ */
+public abstract class AbstractTracingCallback implements TracingCallback {
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		exitReturn(Boolean.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		exitReturn(Byte.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		exitReturn(Character.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		exitReturn(Short.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		exitReturn(Integer.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		exitReturn(Long.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		exitReturn(Float.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		exitReturn(Double.valueOf(result), instance, method);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		exitReturn(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		exitReturnBoolean(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		exitReturnByte(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		exitReturnChar(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		exitReturnShort(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		exitReturnInt(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		exitReturnLong(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		exitReturnFloat(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		exitReturnDouble(result, instance, method);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		exitReturn(instance, method);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		exitException(e, instance, method);
+	}
+}
@@ -0,0 +1,25 @@
+package com.github.pms1.jdbctracing.api;
+
+/**
+ * The per thread depth of instrumented method calls, maintained by the
+ * instrumented code itself so nested calls can be skipped before any
+ * callback related work is done. The slot is a one element array so it can be
+ * updated without another thread local lookup.
+ *
+ * @author pms1
+ */
+public final class CallDepth {
+	private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private CallDepth() {
+	}
+
+	public static int[] get() {
+		return depth.get();
+	}
+}
@@ -0,0 +1,169 @@
+package com.github.pms1.jdbctracing.api;
+
+/**
+ * A {@link TracingCallback} that passes every event to several callbacks. The
+ * callbacks are kept in an array fixed at construction, so dispatching does
+ * neither allocate nor synchronize.
+ *
+ * @author pms1
+ */
+public class CompositeTracingCallback implements TracingCallback {
+	private final TracingCallback[] callbacks;
+
+	public CompositeTracingCallback(TracingCallback... callbacks) {
+		this.callbacks = callbacks.clone();
+		for (TracingCallback c : this.callbacks)
+			if (c == null)
+				throw new NullPointerException();
+	}
+
+	@Override
+	public void initEnter(Object[] args, int method) {
+		for (TracingCallback c : callbacks)
+			c.initEnter(args, method);
+	}
+
+	@Override
+	public void initExitException(Throwable e, int method) {
+		for (TracingCallback c : callbacks)
+			c.initExitException(e, method);
+	}
+
+	@Override
+	public void enter(Object[] args, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.enter(args, instance, method);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturn(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnBoolean(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnByte(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnChar(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnShort(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnInt(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnLong(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnFloat(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnDouble(result, instance, method);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitReturn(instance, method);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method) {
+		for (TracingCallback c : callbacks)
+			c.exitException(e, instance, method);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturn(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnBoolean(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnByte(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnChar(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnShort(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnInt(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnLong(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnFloat(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturnDouble(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitReturn(instance, method, nanos);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		for (TracingCallback c : callbacks)
+			c.exitException(e, instance, method, nanos);
+	}
+}
@@ -6,9 +6,10 @@ import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.Statement;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.sql.PooledConnection;
 import javax.sql.XAConnection;
@@ -23,108 +24,248 @@ public class FilterTracingCallback implements TracingCallback {
 		this.next = next;
 	}
 
-	private static ThreadLocal<AtomicInteger> t = new ThreadLocal<AtomicInteger>() {
-		@Override
-		protected AtomicInteger initialValue() {
-			return new AtomicInteger();
+	/**
+	 * The state of a thread: the depth of the instrumented calls, the
+	 * constructors that were entered but did not call their next constructor
+	 * yet and a stack of the targets of the proxy calls, kept in parallel
+	 * arrays so pushing does not allocate. A target method of -1 marks a proxy
+	 * call that is not reported.
+	 *
+	 * Calls are nested in the pending constructors as well, so the chain of
+	 * constructors of an object is reported as one call. If a next constructor
+	 * fails, the instrumented code cannot call initExitException for the
+	 * constructors calling it. The exception thrown by a constructor or passed
+	 * to initExitException therefore dooms the pending constructors at the
+	 * same depth, which are dropped by the next callback unless it is their
+	 * initExitException.
+	 */
+	private static final class State {
+		int depth;
+
+		int[] pending = new int[4];
+		int pendingSize;
+		boolean doomed;
+
+		int size;
+		Object[] instances = new Object[4];
+		int[] methods = new int[4];
+		boolean[] isVoid = new boolean[4];
+
+		void push(Object instance, int method, boolean isVoid) {
+			if (size == methods.length) {
+				instances = Arrays.copyOf(instances, size * 2);
+				methods = Arrays.copyOf(methods, size * 2);
+				this.isVoid = Arrays.copyOf(this.isVoid, size * 2);
+			}
+			instances[size] = instance;
+			methods[size] = method;
+			this.isVoid[size] = isVoid;
+			++size;
 		}
-	};
 
-	private class Target {
-		private final Object instance;
-		private final String clazz;
-		private final String method;
-		private final String signature;
+		/**
+		 * Removes the top target, its values stay readable at the returned
+		 * index until the next push.
+		 */
+		int pop() {
+			--size;
+			return size;
+		}
 
-		Target(Object instance, String clazz, String method, String signature) {
-			this.instance = instance;
-			this.clazz = clazz;
-			this.method = method;
-			this.signature = signature;
+		Object popInstance(int idx) {
+			Object instance = instances[idx];
+			instances[idx] = null;
+			return instance;
+		}
+
+		/**
+		 * Drops the doomed pending constructors.
+		 */
+		void dropDoomed() {
+			if (doomed) {
+				while (pendingSize != 0 && pending[pendingSize - 1] == depth)
+					--pendingSize;
+				doomed = false;
+			}
+		}
+
+		/**
+		 * Enters a call and returns its level. The enter call of a constructor
+		 * takes over the level of its initEnter call.
+		 */
+		int enter(int method) {
+			dropDoomed();
+			if (pendingSize != 0 && pending[pendingSize - 1] == depth && MethodTable.isConstructor(method))
+				--pendingSize;
+			return depth++ + pendingSize;
+		}
+
+		/**
+		 * Exits a call and returns its level. Constructors that were pending
+		 * in the call are dropped, their next constructor failed.
+		 */
+		int exit() {
+			dropDoomed();
+			--depth;
+			while (pendingSize != 0 && pending[pendingSize - 1] > depth)
+				--pendingSize;
+			return depth + pendingSize;
+		}
+
+		int initEnter() {
+			dropDoomed();
+			if (pendingSize == pending.length)
+				pending = Arrays.copyOf(pending, pendingSize * 2);
+			pending[pendingSize] = depth;
+			return depth + pendingSize++;
+		}
+
+		int initExitException() {
+			if (pendingSize != 0 && pending[pendingSize - 1] == depth)
+				--pendingSize;
+			doomed = true;
+			return depth + pendingSize;
 		}
 	}
 
-	private static ThreadLocal<LinkedList<Target>> s = new ThreadLocal<LinkedList<Target>>() {
+	private static final ThreadLocal<State> state = new ThreadLocal<State>() {
 		@Override
-		protected LinkedList<Target> initialValue() {
-			return new LinkedList<Target>();
+		protected State initialValue() {
+			return new State();
 		}
 	};
 
-	private static boolean isInvoke(Object instance, String method, String signature) {
-		return instance instanceof InvocationHandler && method.equals("invoke") && signature
-				.equals("(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
+	private static final int invoke = MethodTable.lookup("java/lang/reflect/InvocationHandler", "invoke",
+			"(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
+
+	/**
+	 * Whether the call is {@code InvocationHandler.invoke}. The method table
+	 * of an instrumented artifact assigns its own id to it when it registers
+	 * after {@link #invoke} was looked up, so other ids are compared by name.
+	 */
+	private static boolean isInvoke(Object instance, int method) {
+		return instance instanceof InvocationHandler && (method == invoke
+				|| MethodTable.getName(method).equals(MethodTable.getName(invoke))
+						&& MethodTable.getClassName(method).equals(MethodTable.getClassName(invoke))
+						&& MethodTable.getSignature(method).equals(MethodTable.getSignature(invoke)));
 	}
 
 	@Override
-	public void enter(Object[] args, Object instance, String clazz, String method, String signature) {
+	public void enter(Object[] args, Object instance, int method) {
+		State st = state.get();
+		int level = st.enter(method);
 
-		if (method.equals("<init>")) {
-			t.get().decrementAndGet();
+		if (debug)
+			System.err.println("RAW ENTER " + level + " " + MethodTable.toString(method));
+
+		if (level == 0) {
+			try {
+				enterTop(st, args, instance, method);
+			} catch (RuntimeException | Error e) {
+				// the instrumented code does not report the exit of a call
+				// whose enter failed
+				st.exit();
+				throw e;
+			}
 		}
 
-		int level = t.get().getAndIncrement();
+	}
 
-		if (debug)
-			System.err.println("RAW ENTER " + level + " " + clazz + " " + method + " " + signature);
+	/**
+	 * Reports a call that is not nested, resolving proxy calls.
+	 */
+	private void enterTop(State st, Object[] args, Object instance, int method) {
+		boolean proxied = isInvoke(instance, method);
+		if (proxied) {
+			if (debug)
+				System.err.println("RAW INVOKE " + args[1]);
+
+			Method m = (Method) args[1];
+			Class<?> c = m.getDeclaringClass();
+			if (c == Connection.class) {
+
+			} else if (c == XAConnection.class || c == PooledConnection.class) {
+				if (args[0] instanceof XAConnection)
+					c = XAConnection.class;
+				else if (args[0] instanceof PooledConnection)
+					c = PooledConnection.class;
+				else
+					throw new Error();
+			} else if (c == PreparedStatement.class || c == CallableStatement.class || c == Statement.class) {
+				if (args[0] instanceof CallableStatement)
+					c = CallableStatement.class;
+				else if (args[0] instanceof PreparedStatement)
+					c = PreparedStatement.class;
+				else if (args[0] instanceof Statement)
+					c = Statement.class;
+				else
+					throw new Error();
+			} else if (c == Object.class) {
+				st.push(null, -1, false);
+				return;
+			} else {
+				throw new Error("c=" + c);
+			}
 
-		if (level == 0) {
-			if (isInvoke(instance, method, signature)) {
-				if (debug)
-					System.err.println("RAW INVOKE " + args[1]);
-
-				Method m = (Method) args[1];
-				Class<?> c = m.getDeclaringClass();
-				if (c == Connection.class) {
-
-				} else if (c == XAConnection.class || c == PooledConnection.class) {
-					if (args[0] instanceof XAConnection)
-						c = XAConnection.class;
-					else if (args[0] instanceof PooledConnection)
-						c = PooledConnection.class;
-					else
-						throw new Error();
-				} else if (c == PreparedStatement.class || c == CallableStatement.class || c == Statement.class) {
-					if (args[0] instanceof CallableStatement)
-						c = CallableStatement.class;
-					else if (args[0] instanceof PreparedStatement)
-						c = PreparedStatement.class;
-					else if (args[0] instanceof Statement)
-						c = Statement.class;
-					else
-						throw new Error();
-				} else if (c == Object.class) {
-					s.get().addLast(null);
-					return;
-				} else {
-					throw new Error("c=" + c);
-				}
+			Resolved r = resolved.get(c).get(m);
+			if (r == null)
+				r = resolve(c, m);
 
-				Method m1 = m;
-				for (;;) {
-					try {
-						m1 = c.getMethod(m.getName(), m.getParameterTypes());
-						break;
-					} catch (ReflectiveOperationException e) {
-						c = c.getSuperclass();
-					}
-				}
+			instance = args[0];
+			method = r.method;
+			args = (Object[]) args[2];
 
-				instance = args[0];
-				clazz = m1.getDeclaringClass().getName();
-				method = m1.getName();
-				signature = createSignature(m1);
-				args = (Object[]) args[2];
+			st.push(instance, method, r.isVoid);
+		}
 
-				s.get().addLast(new Target(instance, clazz, method, signature));
-			}
+		try {
+			next.enter(args, instance, method);
+		} catch (RuntimeException | Error e) {
+			if (proxied)
+				st.popInstance(st.pop());
+			throw e;
+		}
+	}
 
-			if (method.equals("parseTernaryValue"))
-				new Throwable().printStackTrace();
+	/**
+	 * A proxied method as reported to the next callback.
+	 */
+	static final class Resolved {
+		final int method;
+		final boolean isVoid;
+
+		Resolved(int method, boolean isVoid) {
+			this.method = method;
+			this.isVoid = isVoid;
+		}
+	}
+
+	/**
+	 * The resolved methods per JDBC interface of the proxy, so steady state
+	 * proxy calls neither reflect nor build descriptors.
+	 */
+	static final ClassValue<ConcurrentMap<Method, Resolved>> resolved = new ClassValue<ConcurrentMap<Method, Resolved>>() {
+		@Override
+		protected ConcurrentMap<Method, Resolved> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<Method, Resolved>();
+		}
+	};
 
-			next.enter(args, instance, clazz, method, signature);
+	private static Resolved resolve(Class<?> iface, Method m) {
+		Method m1 = m;
+		for (Class<?> c = iface;;) {
+			try {
+				m1 = c.getMethod(m.getName(), m.getParameterTypes());
+				break;
+			} catch (ReflectiveOperationException e) {
+				c = c.getSuperclass();
+			}
 		}
 
+		Resolved r = new Resolved(MethodTable.lookup(m1.getDeclaringClass().getName().replace('.', '/'),
+				m1.getName(), createSignature(m1)), m1.getReturnType() == void.class);
+		Resolved old = resolved.get(iface).putIfAbsent(m, r);
+		return old != null ? old : r;
 	}
 
 	private static void append(StringBuilder sb, Class<?> c) {
@@ -140,13 +281,17 @@ public class FilterTracingCallback implements TracingCallback {
 			sb.append("F");
 		else if (c == boolean.class)
 			sb.append("Z");
-		else if (c.isPrimitive())
-			throw new Error();
+		else if (c == byte.class)
+			sb.append("B");
+		else if (c == char.class)
+			sb.append("C");
+		else if (c == short.class)
+			sb.append("S");
 		else if (c.isArray()) {
 			sb.append("[");
 			append(sb, c.getComponentType());
 		} else
-			sb.append("L" + c.getCanonicalName().replace('.', '/') + ";");
+			sb.append("L").append(c.getName().replace('.', '/')).append(";");
 	}
 
 	private static String createSignature(Method m) {
@@ -159,91 +304,233 @@ public class FilterTracingCallback implements TracingCallback {
 		return sb.toString();
 	}
 
+	/**
+	 * Passed as time by the untimed exit variants.
+	 */
+	private static final long UNTIMED = -1;
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+		exitReturn(result, instance, method, UNTIMED);
+	}
+
 	@Override
-	public void exitReturn(Object result, Object instance, String clazz, String method, String signature) {
-		int level = t.get().decrementAndGet();
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		State st = state.get();
+		int level = st.exit();
 		if (debug)
-			System.err.println("RAW EXIT-R-R " + level + " " + clazz + " " + method + " " + signature);
+			System.err.println("RAW EXIT-R-R " + level + " " + MethodTable.toString(method));
 		if (level == 0) {
-			if (isInvoke(instance, method, signature)) {
-				Target pop = s.get().removeLast();
-				if (pop == null)
+			if (isInvoke(instance, method)) {
+				int pop = st.pop();
+				instance = st.popInstance(pop);
+				method = st.methods[pop];
+				if (method == -1)
 					return;
-				instance = pop.instance;
-				clazz = pop.clazz;
-				method = pop.method;
-				signature = pop.signature;
 
 				// if the called method returns void, we have to call the
 				// exitReturn method without the
 				// result parameter
-				if (signature.endsWith("V")) {
-					next.exitReturn(instance, clazz, method, signature);
+				if (st.isVoid[pop]) {
+					if (nanos == UNTIMED)
+						next.exitReturn(instance, method);
+					else
+						next.exitReturn(instance, method, nanos);
 					return;
 				}
 			}
-			next.exitReturn(result, instance, clazz, method, signature);
+			if (nanos == UNTIMED)
+				next.exitReturn(result, instance, method);
+			else
+				next.exitReturn(result, instance, method, nanos);
 		}
 	}
 
+	/**
+	 * Proxies return objects, so primitive results are always from a direct
+	 * call.
+	 */
+	private boolean exitPrimitive(int method) {
+		int level = state.get().exit();
+		if (debug)
+			System.err.println("RAW EXIT-R-P " + level + " " + MethodTable.toString(method));
+		return level == 0;
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnBoolean(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnBoolean(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnByte(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnByte(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnChar(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnChar(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnShort(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnShort(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnInt(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnInt(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnLong(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnLong(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnFloat(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnFloat(result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		if (exitPrimitive(method))
+			next.exitReturnDouble(result, instance, method);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		if (exitPrimitive(method))
+			next.exitReturnDouble(result, instance, method, nanos);
+	}
+
 	@Override
-	public void exitReturn(Object instance, String clazz, String method, String signature) {
-		int level = t.get().decrementAndGet();
+	public void exitReturn(Object instance, int method) {
+		exitReturn(instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		State st = state.get();
+		int level = st.exit();
 		if (debug)
-			System.err.println("RAW EXIT-R-V " + level + " " + clazz + " " + method + " " + signature);
+			System.err.println("RAW EXIT-R-V " + level + " " + MethodTable.toString(method));
 		if (level == 0) {
-			if (isInvoke(instance, method, signature)) {
-				Target pop = s.get().removeLast();
-				if (pop == null)
+			if (isInvoke(instance, method)) {
+				int pop = st.pop();
+				instance = st.popInstance(pop);
+				method = st.methods[pop];
+				if (method == -1)
 					return;
-				instance = pop.instance;
-				clazz = pop.clazz;
-				method = pop.method;
-				signature = pop.signature;
 			}
-			next.exitReturn(instance, clazz, method, signature);
+			if (nanos == UNTIMED)
+				next.exitReturn(instance, method);
+			else
+				next.exitReturn(instance, method, nanos);
 		}
 	}
 
 	@Override
-	public void exitException(Throwable e, Object instance, String clazz, String method, String signature) {
-		int level = t.get().decrementAndGet();
+	public void exitException(Throwable e, Object instance, int method) {
+		exitException(e, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		State st = state.get();
+		int level = st.exit();
+		// a failed constructor fails the constructors calling it
+		if (MethodTable.isConstructor(method))
+			st.doomed = true;
 		if (debug)
-			System.err.println("RAW EXIT-E " + level + " " + clazz + " " + method + " " + signature);
+			System.err.println("RAW EXIT-E " + level + " " + MethodTable.toString(method));
 		if (level == 0) {
-			if (isInvoke(instance, method, signature)) {
-				Target pop = s.get().removeLast();
-				if (pop == null)
+			if (isInvoke(instance, method)) {
+				int pop = st.pop();
+				instance = st.popInstance(pop);
+				method = st.methods[pop];
+				if (method == -1)
 					return;
-				instance = pop.instance;
-				clazz = pop.clazz;
-				method = pop.method;
-				signature = pop.signature;
 			}
-			next.exitException(e, instance, clazz, method, signature);
+			if (nanos == UNTIMED)
+				next.exitException(e, instance, method);
+			else
+				next.exitException(e, instance, method, nanos);
 		}
 	}
 
+	/**
+	 * Calls up to the enter call of the constructor are nested in it.
+	 */
 	@Override
-	public void initEnter(Object[] args, String clazz, String method, String signature) {
-		int level = t.get().getAndIncrement();
+	public void initEnter(Object[] args, int method) {
+		int level = state.get().initEnter();
 
 		if (debug)
-			System.err.println("RAW INIT " + level + " " + clazz + " " + method + " " + signature);
+			System.err.println("RAW INIT " + level + " " + MethodTable.toString(method));
 
 		if (level == 0)
-			next.initEnter(args, clazz, method, signature);
+			next.initEnter(args, method);
 	}
 
 	@Override
-	public void initExitException(Throwable e, String clazz, String method, String signature) {
-		int level = t.get().decrementAndGet();
+	public void initExitException(Throwable e, int method) {
+		int level = state.get().initExitException();
 
 		if (debug)
-			System.err.println("RAW INIT EXCEPTION " + level + " " + clazz + " " + method + " " + signature);
+			System.err.println("RAW INIT EXCEPTION " + level + " " + MethodTable.toString(method));
 
 		if (level == 0)
-			next.initExitException(e, clazz, method, signature);
+			next.initExitException(e, method);
 
 	}
 }
@@ -0,0 +1,201 @@
+package com.github.pms1.jdbctracing.api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the method ids passed to {@link TracingCallback} to the class, name and
+ * signature of the traced method.
+ *
+ * Each instrumented artifact contains a generated table class in the
+ * {@value #PACKAGE} package with a {@value #TABLE_RESOURCE_SUFFIX} resource
+ * listing its instrumented methods, one per line. When the table class is
+ * initialized it registers its methods by {@link #register(Class)}, which
+ * assigns them a range of ids that is stored in its {@value #BASE} field. The
+ * instrumented code passes that base plus the index of the method in the
+ * table, so separately instrumented artifacts do not share ids.
+ *
+ * Further ids are assigned on demand by
+ * {@link #lookup(String, String, String)}, e.g. for methods that are called
+ * through a proxy.
+ *
+ * @author pms1
+ */
+public final class MethodTable {
+	/**
+	 * The package of the generated table classes.
+	 */
+	public static final String PACKAGE = "com.github.pms1.jdbctracing.tables";
+
+	/**
+	 * The static field of a table class holding the first id of its methods.
+	 */
+	public static final String BASE = "base";
+
+	/**
+	 * Appended to the simple name of a table class for its list of methods.
+	 */
+	public static final String TABLE_RESOURCE_SUFFIX = ".txt";
+
+	private static final class Table {
+		final String[] classes;
+		final String[] names;
+		final String[] signatures;
+		final boolean[] constructors;
+
+		Table(String[] classes, String[] names, String[] signatures, boolean[] constructors) {
+			this.classes = classes;
+			this.names = names;
+			this.signatures = signatures;
+			this.constructors = constructors;
+		}
+	}
+
+	private static volatile Table table = new Table(new String[0], new String[0], new String[0], new boolean[0]);
+
+	private static final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	private MethodTable() {
+	}
+
+	private static String key(String clazz, String name, String signature) {
+		return clazz + " " + name + " " + signature;
+	}
+
+	/**
+	 * Appends methods to the table, each given as class, name and signature.
+	 * Must be called with the lock on {@link #ids} held.
+	 *
+	 * @return the id of the first method
+	 */
+	private static int register(List<String[]> methods) {
+		Table t = table;
+		int base = t.classes.length;
+		int size = base + methods.size();
+
+		String[] classes = Arrays.copyOf(t.classes, size);
+		String[] names = Arrays.copyOf(t.names, size);
+		String[] signatures = Arrays.copyOf(t.signatures, size);
+		boolean[] constructors = Arrays.copyOf(t.constructors, size);
+		for (int i = 0; i != methods.size(); ++i) {
+			String[] m = methods.get(i);
+			int id = base + i;
+			classes[id] = m[0];
+			names[id] = m[1];
+			signatures[id] = m[2];
+			constructors[id] = m[1].equals("<init>");
+
+			// the first registration wins for lookups of methods instrumented
+			// in more than one artifact
+			String key = key(m[0], m[1], m[2]);
+			if (!ids.containsKey(key))
+				ids.put(key, id);
+		}
+		table = new Table(classes, names, signatures, constructors);
+
+		return base;
+	}
+
+	/**
+	 * Registers the methods of the table class of an instrumented artifact.
+	 * Called by the static initializer of the table class.
+	 *
+	 * @return the id of the first method of the table
+	 */
+	public static int register(Class<?> tableClass) {
+		String resource = tableClass.getSimpleName() + TABLE_RESOURCE_SUFFIX;
+		InputStream is = tableClass.getResourceAsStream(resource);
+		if (is == null)
+			throw new Error("Method table " + resource + " of " + tableClass.getName() + " not found");
+
+		List<String[]> methods = new ArrayList<String[]>();
+		try {
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+				String line;
+				while ((line = r.readLine()) != null) {
+					if (line.isEmpty())
+						continue;
+					String[] parts = line.split(" ");
+					if (parts.length != 3)
+						throw new Error("Invalid method table entry: " + line);
+					methods.add(parts);
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new Error("Failed to read method table " + resource, e);
+		}
+
+		synchronized (ids) {
+			return register(methods);
+		}
+	}
+
+	/**
+	 * Returns the id of a method, assigning a new one if the method was not
+	 * instrumented.
+	 *
+	 * @param clazz
+	 *            the internal name of the class
+	 * @param name
+	 *            the name of the method
+	 * @param signature
+	 *            the descriptor of the method
+	 */
+	public static int lookup(String clazz, String name, String signature) {
+		synchronized (ids) {
+			Integer id = ids.get(key(clazz, name, signature));
+			if (id != null)
+				return id;
+			return register(Collections.singletonList(new String[] { clazz, name, signature }));
+		}
+	}
+
+	/**
+	 * The number of ids assigned so far. Ids are in the range
+	 * {@code 0..size()-1}.
+	 */
+	public static int size() {
+		return table.classes.length;
+	}
+
+	/**
+	 * The internal name of the class or interface declaring the method.
+	 */
+	public static String getClassName(int method) {
+		return table.classes[method];
+	}
+
+	public static String getName(int method) {
+		return table.names[method];
+	}
+
+	/**
+	 * Whether the method is a constructor.
+	 */
+	public static boolean isConstructor(int method) {
+		return table.constructors[method];
+	}
+
+	/**
+	 * The descriptor of the method.
+	 */
+	public static String getSignature(int method) {
+		return table.signatures[method];
+	}
+
+	public static String toString(int method) {
+		Table t = table;
+		return t.classes[method] + " " + t.names[method] + " " + t.signatures[method];
+	}
+}
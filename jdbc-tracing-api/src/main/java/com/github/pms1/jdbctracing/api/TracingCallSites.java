@@ -0,0 +1,124 @@
+package com.github.pms1.jdbctracing.api;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+
+/**
+ * Bootstrap of the {@code invokedynamic} call sites of code instrumented in
+ * the {@code INVOKEDYNAMIC} call site mode.
+ *
+ * The call sites are named after the {@link TracingCallback} method they
+ * invoke and have its type, with the callback itself bound to the site. The
+ * instrumented code reads the site {@value #ENABLED} of type {@code ()Z} once
+ * on entry and skips all callbacks of the invocation if it is {@code false},
+ * so callbacks always see matching enter and exit events.
+ *
+ * The {@value #ENABLED} sites are guarded by a {@link SwitchPoint} shared by
+ * all sites and linked to the constant {@code true} or {@code false}, which
+ * lets the JIT remove the tracing code completely while tracing is disabled.
+ * Switching invalidates the shared {@link SwitchPoint}, each site then relinks
+ * itself to the new state on its next invocation. So no list of the sites is
+ * kept, which would keep them and the classes using them reachable.
+ *
+ * The initial state is taken from the system property
+ * {@value #ENABLED_PROPERTY}, tracing is enabled if it is not set.
+ *
+ * @author pms1
+ */
+public final class TracingCallSites {
+	public static final String ENABLED = "enabled";
+
+	public static final String ENABLED_PROPERTY = "jdbctracing.enabled";
+
+	private static final MethodHandle TRUE = MethodHandles.constant(boolean.class, true);
+
+	private static final MethodHandle FALSE = MethodHandles.constant(boolean.class, false);
+
+	private static final MethodHandle RELINK;
+
+	static {
+		try {
+			RELINK = MethodHandles.lookup().findStatic(TracingCallSites.class, "relink",
+					MethodType.methodType(boolean.class, MutableCallSite.class));
+		} catch (ReflectiveOperationException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Whether tracing is enabled and the switch point that is invalidated when
+	 * this changes.
+	 */
+	private static final class State {
+		final boolean enabled;
+		final SwitchPoint switchPoint = new SwitchPoint();
+
+		State(boolean enabled) {
+			this.enabled = enabled;
+		}
+	}
+
+	private static final Object lock = new Object();
+
+	private static volatile State state = new State(
+			Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true")));
+
+	private TracingCallSites() {
+	}
+
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type)
+			throws ReflectiveOperationException {
+		if (!name.equals(ENABLED))
+			return new ConstantCallSite(MethodHandles.publicLookup().findVirtual(TracingCallback.class, name, type)
+					.bindTo(getCallback()));
+
+		MutableCallSite site = new MutableCallSite(type);
+		relink(site);
+		return site;
+	}
+
+	/**
+	 * Links a site to the current state, called when it is created and as
+	 * fallback once the switch point it was linked with is invalidated. If the
+	 * state is switched meanwhile, the site is guarded by an invalidated switch
+	 * point and relinked again on its next invocation.
+	 */
+	private static boolean relink(MutableCallSite site) {
+		State s = state;
+		site.setTarget(s.switchPoint.guardWithTest(s.enabled ? TRUE : FALSE, RELINK.bindTo(site)));
+		return s.enabled;
+	}
+
+	/**
+	 * The callback is set up by the instrumentation as static field of
+	 * {@link TracingCallback}, it does not exist in the source.
+	 */
+	private static TracingCallback getCallback() throws ReflectiveOperationException {
+		return (TracingCallback) TracingCallback.class.getField("instance").get(null);
+	}
+
+	public static boolean isEnabled() {
+		return state.enabled;
+	}
+
+	/**
+	 * Switches tracing on or off for all instrumented code. Invocations already
+	 * running when the state is changed finish in the state they were entered
+	 * with.
+	 */
+	public static void setEnabled(boolean enabled) {
+		synchronized (lock) {
+			State old = state;
+			if (enabled == old.enabled)
+				return;
+
+			state = new State(enabled);
+			SwitchPoint.invalidateAll(new SwitchPoint[] { old.switchPoint });
+		}
+	}
+}
@@ -1,43 +1,103 @@
 package com.github.pms1.jdbctracing.api;
 
+/**
+ * Receives the events of the instrumented methods. Methods are identified by
+ * an id, the class, name and signature of the method can be obtained from the
+ * {@link MethodTable}.
+ */
 public interface TracingCallback {
 	/**
 	 * Called when a constructor is entered <b>before</b> the next constructor
 	 * is called. The next constructor is either a superclass constructor or
 	 * another constructor of the same class. As the object is not initialized
 	 * at that point, the instance cannot be passed to this method. There will
-	 * be an additional call to
-	 * {@link #enter(Object[], Object, String, String, String)} after the next
-	 * constructor was invoked.
+	 * be an additional call to {@link #enter(Object[], Object, int)} after the
+	 * next constructor was invoked.
 	 */
-	void initEnter(Object[] args, String clazz, String method, String signature);
+	void initEnter(Object[] args, int method);
 
-	void initExitException(Throwable e, String clazz, String method, String signature);
+	/**
+	 * Called when the arguments of the next constructor call cannot be
+	 * evaluated due to an exception. Exceptions thrown by the next constructor
+	 * itself cannot be reported as the verifier does not allow to catch them.
+	 */
+	void initExitException(Throwable e, int method);
 
 	/**
 	 * Called when a method is called. For constructors this is called
 	 * <b>after</b> the super constructor is called.
 	 */
-	void enter(Object[] args, Object instance, String clazz, String method, String signature);
+	void enter(Object[] args, Object instance, int method);
 
 	/**
-	 * Called for non void methods before they are ended with a {@code return}
-	 * statement.
+	 * Called for methods returning an object before they are ended with a
+	 * {@code return} statement.
 	 */
-	void exitReturn(Object result, Object instance, String clazz, String method, String signature);
+	void exitReturn(Object result, Object instance, int method);
+
+	/**
+	 * Called for methods returning a {@code boolean} before they are ended
+	 * with a {@code return} statement. The primitive variants are called
+	 * instead of {@link #exitReturn(Object, Object, int)} so the result does
+	 * not have to be boxed.
+	 */
+	void exitReturnBoolean(boolean result, Object instance, int method);
+
+	void exitReturnByte(byte result, Object instance, int method);
+
+	void exitReturnChar(char result, Object instance, int method);
+
+	void exitReturnShort(short result, Object instance, int method);
+
+	void exitReturnInt(int result, Object instance, int method);
+
+	void exitReturnLong(long result, Object instance, int method);
+
+	void exitReturnFloat(float result, Object instance, int method);
+
+	void exitReturnDouble(double result, Object instance, int method);
 
 	/**
 	 * Called for void methods before they are ended with a {@code return}
 	 * statement.
 	 */
-	void exitReturn(Object instance, String clazz, String method, String signature);
+	void exitReturn(Object instance, int method);
 
 	/**
 	 * Called when a method is ended by an exception. This is called for methods
-	 * directly throwing the exception in addition to
-	 * {@link #exitThrow(Throwable, Object, String, String, String)}, but also
-	 * if the exception is thrown by a transitively called methods.
+	 * directly throwing the exception, but also if the exception is thrown by a
+	 * transitively called methods.
 	 */
-	void exitException(Throwable e, Object instance, String clazz, String method, String signature);
+	void exitException(Throwable e, Object instance, int method);
+
+	/**
+	 * Like {@link #exitReturn(Object, Object, int)}, called instead of it by
+	 * code instrumented with timing. {@code nanos} is the time the method took
+	 * as measured by {@link System#nanoTime()} in the instrumented code, from
+	 * after {@link #enter(Object[], Object, int)} returned to before this
+	 * method is called, so it does not include the time spent in the callback
+	 * itself. For constructors the time starts after the next constructor was
+	 * called.
+	 */
+	void exitReturn(Object result, Object instance, int method, long nanos);
+
+	void exitReturnBoolean(boolean result, Object instance, int method, long nanos);
+
+	void exitReturnByte(byte result, Object instance, int method, long nanos);
+
+	void exitReturnChar(char result, Object instance, int method, long nanos);
+
+	void exitReturnShort(short result, Object instance, int method, long nanos);
+
+	void exitReturnInt(int result, Object instance, int method, long nanos);
+
+	void exitReturnLong(long result, Object instance, int method, long nanos);
+
+	void exitReturnFloat(float result, Object instance, int method, long nanos);
+
+	void exitReturnDouble(double result, Object instance, int method, long nanos);
+
+	void exitReturn(Object instance, int method, long nanos);
 
+	void exitException(Throwable e, Object instance, int method, long nanos);
 }
@@ -0,0 +1,72 @@
+package com.github.pms1.jdbctracing.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import com.github.pms1.jdbctracing.tracers.DefaultTracingCallback;
+
+/**
+ * Creates the callback of the instrumented code when {@link TracingCallback}
+ * is initialized.
+ *
+ * The callbacks are taken from the system property {@value #PROPERTY}, a
+ * comma separated list of class names with public no-argument constructors,
+ * or {@code none} to not report anything. A list without any class name is
+ * the same as {@code none}. If the property is not set, all
+ * callbacks registered for {@link ServiceLoader} are used. If there are none,
+ * {@link DefaultTracingCallback} is used.
+ *
+ * Configured callbacks receive the events as filtered by
+ * {@link FilterTracingCallback}. Several callbacks are combined by a
+ * {@link CompositeTracingCallback}, so the filtering is only done once.
+ *
+ * @author pms1
+ */
+public final class TracingCallbacks {
+	public static final String PROPERTY = "jdbctracing.callback";
+
+	private TracingCallbacks() {
+	}
+
+	public static TracingCallback create() {
+		ClassLoader classLoader = TracingCallback.class.getClassLoader();
+
+		List<TracingCallback> callbacks = new ArrayList<TracingCallback>();
+
+		String property = System.getProperty(PROPERTY);
+		if (property != null) {
+			if (property.trim().equals("none"))
+				return new CompositeTracingCallback();
+
+			for (String name : property.split(",")) {
+				name = name.trim();
+				if (name.isEmpty())
+					continue;
+				try {
+					Class<? extends TracingCallback> c = Class.forName(name, true, classLoader)
+							.asSubclass(TracingCallback.class);
+					callbacks.add(c.newInstance());
+				} catch (ReflectiveOperationException | ClassCastException e) {
+					throw new Error("Failed to create tracing callback " + name + " configured by " + PROPERTY, e);
+				}
+			}
+
+			if (callbacks.isEmpty())
+				return new CompositeTracingCallback();
+		} else {
+			for (TracingCallback c : ServiceLoader.load(TracingCallback.class, classLoader))
+				callbacks.add(c);
+		}
+
+		switch (callbacks.size()) {
+		case 0:
+			return new DefaultTracingCallback();
+		case 1:
+			return new FilterTracingCallback(callbacks.get(0));
+		default:
+			return new FilterTracingCallback(
+					new CompositeTracingCallback(callbacks.toArray(new TracingCallback[callbacks.size()])));
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.pms1.jdbctracing.api.TracingCallback;
+
+/**
+ * A {@link TracingCallback} that copies the events into a preallocated ring
+ * buffer and passes them to a {@link TraceExporter} on a background thread.
+ *
+ * The ring buffer is a bounded multi producer queue with a sequence number per
+ * slot: a producer claims a position by a CAS on the head, fills the slot and
+ * publishes it by setting the slot sequence. No locks are taken and nothing is
+ * allocated on the calling thread. If the buffer is full, the event is dropped
+ * and counted or the caller waits, depending on the {@link OverflowPolicy}.
+ *
+ * When created by the no-argument constructor, e.g. by
+ * {@link com.github.pms1.jdbctracing.api.TracingCallbacks}, the configuration
+ * is taken from the system properties {@value #CAPACITY_PROPERTY} (a power of
+ * two, default {@value #DEFAULT_CAPACITY}), {@value #POLICY_PROPERTY}
+ * ({@code DROP} or {@code BLOCK}, default {@code DROP}) and
+ * {@value #EXPORTER_PROPERTY} (class name of the exporter, default
+ * {@link PrintTraceExporter}), and the buffer is drained at shutdown.
+ *
+ * @author pms1
+ */
+public class AsyncTracingCallback implements TracingCallback, Closeable {
+	public enum OverflowPolicy {
+		/**
+		 * Drops the event and counts it in {@link #getDropped()}.
+		 */
+		DROP,
+		/**
+		 * Waits until the background thread freed a slot.
+		 */
+		BLOCK
+	}
+
+	public static final String CAPACITY_PROPERTY = "jdbctracing.async.capacity";
+	public static final String POLICY_PROPERTY = "jdbctracing.async.policy";
+	public static final String EXPORTER_PROPERTY = "jdbctracing.async.exporter";
+
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final TraceEvent[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final OverflowPolicy policy;
+	private final TraceExporter exporter;
+
+	/**
+	 * The next position to claim. {@link #close()} sets the sign bit, after
+	 * which no position can be claimed anymore.
+	 */
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * The next position to drain, only used by the background thread.
+	 */
+	private long tail;
+
+	private final Thread drainer;
+
+	/**
+	 * The number of positions claimed before the head was sealed, written
+	 * before {@link #closed}.
+	 */
+	private long end;
+	private volatile boolean closed;
+
+	public AsyncTracingCallback() {
+		this(createExporter(System.getProperty(EXPORTER_PROPERTY)),
+				Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+				OverflowPolicy.valueOf(System.getProperty(POLICY_PROPERTY, OverflowPolicy.DROP.name())));
+
+		Runtime.getRuntime().addShutdownHook(new Thread("jdbc-tracing shutdown") {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+
+	public AsyncTracingCallback(TraceExporter exporter, int capacity, OverflowPolicy policy) {
+		if (exporter == null || policy == null)
+			throw new NullPointerException();
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+
+		this.exporter = exporter;
+		this.policy = policy;
+		this.mask = capacity - 1;
+		this.slots = new TraceEvent[capacity];
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i != capacity; ++i) {
+			slots[i] = new TraceEvent();
+			sequences.set(i, i);
+		}
+
+		drainer = new Thread("jdbc-tracing drainer") {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	private static TraceExporter createExporter(String name) {
+		if (name == null)
+			return new PrintTraceExporter();
+		try {
+			return Class.forName(name, true, AsyncTracingCallback.class.getClassLoader())
+					.asSubclass(TraceExporter.class).newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			throw new Error("Failed to create trace exporter " + name + " configured by " + EXPORTER_PROPERTY, e);
+		}
+	}
+
+	/**
+	 * Claims the next position of the ring buffer.
+	 *
+	 * @return the position, or -1 if the event is dropped
+	 */
+	private long claim() {
+		int spins = 0;
+		for (;;) {
+			long pos = head.get();
+			if (pos < 0) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+			long dif = sequences.get((int) pos & mask) - pos;
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1))
+					return pos;
+			} else if (dif < 0) {
+				if (policy == OverflowPolicy.DROP) {
+					dropped.incrementAndGet();
+					return -1;
+				}
+				if (++spins < 100)
+					Thread.yield();
+				else
+					LockSupport.parkNanos(MAX_IDLE_NANOS);
+			}
+		}
+	}
+
+	private void publish(long pos) {
+		sequences.lazySet((int) pos & mask, pos + 1);
+	}
+
+	private int drain() {
+		int drained = 0;
+		for (;;) {
+			int idx = (int) tail & mask;
+			if (sequences.get(idx) != tail + 1)
+				return drained;
+
+			TraceEvent event = slots[idx];
+			try {
+				exporter.export(event);
+			} catch (IOException | RuntimeException e) {
+				failed.incrementAndGet();
+			}
+			event.clear();
+
+			sequences.lazySet(idx, tail + slots.length);
+			++tail;
+			++drained;
+		}
+	}
+
+	private void flushExporter() {
+		try {
+			exporter.flush();
+		} catch (IOException | RuntimeException e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	private void drainLoop() {
+		long idle = 0;
+		while (!closed) {
+			if (drain() != 0) {
+				idle = 0;
+			} else {
+				if (idle == 0)
+					flushExporter();
+				idle = Math.min(MAX_IDLE_NANOS, Math.max(1000, idle * 2));
+				LockSupport.parkNanos(idle);
+			}
+		}
+		// events claimed before the head was sealed are published shortly
+		while (tail != end)
+			if (drain() == 0)
+				Thread.yield();
+		flushExporter();
+	}
+
+	/**
+	 * The number of events that were accepted into the ring buffer.
+	 */
+	public long getPublished() {
+		return head.get() & Long.MAX_VALUE;
+	}
+
+	/**
+	 * The number of events that were dropped as the ring buffer was full or
+	 * the callback was closed.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * The number of events or flushes the exporter failed on.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Stops the background thread after draining the buffer and closes the
+	 * exporter. Sealing the head decides atomically which events are still
+	 * exported: events claimed before are drained, events arriving later are
+	 * dropped.
+	 */
+	@Override
+	public void close() {
+		long pos;
+		do {
+			pos = head.get();
+			if (pos < 0)
+				return;
+		} while (!head.compareAndSet(pos, pos | Long.MIN_VALUE));
+		end = pos;
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			exporter.close();
+		} catch (IOException e) {
+			failed.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void initEnter(Object[] args, int method) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.INIT_ENTER, method, null);
+		e.args = args;
+		publish(pos);
+	}
+
+	@Override
+	public void initExitException(Throwable t, int method) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.INIT_EXCEPTION, method, null);
+		e.exception = t;
+		publish(pos);
+	}
+
+	@Override
+	public void enter(Object[] args, Object instance, int method) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.ENTER, method, instance);
+		e.args = args;
+		publish(pos);
+	}
+
+	/**
+	 * Passed as time by the untimed exit variants.
+	 */
+	private static final long UNTIMED = -1;
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+		exitReturn(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.RETURN, method, instance);
+		e.result = result;
+		e.elapsed = nanos;
+		publish(pos);
+	}
+
+	private void exitPrimitive(TraceEvent.Kind kind, long value, Object instance, int method, long nanos) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(kind, method, instance);
+		e.value = value;
+		e.elapsed = nanos;
+		publish(pos);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		exitReturnBoolean(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_BOOLEAN, result ? 1 : 0, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		exitReturnByte(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_BYTE, result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		exitReturnChar(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_CHAR, result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		exitReturnShort(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_SHORT, result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		exitReturnInt(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_INT, result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		exitReturnLong(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_LONG, result, instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		exitReturnFloat(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_FLOAT, Float.floatToRawIntBits(result), instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		exitReturnDouble(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		exitPrimitive(TraceEvent.Kind.RETURN_DOUBLE, Double.doubleToRawLongBits(result), instance, method, nanos);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+		exitReturn(instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.RETURN_VOID, method, instance);
+		e.elapsed = nanos;
+		publish(pos);
+	}
+
+	@Override
+	public void exitException(Throwable t, Object instance, int method) {
+		exitException(t, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitException(Throwable t, Object instance, int method, long nanos) {
+		long pos = claim();
+		if (pos == -1)
+			return;
+		TraceEvent e = slots[(int) pos & mask];
+		e.set(TraceEvent.Kind.EXCEPTION, method, instance);
+		e.exception = t;
+		e.elapsed = nanos;
+		publish(pos);
+	}
+}
@@ -0,0 +1,283 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import static com.github.pms1.jdbctracing.tracers.BinaryTraceFormat.*;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+
+/**
+ * A {@link TraceExporter} writing the events in the binary format described
+ * in {@link BinaryTraceFormat} to a file, one memory mapped segment at a time.
+ * Strings, i.e. SQL text and class names, are written once and referenced by
+ * id afterwards. At most {@code maxStrings} of them are remembered: when a new
+ * string arrives the least recently used one is forgotten and its id is
+ * redefined, so a string may be written again if it shows up later. Only an
+ * event referencing more strings than that makes the dictionary grow.
+ *
+ * As records never span segments, strings longer than a segment are truncated
+ * at a character boundary and enter events keep only the arguments whose
+ * references fit into a segment.
+ *
+ * When created by the no-argument constructor, e.g. by
+ * {@link AsyncTracingCallback}, the file is taken from the system property
+ * {@value #FILE_PROPERTY} (default {@value #DEFAULT_FILE}), the segment size
+ * from {@value #SEGMENT_SIZE_PROPERTY} and the number of strings from
+ * {@value #MAX_STRINGS_PROPERTY}.
+ *
+ * @author pms1
+ */
+public class BinaryTraceExporter implements TraceExporter {
+	public static final String FILE_PROPERTY = "jdbctracing.binary.file";
+	public static final String SEGMENT_SIZE_PROPERTY = "jdbctracing.binary.segmentSize";
+	public static final String MAX_STRINGS_PROPERTY = "jdbctracing.binary.maxStrings";
+
+	public static final String DEFAULT_FILE = "jdbc-trace.bin";
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+	public static final int DEFAULT_MAX_STRINGS = 65536;
+
+	private final Path file;
+	private final int segmentSize;
+	private final int maxArgs;
+	private FileChannel channel;
+	private MappedByteBuffer segment;
+	private long segmentStart;
+
+	/**
+	 * A string of the dictionary and the last event referencing it.
+	 */
+	private static final class StringEntry {
+		final int id;
+		long event;
+
+		StringEntry(int id) {
+			this.id = id;
+		}
+	}
+
+	private final int maxStrings;
+	private final LinkedHashMap<String, StringEntry> strings = new LinkedHashMap<>(16, 0.75f, true);
+	private int nextString;
+	private long events;
+	private final BitSet methods = new BitSet();
+	private long lastNanoTime;
+	private long[] argRefs = new long[16];
+
+	public BinaryTraceExporter() {
+		this(Paths.get(System.getProperty(FILE_PROPERTY, DEFAULT_FILE)),
+				Integer.getInteger(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE),
+				Integer.getInteger(MAX_STRINGS_PROPERTY, DEFAULT_MAX_STRINGS));
+	}
+
+	public BinaryTraceExporter(Path file, int segmentSize) {
+		this(file, segmentSize, DEFAULT_MAX_STRINGS);
+	}
+
+	/**
+	 * The file is created when the first event is exported.
+	 */
+	public BinaryTraceExporter(Path file, int segmentSize, int maxStrings) {
+		if (segmentSize < 4096)
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		if (maxStrings <= 0)
+			throw new IllegalArgumentException("Invalid number of strings: " + maxStrings);
+		this.file = file;
+		this.segmentSize = segmentSize;
+		// type, six varints of the header and the argument count
+		this.maxArgs = (segmentSize - 1) / MAX_VARINT - 6;
+		this.maxStrings = maxStrings;
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		segment.putInt(MAGIC);
+		segment.putInt(VERSION);
+		segment.putInt(segmentSize);
+		segment.position(HEADER_SIZE);
+	}
+
+	private void ensure(int size) throws IOException {
+		if (segment == null)
+			open();
+		if (segment.remaining() >= size)
+			return;
+		segmentStart += segmentSize;
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize);
+	}
+
+	private void putVarint(long v) {
+		while ((v & ~0x7FL) != 0) {
+			segment.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		segment.put((byte) v);
+	}
+
+	private void putSigned(long v) {
+		putVarint((v << 1) ^ (v >> 63));
+	}
+
+	private int string(String s) throws IOException {
+		StringEntry entry = strings.get(s);
+		if (entry != null) {
+			entry.event = events;
+			return entry.id;
+		}
+
+		int id = -1;
+		if (strings.size() >= maxStrings) {
+			// the strings of the current event must stay valid until its
+			// record is written, they are the most recently used ones
+			Iterator<StringEntry> eldest = strings.values().iterator();
+			StringEntry evicted = eldest.next();
+			if (evicted.event != events) {
+				eldest.remove();
+				id = evicted.id;
+			}
+		}
+		if (id == -1)
+			id = nextString++;
+		entry = new StringEntry(id);
+		entry.event = events;
+		strings.put(s, entry);
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		int max = segmentSize - HEADER_SIZE - 1 - 2 * MAX_VARINT;
+		if (bytes.length > max) {
+			// do not cut a multi-byte sequence, its continuation bytes are
+			// 10xxxxxx
+			while ((bytes[max] & 0xC0) == 0x80)
+				--max;
+			bytes = Arrays.copyOf(bytes, max);
+		}
+
+		ensure(1 + 2 * MAX_VARINT + bytes.length);
+		segment.put((byte) STRING);
+		putVarint(id);
+		putVarint(bytes.length);
+		segment.put(bytes);
+		return id;
+	}
+
+	private long ref(Object o) throws IOException {
+		if (o == null)
+			return VALUE_NULL;
+		else if (o instanceof String)
+			return ((long) string((String) o) << 2) | VALUE_STRING;
+		else
+			return ((long) string(o.getClass().getName()) << 2) | VALUE_OBJECT;
+	}
+
+	@Override
+	public void export(TraceEvent event) throws IOException {
+		++events;
+		int method = event.getMethod();
+		if (!methods.get(method)) {
+			int clazz = string(MethodTable.getClassName(method));
+			int name = string(MethodTable.getName(method));
+			int signature = string(MethodTable.getSignature(method));
+			ensure(1 + 4 * MAX_VARINT);
+			segment.put((byte) METHOD);
+			putVarint(method);
+			putVarint(clazz);
+			putVarint(name);
+			putVarint(signature);
+			methods.set(method);
+		}
+
+		// strings must be written before the record referencing them
+		TraceEvent.Kind kind = event.getKind();
+		Object[] args = event.getArgs();
+		int argCount = 0;
+		long payload = 0;
+		switch (kind) {
+		case INIT_ENTER:
+		case ENTER:
+			if (args != null) {
+				argCount = Math.min(args.length, maxArgs);
+				if (argRefs.length < argCount)
+					argRefs = new long[argCount];
+				for (int i = 0; i != argCount; ++i)
+					argRefs[i] = ref(args[i]);
+			}
+			break;
+		case RETURN:
+			payload = ref(event.getResult());
+			break;
+		case INIT_EXCEPTION:
+		case EXCEPTION:
+			payload = ref(event.getException());
+			break;
+		default:
+			payload = event.getValue();
+			break;
+		}
+
+		ensure(1 + (6 + argCount) * MAX_VARINT);
+		segment.put((byte) (EVENT + kind.ordinal()));
+		putVarint(method);
+		putVarint(event.getThreadId());
+		putSigned(event.getNanoTime() - lastNanoTime);
+		lastNanoTime = event.getNanoTime();
+		putVarint(event.getInstance() == null ? 0 : System.identityHashCode(event.getInstance()) & 0xFFFFFFFFL);
+
+		if (kind != TraceEvent.Kind.INIT_ENTER && kind != TraceEvent.Kind.ENTER)
+			putVarint(event.getElapsedNanos() + 1);
+
+		switch (kind) {
+		case INIT_ENTER:
+		case ENTER:
+			putVarint(args == null ? 0 : argCount + 1);
+			for (int i = 0; i != argCount; ++i)
+				putVarint(argRefs[i]);
+			break;
+		case RETURN:
+		case INIT_EXCEPTION:
+		case EXCEPTION:
+			putVarint(payload);
+			break;
+		case RETURN_VOID:
+			break;
+		default:
+			putSigned(payload);
+			break;
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Writes the end record and truncates the file after it. Platforms that do
+	 * not allow to truncate mapped files keep the padding, which readers skip.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null && !channel.isOpen())
+			return;
+		ensure(1);
+		segment.put((byte) END);
+		long end = segmentStart + segment.position();
+		segment.force();
+		segment = null;
+		try {
+			channel.truncate(end);
+		} catch (IOException e) {
+			// keep the padding
+		}
+		channel.close();
+	}
+}
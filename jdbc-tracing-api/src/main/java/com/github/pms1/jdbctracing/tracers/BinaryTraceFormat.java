@@ -0,0 +1,63 @@
+package com.github.pms1.jdbctracing.tracers;
+
+/**
+ * Constants of the binary trace format written by {@link BinaryTraceExporter}
+ * and read by {@link BinaryTraceReader}.
+ *
+ * The file consists of segments of a fixed size, the first one starts with a
+ * header of {@link #HEADER_SIZE} bytes: {@link #MAGIC}, {@link #VERSION} and
+ * the segment size. Records never span segments, the unused rest of a segment
+ * is filled with {@link #PADDING}. Numbers are unsigned LEB128 varints, signed
+ * numbers are zigzag encoded first.
+ *
+ * <ul>
+ * <li>{@link #STRING}: id, length, UTF-8 bytes. New strings get the ids
+ * densely from 0 in the order of the records. As the number of strings the
+ * writer remembers is bounded, a record may also reuse the id of a string that
+ * was written earlier, the id then refers to the new string in the following
+ * records.
+ * <li>{@link #METHOD}: method id, string ids of the class, name and descriptor.
+ * Written before the first event of the method, the strings are resolved when
+ * the record is read.
+ * <li>{@link #EVENT} + {@link TraceEvent.Kind#ordinal()}: method id, thread
+ * id, signed nanosecond delta to the previous event, identity hash code of the
+ * instance (0 for none), followed by the payload of the kind: for enter events
+ * the argument count + 1 (0 for no arguments captured) and a value per
+ * argument, the writer may omit trailing arguments that do not fit into a
+ * segment. Exit events continue with the elapsed nanoseconds of the call + 1
+ * (0 if not timed, see {@link TraceEvent#getElapsedNanos()}), then for
+ * {@code RETURN} a value, for exceptions a value of type {@link #VALUE_OBJECT}
+ * for the exception and for primitive results the signed raw value.
+ * <li>{@link #END}: the end of the trace.
+ * </ul>
+ *
+ * Values are encoded as {@code (string id << 2) | type} with the types
+ * {@link #VALUE_NULL}, {@link #VALUE_STRING} for strings, e.g. SQL text, and
+ * {@link #VALUE_OBJECT} for other objects, which are represented by their
+ * class name.
+ *
+ * @author pms1
+ */
+final class BinaryTraceFormat {
+	static final int MAGIC = 0x4A444254;
+	static final int VERSION = 3;
+	static final int HEADER_SIZE = 16;
+
+	static final int PADDING = 0;
+	static final int STRING = 1;
+	static final int METHOD = 2;
+	static final int END = 3;
+	static final int EVENT = 16;
+
+	static final int VALUE_NULL = 0;
+	static final int VALUE_STRING = 1;
+	static final int VALUE_OBJECT = 2;
+
+	/**
+	 * The maximum size of a varint of a {@code long}.
+	 */
+	static final int MAX_VARINT = 10;
+
+	private BinaryTraceFormat() {
+	}
+}
@@ -0,0 +1,338 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import static com.github.pms1.jdbctracing.tracers.BinaryTraceFormat.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a trace written by {@link BinaryTraceExporter}. The file is mapped one
+ * segment at a time and the reader is a cursor: {@link #next()} decodes the
+ * next event into the reader itself, so iterating does not allocate per event.
+ * Only strings and methods are materialized, once per record defining them.
+ *
+ * <pre>
+ * try (BinaryTraceReader r = new BinaryTraceReader(file)) {
+ * 	while (r.next())
+ * 		System.out.println(r.getKind() + " " + r.getMethodName());
+ * }
+ * </pre>
+ *
+ * @author pms1
+ */
+public final class BinaryTraceReader implements Closeable {
+	/**
+	 * The type of an argument or result value.
+	 */
+	public enum ValueType {
+		NULL,
+		/**
+		 * A string, e.g. SQL text.
+		 */
+		STRING,
+		/**
+		 * Any other object, represented by its class name.
+		 */
+		OBJECT
+	}
+
+	private static final TraceEvent.Kind[] kinds = TraceEvent.Kind.values();
+	private static final ValueType[] valueTypes = ValueType.values();
+
+	private final FileChannel channel;
+	private final long size;
+	private final int segmentSize;
+	private MappedByteBuffer segment;
+	private long segmentStart;
+
+	private String[] strings = new String[256];
+	private int stringCount;
+	private byte[] bytes = new byte[256];
+
+	private String[] methodClasses = new String[64];
+	private String[] methodNames = new String[64];
+	private String[] methodSignatures = new String[64];
+
+	private TraceEvent.Kind kind;
+	private int method;
+	private long threadId;
+	private long nanoTime;
+	private int instanceHash;
+	private int argCount;
+	private long[] args = new long[16];
+	private long value;
+	private long elapsed;
+
+	public BinaryTraceReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			size = channel.size();
+			if (size < HEADER_SIZE)
+				throw new IOException("Not a trace file: " + file);
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC)
+				throw new IOException("Not a trace file: " + file);
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported trace version " + version + ": " + file);
+			segmentSize = header.getInt();
+			map(0);
+			segment.position(HEADER_SIZE);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void map(long start) throws IOException {
+		segmentStart = start;
+		segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+	}
+
+	private boolean nextSegment() throws IOException {
+		if (segmentStart + segmentSize >= size)
+			return false;
+		map(segmentStart + segmentSize);
+		return true;
+	}
+
+	private long getVarint() {
+		long result = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = segment.get();
+			result |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return result;
+		}
+	}
+
+	private long getSigned() {
+		long v = getVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Advances to the next event.
+	 *
+	 * @return {@code false} if the end of the trace is reached
+	 */
+	public boolean next() throws IOException {
+		try {
+			for (;;) {
+				if (!segment.hasRemaining() && !nextSegment())
+					return false;
+
+				int tag = segment.get() & 0xFF;
+				switch (tag) {
+				case PADDING:
+					if (!nextSegment())
+						return false;
+					break;
+				case END:
+					return false;
+				case STRING:
+					readString();
+					break;
+				case METHOD:
+					readMethod();
+					break;
+				default:
+					if (tag < EVENT || tag >= EVENT + kinds.length)
+						throw new IOException("Invalid record " + tag + " at " + position());
+					readEvent(kinds[tag - EVENT]);
+					return true;
+				}
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated record at " + position(), e);
+		}
+	}
+
+	private long position() {
+		return segmentStart + segment.position();
+	}
+
+	private void readString() throws IOException {
+		int id = (int) getVarint();
+		int length = (int) getVarint();
+		if (id < 0 || id > stringCount)
+			throw new IOException("Unexpected string id " + id + " at " + position());
+		if (bytes.length < length)
+			bytes = new byte[Math.max(length, bytes.length * 2)];
+		segment.get(bytes, 0, length);
+		if (id == stringCount) {
+			if (stringCount == strings.length)
+				strings = Arrays.copyOf(strings, stringCount * 2);
+			++stringCount;
+		}
+		strings[id] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private String string(long id) throws IOException {
+		if (id < 0 || id >= stringCount)
+			throw new IOException("Unknown string id " + id + " at " + position());
+		return strings[(int) id];
+	}
+
+	private void readMethod() throws IOException {
+		int id = (int) getVarint();
+		if (id >= methodClasses.length) {
+			int length = Math.max(id + 1, methodClasses.length * 2);
+			methodClasses = Arrays.copyOf(methodClasses, length);
+			methodNames = Arrays.copyOf(methodNames, length);
+			methodSignatures = Arrays.copyOf(methodSignatures, length);
+		}
+		methodClasses[id] = string(getVarint());
+		methodNames[id] = string(getVarint());
+		methodSignatures[id] = string(getVarint());
+	}
+
+	private void readEvent(TraceEvent.Kind kind) {
+		this.kind = kind;
+		method = (int) getVarint();
+		threadId = getVarint();
+		nanoTime += getSigned();
+		instanceHash = (int) getVarint();
+		argCount = -1;
+		value = 0;
+		elapsed = -1;
+
+		if (kind != TraceEvent.Kind.INIT_ENTER && kind != TraceEvent.Kind.ENTER)
+			elapsed = getVarint() - 1;
+
+		switch (kind) {
+		case INIT_ENTER:
+		case ENTER:
+			argCount = (int) getVarint() - 1;
+			if (args.length < argCount)
+				args = new long[argCount];
+			for (int i = 0; i < argCount; ++i)
+				args[i] = getVarint();
+			break;
+		case RETURN:
+		case INIT_EXCEPTION:
+		case EXCEPTION:
+			value = getVarint();
+			break;
+		case RETURN_VOID:
+			break;
+		default:
+			value = getSigned();
+			break;
+		}
+	}
+
+	public TraceEvent.Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * The id of the method in the traced process.
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	/**
+	 * The internal name of the class or interface declaring the method.
+	 */
+	public String getClassName() {
+		return methodClasses[method];
+	}
+
+	public String getMethodName() {
+		return methodNames[method];
+	}
+
+	/**
+	 * The descriptor of the method.
+	 */
+	public String getSignature() {
+		return methodSignatures[method];
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * The {@link System#nanoTime()} of the event in the traced process.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * The time the method took for exit events of code instrumented with
+	 * timing, {@code -1} otherwise.
+	 */
+	public long getElapsedNanos() {
+		return elapsed;
+	}
+
+	/**
+	 * The identity hash code of the instance, {@code 0} if there is none.
+	 */
+	public int getInstanceHash() {
+		return instanceHash;
+	}
+
+	/**
+	 * The number of arguments of an enter event, {@code -1} if no arguments
+	 * were captured.
+	 */
+	public int getArgCount() {
+		return argCount;
+	}
+
+	public ValueType getArgType(int i) {
+		return valueTypes[(int) (args[i] & 3)];
+	}
+
+	/**
+	 * The string or class name of an argument, {@code null} for {@code null}.
+	 */
+	public String getArg(int i) {
+		return valueString(args[i]);
+	}
+
+	/**
+	 * The type of the result of a {@code RETURN} event.
+	 */
+	public ValueType getResultType() {
+		return valueTypes[(int) (value & 3)];
+	}
+
+	/**
+	 * The string or class name of the result of a {@code RETURN} event, or
+	 * the class name of the exception of an exception event.
+	 */
+	public String getResult() {
+		return valueString(value);
+	}
+
+	/**
+	 * The raw value of a primitive result as described in
+	 * {@link TraceEvent#getValue()}.
+	 */
+	public long getValue() {
+		return value;
+	}
+
+	private String valueString(long ref) {
+		return (ref & 3) == VALUE_NULL ? null : strings[(int) (ref >>> 2)];
+	}
+
+	@Override
+	public void close() throws IOException {
+		segment = null;
+		channel.close();
+	}
+}
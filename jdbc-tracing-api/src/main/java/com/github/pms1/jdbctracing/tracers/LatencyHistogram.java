@@ -0,0 +1,170 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A log-linear latency histogram over a sliding time window.
+ *
+ * Values are counted in buckets of about 12% relative width: every power of
+ * two is split into {@value #SUB} linear sub-buckets. Values above 2^
+ * {@value #MAX_EXP} ns (about 18 minutes) share the last bucket, so the memory
+ * is fixed.
+ *
+ * Time is split into slots of {@link #SLOT_NANOS}, each with its own counts,
+ * and a snapshot merges the slots of the requested window. A slot is replaced
+ * by a fresh one when time moves on, so recording never clears counts and
+ * only does atomic increments. Recordings of a time whose slot was already
+ * replaced are dropped.
+ *
+ * To keep threads recording the same statement from contending on the same
+ * counters, the counts of a slot are split into {@link #STRIPES} stripes
+ * chosen by a hash of the thread id. A stripe is only allocated when a thread
+ * hashing to it records, and a snapshot merges all stripes.
+ *
+ * @author pms1
+ */
+final class LatencyHistogram {
+	static final int SUB_BITS = 3;
+	static final int SUB = 1 << SUB_BITS;
+	static final int MAX_EXP = 40;
+	static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB;
+
+	static final long SLOT_NANOS = TimeUnit.SECONDS.toNanos(15);
+
+	/**
+	 * The number of slots kept, enough for the five minute window.
+	 */
+	static final int SLOTS = 20;
+
+	/**
+	 * The number of stripes per slot, the number of processors rounded up to
+	 * a power of two, at most 16.
+	 */
+	static final int STRIPES = Math.min(16,
+			Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+	/**
+	 * The index of the maximum in the counts of a stripe.
+	 */
+	private static final int MAX = BUCKETS;
+
+	private static final long origin = System.nanoTime();
+
+	private static final class Slot {
+		final long epoch;
+		final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+		Slot(long epoch) {
+			this.epoch = epoch;
+		}
+
+		AtomicLongArray stripe(int i) {
+			AtomicLongArray stripe = stripes.get(i);
+			if (stripe == null) {
+				stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 1));
+				stripe = stripes.get(i);
+			}
+			return stripe;
+		}
+	}
+
+	private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<>(SLOTS);
+
+	static int index(long value) {
+		if (value < SUB)
+			return value < 0 ? 0 : (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		if (exp > MAX_EXP)
+			return BUCKETS - 1;
+		return (exp - SUB_BITS + 1) * SUB + (int) ((value >>> (exp - SUB_BITS)) & (SUB - 1));
+	}
+
+	/**
+	 * The largest value counted in a bucket.
+	 */
+	static long upperBound(int index) {
+		if (index < SUB)
+			return index;
+		int exp = index / SUB + SUB_BITS - 1;
+		return ((long) (SUB + index % SUB + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	static long epoch(long nanoTime) {
+		return (nanoTime - origin) / SLOT_NANOS;
+	}
+
+	static int stripe(long threadId) {
+		return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+	}
+
+	void record(long nanos, long nanoTime) {
+		long epoch = epoch(nanoTime);
+		int i = (int) (epoch % SLOTS);
+
+		Slot slot = slots.get(i);
+		if (slot == null || slot.epoch != epoch) {
+			if (slot != null && slot.epoch > epoch)
+				return;
+			Slot fresh = new Slot(epoch);
+			if (slots.compareAndSet(i, slot, fresh)) {
+				slot = fresh;
+			} else {
+				slot = slots.get(i);
+				if (slot.epoch != epoch)
+					return;
+			}
+		}
+
+		AtomicLongArray counts = slot.stripe(stripe(Thread.currentThread().getId()));
+		counts.incrementAndGet(index(nanos));
+
+		long max;
+		while (nanos > (max = counts.get(MAX)))
+			if (counts.compareAndSet(MAX, max, nanos))
+				break;
+	}
+
+	/**
+	 * Merges the current and the preceding {@code windowSlots - 1} slots.
+	 */
+	LatencySnapshot snapshot(int fingerprint, String key, int windowSlots, long nanoTime) {
+		long epoch = epoch(nanoTime);
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		long max = 0;
+		for (int i = 0; i != SLOTS; ++i) {
+			Slot slot = slots.get(i);
+			if (slot == null || slot.epoch > epoch || slot.epoch <= epoch - windowSlots)
+				continue;
+			for (int s = 0; s != STRIPES; ++s) {
+				AtomicLongArray stripe = slot.stripes.get(s);
+				if (stripe == null)
+					continue;
+				for (int j = 0; j != BUCKETS; ++j) {
+					long c = stripe.get(j);
+					counts[j] += c;
+					total += c;
+				}
+				max = Math.max(max, stripe.get(MAX));
+			}
+		}
+
+		return new LatencySnapshot(fingerprint, key, total, percentile(counts, total, max, 0.5),
+				percentile(counts, total, max, 0.99), percentile(counts, total, max, 0.999), max);
+	}
+
+	private static long percentile(long[] counts, long total, long max, double q) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i = 0; i != counts.length; ++i) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+}
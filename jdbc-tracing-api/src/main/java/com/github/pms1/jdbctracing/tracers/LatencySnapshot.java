@@ -0,0 +1,67 @@
+package com.github.pms1.jdbctracing.tracers;
+
+/**
+ * The latency of a statement over a time window as recorded by
+ * {@link LatencyTracingCallback}. All latencies are in nanoseconds, the
+ * percentiles are accurate to the bucket width of about 12%.
+ *
+ * @author pms1
+ */
+public final class LatencySnapshot {
+	private final int fingerprint;
+	private final String key;
+	private final long count;
+	private final long p50;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	LatencySnapshot(int fingerprint, String key, long count, long p50, long p99, long p999, long max) {
+		this.fingerprint = fingerprint;
+		this.key = key;
+		this.count = count;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	/**
+	 * The fingerprint of the SQL, see {@link SqlFingerprints}.
+	 */
+	public int getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * The normalized SQL the latency was recorded for, or {@code COMMIT}.
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " p50=" + p50 + " p99=" + p99 + " p999=" + p999 + " max=" + max + " " + key;
+	}
+}
@@ -0,0 +1,381 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+import com.github.pms1.jdbctracing.api.TracingCallback;
+
+/**
+ * A {@link TracingCallback} recording the latency of statement executions and
+ * commits into {@link LatencyHistogram}s per SQL fingerprint as computed by
+ * {@link SqlFingerprints#getDefault()}, over windows of one and five minutes.
+ *
+ * It relies on the enter/exit pairs of the outermost calls as produced by
+ * {@link com.github.pms1.jdbctracing.api.FilterTracingCallback}, and on the SQL
+ * being captured ({@code SQL} or {@code ALL} argument capture). The SQL of a
+ * prepared statement is remembered from the
+ * {@code Connection.prepareStatement} or {@code prepareCall} that created it
+ * until the statement is closed.
+ *
+ * Recording takes no locks: histograms are found in an array indexed by the
+ * fingerprint and updated with atomic increments. The number of distinct
+ * fingerprints is limited by {@value #MAX_KEYS_PROPERTY} (default
+ * {@value #DEFAULT_MAX_KEYS}), further SQL is recorded under
+ * {@link SqlFingerprints#OTHER}.
+ *
+ * The timed exit variants record the time measured by the instrumented code,
+ * the untimed ones the time between the enter and exit callbacks.
+ *
+ * Reporting is left to the application through {@link #snapshot(Window)}.
+ * Only if {@value #REPORT_PROPERTY} is set to a positive number of seconds,
+ * the snapshots are also printed to {@link System#out} at that interval.
+ *
+ * @author pms1
+ */
+public class LatencyTracingCallback implements TracingCallback {
+	public enum Window {
+		ONE_MINUTE(4), FIVE_MINUTES(20);
+
+		final int slots;
+
+		Window(int slots) {
+			this.slots = slots;
+		}
+	}
+
+	public static final String MAX_KEYS_PROPERTY = "jdbctracing.latency.maxKeys";
+	public static final String REPORT_PROPERTY = "jdbctracing.latency.report";
+
+	public static final int DEFAULT_MAX_KEYS = 1000;
+	public static final int DEFAULT_REPORT = 0;
+
+	public static final String COMMIT = "COMMIT";
+	public static final String UNKNOWN = "<unknown>";
+
+	private static final byte NONE = 1;
+	private static final byte PREPARE = 2;
+	private static final byte EXECUTE = 3;
+	private static final byte COMMIT_ROLE = 4;
+	private static final byte CLOSE = 5;
+
+	/**
+	 * The role of each method id, 0 if not yet classified.
+	 */
+	private volatile byte[] roles = new byte[0];
+
+	private final int maxKeys;
+	private final SqlFingerprints fingerprints = SqlFingerprints.getDefault();
+	private final AtomicReferenceArray<LatencyHistogram> histograms;
+	private final int commit;
+	private final int unknown;
+
+	/**
+	 * The SQL fingerprint of open prepared statements. Statements that are
+	 * never closed are not remembered beyond {@link #maxKeys} times 16
+	 * entries.
+	 */
+	private final ConcurrentMap<Object, Integer> statements = new ConcurrentHashMap<>();
+
+	private static final class Pending {
+		int method = -1;
+		byte role;
+		int fingerprint;
+		long start;
+	}
+
+	private final ThreadLocal<Pending> pending = new ThreadLocal<Pending>() {
+		@Override
+		protected Pending initialValue() {
+			return new Pending();
+		}
+	};
+
+	public LatencyTracingCallback() {
+		this(Integer.getInteger(MAX_KEYS_PROPERTY, DEFAULT_MAX_KEYS));
+
+		int report = Integer.getInteger(REPORT_PROPERTY, DEFAULT_REPORT);
+		if (report > 0)
+			startReporter(TimeUnit.SECONDS.toMillis(report));
+	}
+
+	public LatencyTracingCallback(int maxKeys) {
+		this.maxKeys = maxKeys;
+		this.histograms = new AtomicReferenceArray<>(maxKeys);
+		this.commit = fingerprints.fingerprint(COMMIT);
+		this.unknown = fingerprints.fingerprint(UNKNOWN);
+	}
+
+	private void startReporter(final long interval) {
+		Thread reporter = new Thread("jdbc-tracing latency") {
+			@Override
+			public void run() {
+				try {
+					for (;;) {
+						Thread.sleep(interval);
+						for (Window w : Window.values())
+							for (LatencySnapshot s : snapshot(w))
+								System.out.println("LATENCY " + w + " " + s);
+					}
+				} catch (InterruptedException e) {
+					// stop
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	private byte role(int method) {
+		byte[] r = roles;
+		if (method < r.length && r[method] != 0)
+			return r[method];
+
+		synchronized (this) {
+			r = roles;
+			if (method >= r.length)
+				r = Arrays.copyOf(r, Math.max(method + 1, MethodTable.size()));
+			else
+				r = r.clone();
+			r[method] = classify(MethodTable.getClassName(method), MethodTable.getName(method));
+			roles = r;
+			return r[method];
+		}
+	}
+
+	private static byte classify(String clazz, String name) {
+		switch (clazz) {
+		case "java/sql/Connection":
+			if (name.equals("prepareStatement") || name.equals("prepareCall"))
+				return PREPARE;
+			if (name.equals("commit"))
+				return COMMIT_ROLE;
+			return NONE;
+		case "java/sql/Statement":
+		case "java/sql/PreparedStatement":
+		case "java/sql/CallableStatement":
+			if (name.startsWith("execute"))
+				return EXECUTE;
+			if (name.equals("close"))
+				return CLOSE;
+			return NONE;
+		default:
+			return NONE;
+		}
+	}
+
+	/**
+	 * The fingerprint of the SQL passed as first argument, -1 if there is
+	 * none.
+	 */
+	private int sqlArgument(Object[] args) {
+		if (args != null && args.length != 0 && args[0] instanceof String)
+			return fingerprints.fingerprint((String) args[0]);
+		return -1;
+	}
+
+	@Override
+	public void initEnter(Object[] args, int method) {
+	}
+
+	@Override
+	public void initExitException(Throwable e, int method) {
+	}
+
+	@Override
+	public void enter(Object[] args, Object instance, int method) {
+		byte role = role(method);
+		if (role == NONE)
+			return;
+
+		Pending p = pending.get();
+		p.method = method;
+		p.role = role;
+		switch (role) {
+		case PREPARE:
+			p.fingerprint = sqlArgument(args);
+			break;
+		case EXECUTE:
+			int fingerprint = sqlArgument(args);
+			if (fingerprint == -1) {
+				Integer f = statements.get(instance);
+				fingerprint = f != null ? f : unknown;
+			}
+			p.fingerprint = fingerprint;
+			break;
+		case COMMIT_ROLE:
+			p.fingerprint = commit;
+			break;
+		case CLOSE:
+			statements.remove(instance);
+			p.method = -1;
+			return;
+		}
+		p.start = System.nanoTime();
+	}
+
+	/**
+	 * Passed as time by the untimed exit variants.
+	 */
+	private static final long UNTIMED = -1;
+
+	private Pending exit(int method, long nanos) {
+		Pending p = pending.get();
+		if (p.method != method)
+			return null;
+		p.method = -1;
+
+		if (p.role != PREPARE) {
+			long now = System.nanoTime();
+			histogram(p.fingerprint).record(nanos == UNTIMED ? now - p.start : nanos, now);
+		}
+		return p;
+	}
+
+	private LatencyHistogram histogram(int fingerprint) {
+		if (fingerprint >= maxKeys)
+			fingerprint = SqlFingerprints.OTHER;
+		LatencyHistogram h = histograms.get(fingerprint);
+		if (h == null) {
+			histograms.compareAndSet(fingerprint, null, new LatencyHistogram());
+			h = histograms.get(fingerprint);
+		}
+		return h;
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+		exitReturn(result, instance, method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		Pending p = exit(method, nanos);
+		if (p != null && p.role == PREPARE && p.fingerprint != -1 && result != null
+				&& statements.size() < maxKeys * 16)
+			statements.put(result, p.fingerprint);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method) {
+		exit(method, UNTIMED);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		exit(method, nanos);
+	}
+
+	/**
+	 * The latencies of all keys over the given window. Keys without calls in
+	 * the window are omitted.
+	 */
+	public List<LatencySnapshot> snapshot(Window window) {
+		long now = System.nanoTime();
+		List<LatencySnapshot> result = new ArrayList<>();
+		for (int i = 0; i != histograms.length(); ++i) {
+			LatencyHistogram h = histograms.get(i);
+			if (h == null)
+				continue;
+			LatencySnapshot s = h.snapshot(i, fingerprints.getNormalized(i), window.slots, now);
+			if (s.getCount() != 0)
+				result.add(s);
+		}
+		return result;
+	}
+}
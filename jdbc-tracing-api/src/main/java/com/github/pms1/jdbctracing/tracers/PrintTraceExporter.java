@@ -0,0 +1,75 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+
+/**
+ * A {@link TraceExporter} writing the events in the format of
+ * {@link PrintTracingCallback} to {@link System#out}.
+ *
+ * @author pms1
+ */
+public class PrintTraceExporter implements TraceExporter {
+	private final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+
+	@Override
+	public void export(TraceEvent event) {
+		switch (event.getKind()) {
+		case INIT_ENTER:
+			out.print("ENTER-INIT " + MethodTable.toString(event.getMethod()) + " ");
+			printArgs(event.getArgs());
+			break;
+		case INIT_EXCEPTION:
+			out.println("EXCEPTION-INIT " + MethodTable.toString(event.getMethod()) + " ");
+			break;
+		case ENTER:
+			out.print("ENTER " + MethodTable.toString(event.getMethod()) + " "
+					+ PrintTracingCallback.id(event.getInstance()) + " ");
+			printArgs(event.getArgs());
+			break;
+		case RETURN_VOID:
+			out.println("RETURN " + MethodTable.toString(event.getMethod()) + " "
+					+ PrintTracingCallback.id(event.getInstance()) + elapsed(event));
+			break;
+		case EXCEPTION:
+			out.println("EXCEPTION " + MethodTable.toString(event.getMethod()) + " "
+					+ PrintTracingCallback.id(event.getInstance()) + " "
+					+ PrintTracingCallback.id(event.getException()) + elapsed(event));
+			break;
+		case RETURN:
+			out.println("RETURN " + MethodTable.toString(event.getMethod()) + " "
+					+ PrintTracingCallback.id(event.getInstance()) + " " + PrintTracingCallback.id(event.getResult())
+					+ elapsed(event));
+			break;
+		default:
+			out.println("RETURN " + MethodTable.toString(event.getMethod()) + " "
+					+ PrintTracingCallback.id(event.getInstance()) + " " + event.getResult() + elapsed(event));
+			break;
+		}
+	}
+
+	private static String elapsed(TraceEvent event) {
+		return event.getElapsedNanos() < 0 ? "" : PrintTracingCallback.elapsed(event.getElapsedNanos());
+	}
+
+	private void printArgs(Object[] args) {
+		if (args != null)
+			for (Object a : args)
+				out.print(" " + PrintTracingCallback.id(a));
+		out.println();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.flush();
+	}
+}
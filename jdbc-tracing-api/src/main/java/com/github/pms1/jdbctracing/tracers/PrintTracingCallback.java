@@ -1,10 +1,11 @@
 package com.github.pms1.jdbctracing.tracers;
 
+import com.github.pms1.jdbctracing.api.MethodTable;
 import com.github.pms1.jdbctracing.api.TracingCallback;
 
 public class PrintTracingCallback implements TracingCallback {
 
-	private static String id(Object o) {
+	static String id(Object o) {
 		if (o == null) {
 			return null;
 		} else if (o instanceof String || o instanceof Integer || o instanceof Long || o instanceof Double
@@ -25,9 +26,16 @@ public class PrintTracingCallback implements TracingCallback {
 		}
 	}
 
+	/**
+	 * The suffix of exit lines for the time of timed exit events.
+	 */
+	static String elapsed(long nanos) {
+		return " " + nanos + "ns";
+	}
+
 	@Override
-	public void enter(Object[] args, Object instance, String clazz, String method, String signature) {
-		System.out.print("ENTER " + clazz + " " + method + " " + signature + " " + id(instance) + " ");
+	public void enter(Object[] args, Object instance, int method) {
+		System.out.print("ENTER " + MethodTable.toString(method) + " " + id(instance) + " ");
 		if (args != null)
 			for (Object a : args)
 				System.out.print(" " + id(a));
@@ -35,23 +43,128 @@ public class PrintTracingCallback implements TracingCallback {
 	}
 
 	@Override
-	public void exitReturn(Object result, Object instance, String clazz, String method, String signature) {
-		System.out.println("RETURN " + clazz + " " + method + " " + signature + " " + id(instance) + " " + id(result));
+	public void exitReturn(Object result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + id(result));
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance));
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method) {
+		System.out.println("EXCEPTION " + MethodTable.toString(method) + " " + id(instance) + " " + id(e));
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + id(result) + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		System.out.println(
+				"RETURN " + MethodTable.toString(method) + " " + id(instance) + " " + result + elapsed(nanos));
 	}
 
 	@Override
-	public void exitReturn(Object instance, String clazz, String method, String signature) {
-		System.out.println("RETURN " + clazz + " " + method + " " + signature + " " + id(instance));
+	public void exitReturn(Object instance, int method, long nanos) {
+		System.out.println("RETURN " + MethodTable.toString(method) + " " + id(instance) + elapsed(nanos));
 	}
 
 	@Override
-	public void exitException(Throwable e, Object instance, String clazz, String method, String signature) {
-		System.out.println("EXCEPTION " + clazz + " " + method + " " + signature + " " + id(instance) + " " + id(e));
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		System.out.println(
+				"EXCEPTION " + MethodTable.toString(method) + " " + id(instance) + " " + id(e) + elapsed(nanos));
 	}
 
 	@Override
-	public void initEnter(Object[] args, String clazz, String method, String signature) {
-		System.out.print("ENTER-INIT " + clazz + " " + method + " " + signature + " ");
+	public void initEnter(Object[] args, int method) {
+		System.out.print("ENTER-INIT " + MethodTable.toString(method) + " ");
 		if (args != null)
 			for (Object a : args)
 				System.out.print(" " + id(a));
@@ -59,8 +172,8 @@ public class PrintTracingCallback implements TracingCallback {
 	}
 
 	@Override
-	public void initExitException(Throwable t, String clazz, String method, String signature) {
-		System.out.print("EXCEPTION-INIT " + clazz + " " + method + " " + signature + " ");
+	public void initExitException(Throwable t, int method) {
+		System.out.print("EXCEPTION-INIT " + MethodTable.toString(method) + " ");
 		System.out.println();
 	}
 }
@@ -0,0 +1,286 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Maps SQL text to small integer fingerprints. SQL that only differs in
+ * literals, the length of {@code IN} lists, comments and whitespace gets the
+ * same fingerprint, e.g. {@code select * from t where id in (1, 2)} and
+ * {@code select * from t  where id in (3) -- x} both become
+ * {@code select * from t where id in (?)}. Keywords and identifiers keep
+ * their case.
+ *
+ * Fingerprints are assigned densely from 1, the number of fingerprints is
+ * bounded and further SQL gets {@link #OTHER}. SQL text already seen is found
+ * in a direct mapped cache indexed by the string hash, so repeatedly executed
+ * statements are not parsed again. The cache is not synchronized: entries are
+ * immutable and a lost update just means parsing again.
+ *
+ * Aggregating tracers key on the fingerprint, so their memory stays bounded
+ * for applications that inline literals. They share {@link #getDefault()},
+ * which is sized by the system properties {@value #MAX_PROPERTY} (default
+ * {@value #DEFAULT_MAX}) and {@value #CACHE_PROPERTY} (default
+ * {@value #DEFAULT_CACHE}, rounded up to a power of two).
+ *
+ * @author pms1
+ */
+public final class SqlFingerprints {
+	public static final String MAX_PROPERTY = "jdbctracing.fingerprint.max";
+	public static final String CACHE_PROPERTY = "jdbctracing.fingerprint.cache";
+
+	public static final int DEFAULT_MAX = 10000;
+	public static final int DEFAULT_CACHE = 4096;
+
+	/**
+	 * The fingerprint of SQL that exceeds the maximum number of fingerprints.
+	 */
+	public static final int OTHER = 0;
+
+	private static final Pattern inList = Pattern.compile("(?i)\\b(in) ?\\( ?\\?(?: ?, ?\\?)* ?\\)");
+
+	/**
+	 * Keywords after which a {@code +} or {@code -} is the sign of a number.
+	 */
+	private static final Set<String> signKeywords = new HashSet<>(Arrays.asList("SELECT", "WHERE", "AND", "OR",
+			"NOT", "ON", "SET", "VALUES", "WHEN", "THEN", "ELSE", "CASE", "RETURN", "BETWEEN", "LIKE", "IN", "IS",
+			"HAVING", "LIMIT", "OFFSET", "BY", "AS"));
+
+	private static final class Entry {
+		final String sql;
+		final int fingerprint;
+
+		Entry(String sql, int fingerprint) {
+			this.sql = sql;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	private static final SqlFingerprints instance = new SqlFingerprints(
+			Integer.getInteger(MAX_PROPERTY, DEFAULT_MAX), Integer.getInteger(CACHE_PROPERTY, DEFAULT_CACHE));
+
+	private final int max;
+	private final Entry[] cache;
+	private final int mask;
+
+	private final Map<String, Integer> fingerprints = new HashMap<>();
+	private volatile String[] normalized = { "<other>" };
+
+	public SqlFingerprints(int max, int cacheSize) {
+		if (max < 1 || cacheSize < 1)
+			throw new IllegalArgumentException();
+		this.max = max;
+		int size = Integer.highestOneBit(cacheSize);
+		if (size < cacheSize)
+			size <<= 1;
+		this.cache = new Entry[size];
+		this.mask = size - 1;
+	}
+
+	public static SqlFingerprints getDefault() {
+		return instance;
+	}
+
+	/**
+	 * The fingerprint of the SQL text, at most the maximum number of
+	 * fingerprints.
+	 */
+	public int fingerprint(String sql) {
+		int h = sql.hashCode();
+		int idx = (h ^ (h >>> 16)) & mask;
+		Entry e = cache[idx];
+		if (e != null && (e.sql == sql || e.sql.equals(sql)))
+			return e.fingerprint;
+
+		int fingerprint = assign(normalize(sql));
+		cache[idx] = new Entry(sql, fingerprint);
+		return fingerprint;
+	}
+
+	private synchronized int assign(String normalized) {
+		Integer fingerprint = fingerprints.get(normalized);
+		if (fingerprint != null)
+			return fingerprint;
+
+		String[] n = this.normalized;
+		if (n.length > max)
+			return OTHER;
+
+		n = Arrays.copyOf(n, n.length + 1);
+		n[n.length - 1] = normalized;
+		fingerprints.put(normalized, n.length - 1);
+		this.normalized = n;
+		return n.length - 1;
+	}
+
+	/**
+	 * The normalized SQL of a fingerprint.
+	 */
+	public String getNormalized(int fingerprint) {
+		return normalized[fingerprint];
+	}
+
+	/**
+	 * The number of fingerprints assigned so far, including {@link #OTHER}.
+	 */
+	public int size() {
+		return normalized.length;
+	}
+
+	/**
+	 * Replaces string and numeric literals by {@code ?}, removes comments,
+	 * collapses whitespace and {@code IN} lists. Quoted identifiers are kept.
+	 * The sign of a number is part of the literal unless the {@code +} or
+	 * {@code -} follows an operand, e.g. {@code x = -5} becomes {@code x = ?}
+	 * but {@code x -5} becomes {@code x -?}.
+	 */
+	static String normalize(String sql) {
+		int n = sql.length();
+		StringBuilder sb = new StringBuilder(n);
+		boolean space = false;
+		for (int i = 0; i < n;) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				++i;
+				continue;
+			}
+			if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+				while (i < n && sql.charAt(i) != '\n')
+					++i;
+				space = true;
+				continue;
+			}
+			if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				i = end == -1 ? n : end + 2;
+				space = true;
+				continue;
+			}
+
+			if (space && sb.length() != 0)
+				sb.append(' ');
+			space = false;
+
+			if (c == '\'') {
+				i = skipQuoted(sql, i, c);
+				sb.append('?');
+			} else if (c == '"' || c == '`') {
+				int end = skipQuoted(sql, i, c);
+				sb.append(sql, i, end);
+				i = end;
+			} else if (isNumber(sql, i)) {
+				i = skipNumber(sql, i);
+				sb.append('?');
+			} else if ((c == '-' || c == '+') && isNumber(sql, i + 1) && isSignPosition(sb)) {
+				i = skipNumber(sql, i + 1);
+				sb.append('?');
+			} else if (Character.isLetter(c) || c == '_' || c == '$') {
+				int start = i;
+				while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_'
+						|| sql.charAt(i) == '$'))
+					++i;
+				sb.append(sql, start, i);
+			} else {
+				sb.append(c);
+				++i;
+			}
+		}
+
+		return inList.matcher(sb).replaceAll("$1 (?)");
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c) {
+		return isDigit(c) || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+	}
+
+	private static boolean isNumber(String sql, int i) {
+		int n = sql.length();
+		if (i >= n)
+			return false;
+		char c = sql.charAt(i);
+		return isDigit(c) || c == '.' && i + 1 < n && isDigit(sql.charAt(i + 1));
+	}
+
+	/**
+	 * Whether a {@code +} or {@code -} after the normalized SQL so far is a
+	 * sign, i.e. it does not follow an identifier, literal or closing
+	 * parenthesis.
+	 */
+	private static boolean isSignPosition(StringBuilder sb) {
+		int end = sb.length();
+		if (end != 0 && sb.charAt(end - 1) == ' ')
+			--end;
+		if (end == 0)
+			return true;
+
+		char c = sb.charAt(end - 1);
+		if (Character.isLetterOrDigit(c) || c == '_' || c == '$') {
+			int start = end;
+			while (start > 0 && (Character.isLetterOrDigit(sb.charAt(start - 1)) || sb.charAt(start - 1) == '_'
+					|| sb.charAt(start - 1) == '$'))
+				--start;
+			return signKeywords.contains(sb.substring(start, end).toUpperCase(Locale.ROOT));
+		}
+		return c != '?' && c != ')' && c != '"' && c != '`';
+	}
+
+	/**
+	 * Returns the index after the closing quote, doubled quotes are escapes.
+	 */
+	private static int skipQuoted(String sql, int i, char quote) {
+		int n = sql.length();
+		for (++i; i < n; ++i) {
+			if (sql.charAt(i) == quote) {
+				if (i + 1 < n && sql.charAt(i + 1) == quote)
+					++i;
+				else
+					return i + 1;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the index after a hexadecimal number with a {@code 0x} prefix,
+	 * or a decimal number with optional fraction and exponent.
+	 */
+	private static int skipNumber(String sql, int i) {
+		int n = sql.length();
+		if (sql.charAt(i) == '0' && i + 2 < n && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')
+				&& isHexDigit(sql.charAt(i + 2))) {
+			i += 2;
+			while (i < n && isHexDigit(sql.charAt(i)))
+				++i;
+			return i;
+		}
+
+		while (i < n && isDigit(sql.charAt(i)))
+			++i;
+		if (i < n && sql.charAt(i) == '.') {
+			++i;
+			while (i < n && isDigit(sql.charAt(i)))
+				++i;
+		}
+		if (i < n && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+			int j = i + 1;
+			if (j < n && (sql.charAt(j) == '+' || sql.charAt(j) == '-'))
+				++j;
+			if (j < n && isDigit(sql.charAt(j))) {
+				i = j;
+				while (i < n && isDigit(sql.charAt(i)))
+					++i;
+			}
+		}
+		return i;
+	}
+}
@@ -0,0 +1,135 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+
+/**
+ * An event recorded by {@link AsyncTracingCallback}. Events are slots of the
+ * ring buffer and reused, a {@link TraceExporter} must not keep a reference to
+ * them after it returns.
+ *
+ * Primitive results are kept unboxed in {@link #getValue()}, their type is
+ * given by the {@link Kind}.
+ *
+ * @author pms1
+ */
+public final class TraceEvent {
+	public enum Kind {
+		INIT_ENTER, INIT_EXCEPTION, ENTER, RETURN, RETURN_VOID, RETURN_BOOLEAN, RETURN_BYTE, RETURN_CHAR, RETURN_SHORT, RETURN_INT, RETURN_LONG, RETURN_FLOAT, RETURN_DOUBLE, EXCEPTION
+	}
+
+	Kind kind;
+	int method;
+	long threadId;
+	long nanoTime;
+	Object instance;
+	Object[] args;
+	Object result;
+	Throwable exception;
+	long value;
+	long elapsed;
+
+	TraceEvent() {
+	}
+
+	void set(Kind kind, int method, Object instance) {
+		this.kind = kind;
+		this.method = method;
+		this.threadId = Thread.currentThread().getId();
+		this.nanoTime = System.nanoTime();
+		this.instance = instance;
+		this.args = null;
+		this.result = null;
+		this.exception = null;
+		this.value = 0;
+		this.elapsed = -1;
+	}
+
+	/**
+	 * Drops the references so the slot does not keep objects alive.
+	 */
+	void clear() {
+		instance = null;
+		args = null;
+		result = null;
+		exception = null;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * The id of the method, see {@link MethodTable}.
+	 */
+	public int getMethod() {
+		return method;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * The {@link System#nanoTime()} when the event happened.
+	 */
+	public long getNanoTime() {
+		return nanoTime;
+	}
+
+	/**
+	 * The time the method took for exit events reported by code instrumented
+	 * with timing, -1 otherwise.
+	 */
+	public long getElapsedNanos() {
+		return elapsed;
+	}
+
+	public Object getInstance() {
+		return instance;
+	}
+
+	public Object[] getArgs() {
+		return args;
+	}
+
+	public Throwable getException() {
+		return exception;
+	}
+
+	/**
+	 * The raw value of a primitive result: {@code 0} or {@code 1} for
+	 * booleans, the bits of {@link Float#floatToRawIntBits(float)} and
+	 * {@link Double#doubleToRawLongBits(double)} for floating point results.
+	 */
+	public long getValue() {
+		return value;
+	}
+
+	/**
+	 * The result of a {@code RETURN} event, primitive results are boxed.
+	 */
+	public Object getResult() {
+		switch (kind) {
+		case RETURN:
+			return result;
+		case RETURN_BOOLEAN:
+			return value != 0;
+		case RETURN_BYTE:
+			return (byte) value;
+		case RETURN_CHAR:
+			return (char) value;
+		case RETURN_SHORT:
+			return (short) value;
+		case RETURN_INT:
+			return (int) value;
+		case RETURN_LONG:
+			return value;
+		case RETURN_FLOAT:
+			return Float.intBitsToFloat((int) value);
+		case RETURN_DOUBLE:
+			return Double.longBitsToDouble(value);
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives the events of an {@link AsyncTracingCallback} on its background
+ * thread.
+ *
+ * @author pms1
+ */
+public interface TraceExporter extends Closeable {
+	/**
+	 * Exports an event. The event is reused after this method returns.
+	 */
+	void export(TraceEvent event) throws IOException;
+
+	/**
+	 * Called when the ring buffer was drained.
+	 */
+	void flush() throws IOException;
+}
@@ -0,0 +1,208 @@
+package com.github.pms1.jdbctracing.api;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class FilterTracingCallbackTest {
+	private static final int invoke = MethodTable.lookup("java/lang/reflect/InvocationHandler", "invoke",
+			"(Ljava/lang/Object;Ljava/lang/reflect/Method;[Ljava/lang/Object;)Ljava/lang/Object;");
+
+	private static final int createStatement = MethodTable.lookup("java/sql/Connection", "createStatement",
+			"()Ljava/sql/Statement;");
+
+	private static final int commit = MethodTable.lookup("java/sql/Connection", "commit", "()V");
+
+	private static final int nested = MethodTable.lookup("com/example/Driver", "nested", "()V");
+
+	/**
+	 * Counts the calls reaching it and records the method ids, unless
+	 * recording is turned off.
+	 */
+	static class Counting extends AbstractTracingCallback {
+		final List<String> events = new ArrayList<>();
+		boolean record = true;
+		int count;
+
+		private void record(String callback, int method) {
+			++count;
+			if (record)
+				events.add(callback + " " + MethodTable.getName(method));
+		}
+
+		@Override
+		public void initEnter(Object[] args, int method) {
+			record("initEnter", method);
+		}
+
+		@Override
+		public void initExitException(Throwable e, int method) {
+			record("initExitException", method);
+		}
+
+		@Override
+		public void enter(Object[] args, Object instance, int method) {
+			record("enter", method);
+		}
+
+		@Override
+		public void exitReturn(Object result, Object instance, int method) {
+			record("exitReturn", method);
+		}
+
+		@Override
+		public void exitReturn(Object instance, int method) {
+			record("exitReturnVoid", method);
+		}
+
+		@Override
+		public void exitException(Throwable e, Object instance, int method) {
+			record("exitException", method);
+		}
+	}
+
+	private static final InvocationHandler handler = new InvocationHandler() {
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			return null;
+		}
+	};
+
+	private static final Connection connection = (Connection) Proxy.newProxyInstance(
+			FilterTracingCallbackTest.class.getClassLoader(), new Class<?>[] { Connection.class }, handler);
+
+	private static Object[] invokeArgs(String name) throws NoSuchMethodException {
+		return new Object[] { connection, Connection.class.getMethod(name), null };
+	}
+
+	@Test
+	public void proxiedMethods() throws Exception {
+		Counting next = new Counting();
+		FilterTracingCallback filter = new FilterTracingCallback(next);
+
+		Object[] args = invokeArgs("createStatement");
+		filter.enter(args, handler, invoke);
+		filter.exitReturn(null, handler, invoke);
+
+		args = invokeArgs("commit");
+		filter.enter(args, handler, invoke);
+		filter.exitReturn(null, handler, invoke);
+
+		List<String> expected = new ArrayList<>();
+		expected.add("enter createStatement");
+		expected.add("exitReturn createStatement");
+		expected.add("enter commit");
+		expected.add("exitReturnVoid commit");
+		Assert.assertEquals(expected, next.events);
+	}
+
+	@Test
+	public void resolvedOncePerMethod() throws Exception {
+		FilterTracingCallback filter = new FilterTracingCallback(new Counting());
+		Method m = Connection.class.getMethod("createStatement");
+		Object[] args = { connection, m, null };
+
+		filter.enter(args, handler, invoke);
+		filter.exitReturn(null, handler, invoke);
+		FilterTracingCallback.Resolved first = FilterTracingCallback.resolved.get(Connection.class).get(m);
+		Assert.assertNotNull(first);
+		Assert.assertEquals(createStatement, first.method);
+		Assert.assertFalse(first.isVoid);
+
+		// another filter and another Method instance for the same method
+		filter = new FilterTracingCallback(new Counting());
+		Method m2 = Connection.class.getMethod("createStatement");
+		filter.enter(new Object[] { connection, m2, null }, handler, invoke);
+		filter.exitReturn(null, handler, invoke);
+		Assert.assertSame(first, FilterTracingCallback.resolved.get(Connection.class).get(m2));
+
+		Method c = Connection.class.getMethod("commit");
+		filter.enter(new Object[] { connection, c, null }, handler, invoke);
+		filter.exitReturn(null, handler, invoke);
+		FilterTracingCallback.Resolved resolvedCommit = FilterTracingCallback.resolved.get(Connection.class).get(c);
+		Assert.assertEquals(commit, resolvedCommit.method);
+		Assert.assertTrue(resolvedCommit.isVoid);
+		Assert.assertSame(first, FilterTracingCallback.resolved.get(Connection.class).get(m));
+	}
+
+	@Test
+	public void nestedCallsSuppressed() {
+		Counting next = new Counting();
+		FilterTracingCallback filter = new FilterTracingCallback(next);
+
+		filter.enter(null, null, commit);
+		filter.enter(null, null, nested);
+		filter.exitReturnInt(1, null, nested);
+		filter.enter(null, null, nested);
+		filter.exitException(new RuntimeException(), null, nested);
+		filter.exitReturn(null, commit);
+
+		List<String> expected = new ArrayList<>();
+		expected.add("enter commit");
+		expected.add("exitReturnVoid commit");
+		Assert.assertEquals(expected, next.events);
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+
+	/**
+	 * The bytes allocated by {@code calls} calls of the method, each with a
+	 * nested call, less the bytes allocated by measuring.
+	 */
+	private static long allocated(FilterTracingCallback filter, Object[] args, Object instance, int method,
+			int calls) {
+		long baseline = allocatedBytes();
+		baseline = allocatedBytes() - baseline;
+
+		long start = allocatedBytes();
+		for (int i = 0; i != calls; ++i) {
+			filter.enter(args, instance, method);
+			filter.enter(null, null, nested);
+			filter.exitReturn(null, nested);
+			filter.exitReturn(null, instance, method);
+		}
+		return allocatedBytes() - start - baseline;
+	}
+
+	private static void assertNoAllocation(Object[] args, Object instance, int method) {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+		((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+
+		Counting next = new Counting();
+		next.record = false;
+		FilterTracingCallback filter = new FilterTracingCallback(next);
+
+		// the first calls create the per-thread state and resolve proxied
+		// methods
+		allocated(filter, args, instance, method, 1000);
+
+		int calls = 100000;
+		long bytes = allocated(filter, args, instance, method, calls);
+		Assert.assertEquals(2 * (1000 + calls), next.count);
+		// a single allocation per call would be at least 16 bytes each
+		Assert.assertTrue(bytes + " bytes allocated", bytes < calls);
+	}
+
+	@Test
+	public void noAllocation() {
+		assertNoAllocation(null, null, commit);
+	}
+
+	@Test
+	public void noAllocationProxied() throws NoSuchMethodException {
+		assertNoAllocation(invokeArgs("commit"), handler, invoke);
+	}
+}
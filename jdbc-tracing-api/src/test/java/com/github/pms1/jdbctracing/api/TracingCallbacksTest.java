@@ -0,0 +1,128 @@
+package com.github.pms1.jdbctracing.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracingCallbacksTest {
+	private static final List<String> events = new ArrayList<String>();
+
+	private static final int method = MethodTable.lookup("com/example/Test", "run", "()V");
+
+	/**
+	 * Records the enter calls under a name. Registered for the
+	 * {@link java.util.ServiceLoader} as {@link Service}.
+	 */
+	public static abstract class Recording extends AbstractTracingCallback {
+		private final String name;
+
+		protected Recording(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void initEnter(Object[] args, int method) {
+		}
+
+		@Override
+		public void initExitException(Throwable e, int method) {
+		}
+
+		@Override
+		public void enter(Object[] args, Object instance, int method) {
+			events.add(name + " " + MethodTable.getName(method));
+		}
+
+		@Override
+		public void exitReturn(Object result, Object instance, int method) {
+		}
+
+		@Override
+		public void exitReturn(Object instance, int method) {
+		}
+
+		@Override
+		public void exitException(Throwable e, Object instance, int method) {
+		}
+	}
+
+	public static class First extends Recording {
+		public First() {
+			super("first");
+		}
+	}
+
+	public static class Second extends Recording {
+		public Second() {
+			super("second");
+		}
+	}
+
+	public static class Service extends Recording {
+		public Service() {
+			super("service");
+		}
+	}
+
+	@Before
+	@After
+	public void reset() {
+		System.clearProperty(TracingCallbacks.PROPERTY);
+		events.clear();
+	}
+
+	private static List<String> enter(TracingCallback callback) {
+		callback.enter(null, null, method);
+		callback.exitReturn(null, method);
+		return events;
+	}
+
+	@Test
+	public void serviceLoader() {
+		TracingCallback callback = TracingCallbacks.create();
+
+		Assert.assertEquals(FilterTracingCallback.class, callback.getClass());
+		Assert.assertEquals(Arrays.asList("service run"), enter(callback));
+	}
+
+	@Test
+	public void single() {
+		System.setProperty(TracingCallbacks.PROPERTY, First.class.getName());
+		TracingCallback callback = TracingCallbacks.create();
+
+		Assert.assertEquals(FilterTracingCallback.class, callback.getClass());
+		Assert.assertEquals(Arrays.asList("first run"), enter(callback));
+	}
+
+	@Test
+	public void composite() {
+		System.setProperty(TracingCallbacks.PROPERTY, " " + First.class.getName() + " ,, " + Second.class.getName());
+		TracingCallback callback = TracingCallbacks.create();
+
+		Assert.assertEquals(FilterTracingCallback.class, callback.getClass());
+		Assert.assertEquals(Arrays.asList("first run", "second run"), enter(callback));
+	}
+
+	@Test
+	public void none() {
+		for (String property : new String[] { "none", " none ", "", " ", ",", " , ," }) {
+			System.setProperty(TracingCallbacks.PROPERTY, property);
+			TracingCallback callback = TracingCallbacks.create();
+
+			Assert.assertEquals(property, CompositeTracingCallback.class, callback.getClass());
+			Assert.assertEquals(property, Collections.emptyList(), enter(callback));
+		}
+	}
+
+	@Test(expected = Error.class)
+	public void notACallback() {
+		System.setProperty(TracingCallbacks.PROPERTY, String.class.getName());
+		TracingCallbacks.create();
+	}
+}
@@ -0,0 +1,239 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.github.pms1.jdbctracing.tracers.AsyncTracingCallback.OverflowPolicy;
+
+public class AsyncTracingCallbackTest {
+	/**
+	 * Records the method ids of the exported events. The export waits for
+	 * {@link #release} and fails for the ids listed in {@link #failing}.
+	 */
+	static class Exporter implements TraceExporter {
+		final List<Integer> methods = Collections.synchronizedList(new ArrayList<Integer>());
+
+		final CountDownLatch started = new CountDownLatch(1);
+
+		final CountDownLatch release;
+
+		final List<Integer> failing;
+
+		boolean failClose;
+
+		volatile boolean closed;
+
+		Exporter(boolean blocked, Integer... failing) {
+			this.release = new CountDownLatch(blocked ? 1 : 0);
+			this.failing = Arrays.asList(failing);
+		}
+
+		@Override
+		public void export(TraceEvent event) throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (failing.contains(event.getMethod())) {
+				if (event.getMethod() % 2 == 0)
+					throw new IOException();
+				throw new IllegalStateException();
+			}
+			methods.add(event.getMethod());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			if (failClose)
+				throw new IOException();
+		}
+	}
+
+	private static List<Integer> range(int from, int to) {
+		List<Integer> result = new ArrayList<>();
+		for (int i = from; i != to; ++i)
+			result.add(i);
+		return result;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityNotPowerOfTwo() {
+		new AsyncTracingCallback(new Exporter(false), 3, OverflowPolicy.DROP);
+	}
+
+	@Test
+	public void exportsInOrder() {
+		Exporter exporter = new Exporter(false);
+		AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 4, OverflowPolicy.BLOCK);
+		for (int i = 0; i != 100; ++i)
+			cb.enter(null, null, i);
+		cb.close();
+
+		Assert.assertEquals(range(0, 100), exporter.methods);
+		Assert.assertEquals(100, cb.getPublished());
+		Assert.assertEquals(0, cb.getDropped());
+		Assert.assertEquals(0, cb.getFailed());
+		Assert.assertTrue(exporter.closed);
+	}
+
+	@Test
+	public void dropWhenFull() {
+		Exporter exporter = new Exporter(true);
+		AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 4, OverflowPolicy.DROP);
+
+		// the slot being exported is only freed once the export returns, so
+		// the buffer holds four events no matter how far the drainer got
+		for (int i = 0; i != 10; ++i)
+			cb.enter(null, null, i);
+		Assert.assertEquals(4, cb.getPublished());
+		Assert.assertEquals(6, cb.getDropped());
+
+		exporter.release.countDown();
+		cb.close();
+
+		Assert.assertEquals(range(0, 4), exporter.methods);
+		Assert.assertEquals(6, cb.getDropped());
+		Assert.assertEquals(0, cb.getFailed());
+	}
+
+	@Test
+	public void blockWhenFull() throws InterruptedException {
+		Exporter exporter = new Exporter(true);
+		final AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 2, OverflowPolicy.BLOCK);
+
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i != 10; ++i)
+					cb.enter(null, null, i);
+			}
+		};
+		producer.start();
+
+		Assert.assertTrue(exporter.started.await(10, TimeUnit.SECONDS));
+		producer.join(100);
+		Assert.assertTrue(producer.isAlive());
+		Assert.assertEquals(2, cb.getPublished());
+
+		exporter.release.countDown();
+		producer.join(10000);
+		Assert.assertFalse(producer.isAlive());
+		cb.close();
+
+		Assert.assertEquals(range(0, 10), exporter.methods);
+		Assert.assertEquals(10, cb.getPublished());
+		Assert.assertEquals(0, cb.getDropped());
+	}
+
+	@Test
+	public void concurrentProducers() throws InterruptedException {
+		final int threads = 4;
+		final int events = 10000;
+
+		Exporter exporter = new Exporter(false);
+		final AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 64, OverflowPolicy.BLOCK);
+
+		Thread[] producers = new Thread[threads];
+		for (int t = 0; t != threads; ++t) {
+			final int thread = t;
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i != events; ++i)
+						cb.enter(null, null, thread * events + i);
+				}
+			};
+			producers[t].start();
+		}
+		for (Thread t : producers)
+			t.join();
+		cb.close();
+
+		Assert.assertEquals(threads * events, exporter.methods.size());
+		Assert.assertEquals(threads * events, cb.getPublished());
+		Assert.assertEquals(0, cb.getDropped());
+
+		// each producer's events arrive complete and in its order
+		int[] next = new int[threads];
+		for (int method : exporter.methods) {
+			int thread = method / events;
+			Assert.assertEquals(thread * events + next[thread], method);
+			++next[thread];
+		}
+	}
+
+	@Test
+	public void failures() {
+		Exporter exporter = new Exporter(false, 1, 2, 5);
+		exporter.failClose = true;
+		AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 4, OverflowPolicy.BLOCK);
+		for (int i = 0; i != 8; ++i)
+			cb.enter(null, null, i);
+		cb.close();
+
+		Assert.assertEquals(Arrays.asList(0, 3, 4, 6, 7), exporter.methods);
+		Assert.assertEquals(8, cb.getPublished());
+		Assert.assertEquals(4, cb.getFailed());
+	}
+
+	@Test
+	public void dropAfterClose() {
+		Exporter exporter = new Exporter(false);
+		AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 4, OverflowPolicy.BLOCK);
+		cb.enter(null, null, 0);
+		cb.close();
+		cb.enter(null, null, 1);
+		cb.exitReturn(null, null, 2);
+		cb.close();
+
+		Assert.assertEquals(Arrays.asList(0), exporter.methods);
+		Assert.assertEquals(1, cb.getPublished());
+		Assert.assertEquals(2, cb.getDropped());
+	}
+
+	@Test
+	public void closeWhileProducing() throws InterruptedException {
+		final int threads = 4;
+		final int events = 100000;
+
+		Exporter exporter = new Exporter(false);
+		final AsyncTracingCallback cb = new AsyncTracingCallback(exporter, 64, OverflowPolicy.BLOCK);
+
+		final CountDownLatch running = new CountDownLatch(threads);
+		Thread[] producers = new Thread[threads];
+		for (int t = 0; t != threads; ++t) {
+			producers[t] = new Thread() {
+				@Override
+				public void run() {
+					running.countDown();
+					for (int i = 0; i != events; ++i)
+						cb.enter(null, null, i);
+				}
+			};
+			producers[t].start();
+		}
+		running.await();
+		cb.close();
+		for (Thread t : producers)
+			t.join();
+
+		// every event is either exported or counted as dropped
+		Assert.assertEquals(cb.getPublished(), exporter.methods.size());
+		Assert.assertEquals(threads * events, cb.getPublished() + cb.getDropped());
+	}
+}
@@ -0,0 +1,278 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+import com.github.pms1.jdbctracing.tracers.BinaryTraceReader.ValueType;
+
+public class BinaryTraceTest {
+	private static final int SEGMENT_SIZE = 4096;
+
+	private static final int execute = MethodTable.lookup("java/sql/Statement", "execute", "(Ljava/lang/String;)Z");
+
+	private static final int executeUpdate = MethodTable.lookup("java/sql/Statement", "executeUpdate",
+			"(Ljava/lang/String;)I");
+
+	private static final int close = MethodTable.lookup("java/sql/Statement", "close", "()V");
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final TraceEvent event = new TraceEvent();
+
+	private TraceEvent event(TraceEvent.Kind kind, int method, Object instance) {
+		event.set(kind, method, instance);
+		return event;
+	}
+
+	private static String sql(int i) {
+		return "select " + i + " from dual";
+	}
+
+	private void assertEvent(BinaryTraceReader reader, TraceEvent.Kind kind, int method) throws IOException {
+		Assert.assertTrue(reader.next());
+		Assert.assertEquals(kind, reader.getKind());
+		Assert.assertEquals(method, reader.getMethod());
+		Assert.assertEquals(MethodTable.getClassName(method), reader.getClassName());
+		Assert.assertEquals(MethodTable.getName(method), reader.getMethodName());
+		Assert.assertEquals(MethodTable.getSignature(method), reader.getSignature());
+		Assert.assertEquals(Thread.currentThread().getId(), reader.getThreadId());
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		Object instance = new Object();
+
+		long start = System.nanoTime();
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE)) {
+			TraceEvent e = event(TraceEvent.Kind.ENTER, execute, instance);
+			e.args = new Object[] { sql(1) };
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.RETURN_BOOLEAN, execute, instance);
+			e.value = 1;
+			e.elapsed = 1234;
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.ENTER, executeUpdate, instance);
+			e.args = new Object[] { null, 42 };
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.RETURN_INT, executeUpdate, instance);
+			e.value = -5;
+			e.elapsed = 0;
+			exporter.export(e);
+
+			exporter.export(event(TraceEvent.Kind.ENTER, close, null));
+
+			e = event(TraceEvent.Kind.EXCEPTION, close, null);
+			e.exception = new IllegalStateException();
+			e.elapsed = Long.MAX_VALUE - 1;
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.RETURN, execute, instance);
+			e.result = sql(1);
+			exporter.export(e);
+		}
+		long end = System.nanoTime();
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+			Assert.assertEquals(System.identityHashCode(instance), reader.getInstanceHash());
+			Assert.assertTrue(reader.getNanoTime() >= start && reader.getNanoTime() <= end);
+			Assert.assertEquals(1, reader.getArgCount());
+			Assert.assertEquals(ValueType.STRING, reader.getArgType(0));
+			Assert.assertEquals(sql(1), reader.getArg(0));
+			Assert.assertEquals(-1, reader.getElapsedNanos());
+
+			assertEvent(reader, TraceEvent.Kind.RETURN_BOOLEAN, execute);
+			Assert.assertEquals(1, reader.getValue());
+			Assert.assertEquals(1234, reader.getElapsedNanos());
+
+			assertEvent(reader, TraceEvent.Kind.ENTER, executeUpdate);
+			Assert.assertEquals(2, reader.getArgCount());
+			Assert.assertEquals(ValueType.NULL, reader.getArgType(0));
+			Assert.assertNull(reader.getArg(0));
+			Assert.assertEquals(ValueType.OBJECT, reader.getArgType(1));
+			Assert.assertEquals(Integer.class.getName(), reader.getArg(1));
+
+			assertEvent(reader, TraceEvent.Kind.RETURN_INT, executeUpdate);
+			Assert.assertEquals(-5, reader.getValue());
+			Assert.assertEquals(0, reader.getElapsedNanos());
+
+			assertEvent(reader, TraceEvent.Kind.ENTER, close);
+			Assert.assertEquals(0, reader.getInstanceHash());
+			Assert.assertEquals(-1, reader.getArgCount());
+
+			assertEvent(reader, TraceEvent.Kind.EXCEPTION, close);
+			Assert.assertEquals(ValueType.OBJECT, reader.getResultType());
+			Assert.assertEquals(IllegalStateException.class.getName(), reader.getResult());
+			Assert.assertEquals(Long.MAX_VALUE - 1, reader.getElapsedNanos());
+
+			assertEvent(reader, TraceEvent.Kind.RETURN, execute);
+			Assert.assertEquals(ValueType.STRING, reader.getResultType());
+			Assert.assertEquals(sql(1), reader.getResult());
+			// not timed
+			Assert.assertEquals(-1, reader.getElapsedNanos());
+
+			Assert.assertFalse(reader.next());
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void truncateOnClose() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE)) {
+			exporter.export(event(TraceEvent.Kind.ENTER, close, null));
+			exporter.export(event(TraceEvent.Kind.RETURN_VOID, close, null));
+		}
+
+		long size = Files.size(file);
+		Assert.assertTrue(size < SEGMENT_SIZE);
+		// the last byte is the end record
+		Assert.assertEquals(BinaryTraceFormat.END, Files.readAllBytes(file)[(int) size - 1]);
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			assertEvent(reader, TraceEvent.Kind.ENTER, close);
+			assertEvent(reader, TraceEvent.Kind.RETURN_VOID, close);
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void emptyTrace() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		new BinaryTraceExporter(file, SEGMENT_SIZE).close();
+
+		Assert.assertEquals(BinaryTraceFormat.HEADER_SIZE + 1, Files.size(file));
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void segmentRollover() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		int count = 2000;
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE)) {
+			for (int i = 0; i != count; ++i) {
+				TraceEvent e = event(TraceEvent.Kind.ENTER, execute, null);
+				e.args = new Object[] { sql(i) };
+				exporter.export(e);
+			}
+		}
+		Assert.assertTrue(Files.size(file) > 10 * SEGMENT_SIZE);
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			for (int i = 0; i != count; ++i) {
+				assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+				Assert.assertEquals(sql(i), reader.getArg(0));
+			}
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void stringRedefinition() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		// the method record alone needs three strings, each event one more
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE, 2)) {
+			for (int i = 0; i != 20; ++i) {
+				TraceEvent e = event(TraceEvent.Kind.ENTER, execute, null);
+				e.args = new Object[] { sql(i % 5) };
+				exporter.export(e);
+			}
+
+			// more strings than the dictionary holds in a single event
+			TraceEvent e = event(TraceEvent.Kind.ENTER, executeUpdate, null);
+			e.args = new Object[] { sql(10), sql(11), sql(12), sql(13) };
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.ENTER, execute, null);
+			e.args = new Object[] { sql(0) };
+			exporter.export(e);
+		}
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			for (int i = 0; i != 20; ++i) {
+				assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+				Assert.assertEquals(sql(i % 5), reader.getArg(0));
+			}
+
+			assertEvent(reader, TraceEvent.Kind.ENTER, executeUpdate);
+			Assert.assertEquals(4, reader.getArgCount());
+			for (int i = 0; i != 4; ++i)
+				Assert.assertEquals(sql(10 + i), reader.getArg(i));
+
+			assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+			Assert.assertEquals(sql(0), reader.getArg(0));
+
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void longString() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		StringBuilder b = new StringBuilder("x");
+		for (int i = 0; i != SEGMENT_SIZE; ++i)
+			b.append('\u20AC');
+		String sql = b.toString();
+
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE)) {
+			TraceEvent e = event(TraceEvent.Kind.ENTER, execute, null);
+			e.args = new Object[] { sql };
+			exporter.export(e);
+		}
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+			String arg = (String) reader.getArg(0);
+			// truncated at a character boundary, i.e. a prefix without a
+			// replacement character
+			Assert.assertTrue(arg.length() > SEGMENT_SIZE / 4);
+			Assert.assertTrue(arg.length() < sql.length());
+			Assert.assertTrue(sql.startsWith(arg));
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void manyArguments() throws IOException {
+		Path file = folder.getRoot().toPath().resolve("trace.bin");
+		Object[] args = new Object[SEGMENT_SIZE];
+		for (int i = 0; i != args.length; ++i)
+			args[i] = i % 2 == 0 ? null : i;
+
+		try (BinaryTraceExporter exporter = new BinaryTraceExporter(file, SEGMENT_SIZE)) {
+			TraceEvent e = event(TraceEvent.Kind.ENTER, execute, null);
+			e.args = args;
+			exporter.export(e);
+
+			e = event(TraceEvent.Kind.ENTER, close, null);
+			e.args = new Object[] { sql(1) };
+			exporter.export(e);
+		}
+
+		try (BinaryTraceReader reader = new BinaryTraceReader(file)) {
+			assertEvent(reader, TraceEvent.Kind.ENTER, execute);
+			int count = reader.getArgCount();
+			Assert.assertTrue(count > 0 && count < args.length);
+			for (int i = 0; i != count; ++i)
+				Assert.assertEquals(i % 2 == 0 ? null : Integer.class.getName(), reader.getArg(i));
+
+			assertEvent(reader, TraceEvent.Kind.ENTER, close);
+			Assert.assertEquals(sql(1), reader.getArg(0));
+			Assert.assertFalse(reader.next());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	private static final long S = LatencyHistogram.SLOT_NANOS;
+
+	/**
+	 * A time after the origin of the histograms, adding whole slots to it
+	 * moves to the following epochs.
+	 */
+	private final long t0 = now();
+
+	private static long now() {
+		LatencyHistogram.epoch(0);
+		return System.nanoTime();
+	}
+
+	@Test
+	public void buckets() {
+		Assert.assertEquals(0, LatencyHistogram.index(-1));
+		for (long v = 0; v != LatencyHistogram.SUB; ++v) {
+			Assert.assertEquals(v, LatencyHistogram.index(v));
+			Assert.assertEquals(v, LatencyHistogram.upperBound((int) v));
+		}
+
+		long limit = 1L << (LatencyHistogram.MAX_EXP + 1);
+		for (long v = LatencyHistogram.SUB; v < limit; v += 1 + v / 37) {
+			int i = LatencyHistogram.index(v);
+			Assert.assertTrue(v + " in " + i, LatencyHistogram.upperBound(i) >= v);
+			Assert.assertTrue(v + " in " + i, LatencyHistogram.upperBound(i - 1) < v);
+			// the width of a bucket is at most 1/SUB of its lower bound
+			long lower = LatencyHistogram.upperBound(i - 1) + 1;
+			Assert.assertTrue(v + " in " + i,
+					LatencyHistogram.upperBound(i) - lower + 1 <= Math.max(1, lower / LatencyHistogram.SUB));
+		}
+
+		Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(limit - 1));
+		Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(limit));
+		Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long v = 1; v <= 1000; ++v)
+			h.record(v * 1000, t0);
+
+		LatencySnapshot s = h.snapshot(7, "key", 1, t0);
+		Assert.assertEquals(7, s.getFingerprint());
+		Assert.assertEquals("key", s.getKey());
+		Assert.assertEquals(1000, s.getCount());
+		Assert.assertEquals(1000000, s.getMax());
+		assertBucket(500000, s.getP50());
+		// the bucket of 990000 also holds the maximum, which limits the result
+		Assert.assertEquals(LatencyHistogram.index(990000), LatencyHistogram.index(1000000));
+		Assert.assertEquals(1000000, s.getP99());
+		Assert.assertEquals(1000000, s.getP999());
+	}
+
+	private static void assertBucket(long expected, long actual) {
+		Assert.assertEquals(LatencyHistogram.upperBound(LatencyHistogram.index(expected)), actual);
+	}
+
+	@Test
+	public void empty() {
+		LatencySnapshot s = new LatencyHistogram().snapshot(0, "key", 4, t0);
+		Assert.assertEquals(0, s.getCount());
+		Assert.assertEquals(0, s.getP50());
+		Assert.assertEquals(0, s.getMax());
+	}
+
+	@Test
+	public void rotation() {
+		LatencyHistogram h = new LatencyHistogram();
+		int epochs = LatencyHistogram.SLOTS + 5;
+		for (int k = 0; k != epochs; ++k)
+			h.record(k + 1, t0 + k * S);
+		long now = t0 + (epochs - 1) * S;
+
+		LatencySnapshot one = h.snapshot(0, "key", LatencyTracingCallback.Window.ONE_MINUTE.slots, now);
+		Assert.assertEquals(LatencyTracingCallback.Window.ONE_MINUTE.slots, one.getCount());
+		Assert.assertEquals(epochs, one.getMax());
+
+		LatencySnapshot five = h.snapshot(0, "key", LatencyTracingCallback.Window.FIVE_MINUTES.slots, now);
+		Assert.assertEquals(LatencyTracingCallback.Window.FIVE_MINUTES.slots, five.getCount());
+
+		// a late recording for a slot that was already replaced is dropped
+		h.record(1000, t0);
+		Assert.assertEquals(LatencyHistogram.SLOTS, h.snapshot(0, "key", LatencyHistogram.SLOTS, now).getCount());
+
+		// slots in the future of the snapshot are left out
+		Assert.assertEquals(1, h.snapshot(0, "key", 1, now - S).getCount());
+
+		// after a gap the old slots fall out of the window
+		Assert.assertEquals(0, h.snapshot(0, "key", 4, now + 4 * S).getCount());
+	}
+
+	@Test
+	public void concurrent() throws InterruptedException {
+		final LatencyHistogram h = new LatencyHistogram();
+		final int threads = 8;
+		final int values = 100000;
+
+		Thread[] recorders = new Thread[threads];
+		for (int t = 0; t != threads; ++t) {
+			final long value = 1000 * (t + 1);
+			recorders[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i != values; ++i)
+						h.record(value, t0);
+				}
+			};
+			recorders[t].start();
+		}
+		for (Thread t : recorders)
+			t.join();
+
+		LatencySnapshot s = h.snapshot(0, "key", 1, t0);
+		Assert.assertEquals(threads * values, s.getCount());
+		Assert.assertEquals(1000 * threads, s.getMax());
+		assertBucket(1000 * threads / 2, s.getP50());
+	}
+}
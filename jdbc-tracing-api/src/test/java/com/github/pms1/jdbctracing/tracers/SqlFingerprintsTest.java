@@ -0,0 +1,76 @@
+package com.github.pms1.jdbctracing.tracers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SqlFingerprintsTest {
+	private static void assertNormalized(String expected, String sql) {
+		Assert.assertEquals(expected, SqlFingerprints.normalize(sql));
+	}
+
+	@Test
+	public void literals() {
+		assertNormalized("select * from t where id in (?)", "select * from t where id in (1, 2)");
+		assertNormalized("select * from t where id in (?)", "select * from t  where id in (3) -- x");
+		assertNormalized("select * from t where s = ? and x IN (?)", "select * from t where s = 'it''s' and x IN (1,2 , 3)");
+		assertNormalized("select t1.c2 from t1", "select t1.c2 from t1");
+	}
+
+	@Test
+	public void numbers() {
+		assertNormalized("select ?, ?, ?, ? from t", "select 1e10, 1.5E-3, .5, 2.e+7 from t");
+		assertNormalized("select ?, ? from t", "select 0x1F, 0XaB from t");
+		// hex digits and exponents only belong to the number where allowed
+		assertNormalized("select * from t where x=?and y=?", "select * from t where x=1and y=2");
+		assertNormalized("select ?e, ?x from t", "select 2e, 0x from t");
+	}
+
+	@Test
+	public void signs() {
+		assertNormalized("select ?, ? from t where a = ? and b > - ? and c in (?)",
+				"select -5, +3 from t where a = -1 and b > - 2 and c in (-1, -2)");
+		assertNormalized("select a-?, a -?, f(x)-?, ?-? from t", "select a-5, a -5, f(x)-1, 'a'-1 from t");
+		assertNormalized("select * from t where a = b - ?", "select * from t where a = b - -1");
+		assertNormalized("? from dual", "-1 from dual");
+	}
+
+	@Test
+	public void commentsAndQuoting() {
+		assertNormalized("select a from t", "select  /* c */ a\n\tfrom t");
+		assertNormalized("select a from t", "  select a -- c\nfrom t  ");
+		assertNormalized("select \"Col 1\", `x` from t where s = ?", "select \"Col 1\", `x` from t where s = 'a'");
+		assertNormalized("select a", "select a /* unterminated");
+	}
+
+	@Test
+	public void fingerprints() {
+		SqlFingerprints f = new SqlFingerprints(2, 16);
+		int a = f.fingerprint("select * from t where id = 1");
+		Assert.assertEquals(1, a);
+		Assert.assertEquals(a, f.fingerprint("select * from t where id = 2"));
+		Assert.assertEquals(a, f.fingerprint(new String("select * from t where id = 1")));
+		Assert.assertEquals("select * from t where id = ?", f.getNormalized(a));
+
+		int b = f.fingerprint("delete from t");
+		Assert.assertEquals(2, b);
+
+		// beyond the maximum
+		Assert.assertEquals(SqlFingerprints.OTHER, f.fingerprint("update t set x = 1"));
+		Assert.assertEquals(SqlFingerprints.OTHER, f.fingerprint("update t set y = 1"));
+		Assert.assertEquals(3, f.size());
+
+		// known fingerprints are still found
+		Assert.assertEquals(b, f.fingerprint("delete  from t"));
+	}
+
+	@Test
+	public void cacheCollisions() {
+		SqlFingerprints f = new SqlFingerprints(100, 1);
+		int a = f.fingerprint("select 1");
+		int b = f.fingerprint("select x from t");
+		Assert.assertNotEquals(a, b);
+		Assert.assertEquals(a, f.fingerprint("select 1"));
+		Assert.assertEquals(b, f.fingerprint("select x from t"));
+		Assert.assertEquals(3, f.size());
+	}
+}
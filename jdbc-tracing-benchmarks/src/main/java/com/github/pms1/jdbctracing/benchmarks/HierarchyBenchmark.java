@@ -0,0 +1,79 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore;
+
+/**
+ * Measures the marking phase on synthetic hierarchies of up to 20000 classes.
+ * The classes come in chains of {@value #DEPTH} classes, each chain
+ * implementing one of the JDBC interfaces of {@link SyntheticDriver}. The base
+ * class of a chain declares all methods of the interface, the subclasses
+ * override a part of them.
+ *
+ * Each round instruments the whole driver and takes the mark time from the
+ * statistics of the run, the best of {@code rounds} rounds is reported.
+ *
+ * Not a JMH benchmark, run with {@code main}.
+ *
+ * @author pms1
+ */
+public class HierarchyBenchmark {
+	private static final int DEPTH = 10;
+
+	public static void main(String[] args) throws IOException {
+		int[] sizes = { 5000, 10000, 20000 };
+		int rounds = 5;
+
+		Path directory = Files.createTempDirectory("jdbc-tracing-hierarchy");
+		Path in = directory.resolve("driver.jar");
+		Path out = directory.resolve("instrumented.jar");
+		try {
+			// warm up
+			write(in, sizes[0]);
+			for (int i = 0; i < rounds; ++i)
+				run(in, out);
+
+			for (int size : sizes) {
+				write(in, size);
+				long best = Long.MAX_VALUE;
+				for (int i = 0; i < rounds; ++i)
+					best = Math.min(best, run(in, out));
+				System.out.println(size + " classes: mark " + TimeUnit.NANOSECONDS.toMillis(best) + " ms, "
+						+ best / size + " ns/class");
+			}
+		} finally {
+			Files.deleteIfExists(in);
+			Files.deleteIfExists(out);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Writes a driver whose classes all implement a JDBC interface, split
+	 * evenly between the interfaces.
+	 */
+	private static void write(Path jar, int size) throws IOException {
+		SyntheticDriver driver = new SyntheticDriver();
+		driver.setClasses(size);
+		driver.setDepth(DEPTH);
+		driver.setMethods(1);
+		driver.setConnections(size / 3);
+		driver.setStatements(size / 3);
+		driver.setDataSources(size - 2 * (size / 3));
+		driver.write(jar);
+	}
+
+	/**
+	 * The mark time of one run.
+	 */
+	private static long run(Path in, Path out) throws IOException {
+		return InstumentationCore.run(Collections.singletonList(in), out, new InstrumentationOptions())
+				.getMarkNanos();
+	}
+}
@@ -0,0 +1,170 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.github.pms1.jdbctracing.api.core.CallSiteMode;
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+import com.github.pms1.jdbctracing.api.core.InstrumentationStatistics;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore;
+
+/**
+ * Instruments a {@link SyntheticDriver} several times the way
+ * {@code InstrumentMojo} does for input jars and reports the time per phase,
+ * the classes per second and the peak heap usage of each run, followed by the
+ * median of the measured runs.
+ *
+ * Options, all of the form {@code --name=value}: {@code classes},
+ * {@code depth}, {@code connections}, {@code statements},
+ * {@code dataSources}, {@code methods} configure the driver,
+ * {@code warmup} and {@code rounds} the number of runs, {@code parallel},
+ * {@code streaming}, {@code callSiteMode} and {@code outline} the
+ * {@link InstrumentationOptions}. If {@code minClassesPerSecond} is given,
+ * the harness exits with status 1 if the median is below it.
+ *
+ * @author pms1
+ */
+public class InstrumentationThroughput {
+	private static final class Result {
+		final InstrumentationStatistics statistics;
+		final long peakHeap;
+
+		Result(InstrumentationStatistics statistics, long peakHeap) {
+			this.statistics = statistics;
+			this.peakHeap = peakHeap;
+		}
+
+		double classesPerSecond() {
+			return statistics.getScanned() * (double) TimeUnit.SECONDS.toNanos(1) / statistics.getTotalNanos();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("scan %6d ms, mark %6d ms, rewrite %6d ms, %8.0f classes/s, peak heap %5d MB",
+					TimeUnit.NANOSECONDS.toMillis(statistics.getScanNanos()),
+					TimeUnit.NANOSECONDS.toMillis(statistics.getMarkNanos()),
+					TimeUnit.NANOSECONDS.toMillis(statistics.getRewriteNanos()), classesPerSecond(),
+					peakHeap >> 20);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		SyntheticDriver driver = new SyntheticDriver();
+		InstrumentationOptions options = new InstrumentationOptions();
+		int warmup = 2;
+		int rounds = 5;
+		double minClassesPerSecond = 0;
+
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			if (!arg.startsWith("--") || idx == -1)
+				throw new IllegalArgumentException("Expected --name=value: " + arg);
+			String name = arg.substring(2, idx);
+			String value = arg.substring(idx + 1);
+			switch (name) {
+			case "classes":
+				driver.setClasses(Integer.parseInt(value));
+				break;
+			case "depth":
+				driver.setDepth(Integer.parseInt(value));
+				break;
+			case "connections":
+				driver.setConnections(Integer.parseInt(value));
+				break;
+			case "statements":
+				driver.setStatements(Integer.parseInt(value));
+				break;
+			case "dataSources":
+				driver.setDataSources(Integer.parseInt(value));
+				break;
+			case "methods":
+				driver.setMethods(Integer.parseInt(value));
+				break;
+			case "warmup":
+				warmup = Integer.parseInt(value);
+				break;
+			case "rounds":
+				rounds = Integer.parseInt(value);
+				break;
+			case "parallel":
+				options.setParallel(Boolean.parseBoolean(value));
+				break;
+			case "streaming":
+				options.setStreaming(Boolean.parseBoolean(value));
+				break;
+			case "callSiteMode":
+				options.setCallSiteMode(CallSiteMode.valueOf(value));
+				break;
+			case "outline":
+				options.setOutline(Boolean.parseBoolean(value));
+				break;
+			case "minClassesPerSecond":
+				minClassesPerSecond = Double.parseDouble(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		Path directory = Files.createTempDirectory("jdbc-tracing-throughput");
+		Path in = directory.resolve("driver.jar");
+		Path out = directory.resolve("instrumented.jar");
+		try {
+			driver.write(in);
+			System.out.println(driver + ", jar " + (Files.size(in) >> 10) + " KB");
+
+			List<Result> results = new ArrayList<>();
+			for (int i = 0; i < warmup + rounds; ++i) {
+				Result r = run(in, out, options);
+				System.out.println((i < warmup ? "warmup " : "round  ") + (i < warmup ? i : i - warmup) + ": " + r);
+				if (i >= warmup)
+					results.add(r);
+			}
+
+			Collections.sort(results, Comparator.comparing(r -> r.statistics.getTotalNanos()));
+			Result median = results.get(results.size() / 2);
+			System.out.println("median  : " + median + " (" + median.statistics.getInstrumented()
+					+ " classes instrumented)");
+
+			if (median.classesPerSecond() < minClassesPerSecond) {
+				System.out.println(String.format("FAILED: %.0f classes/s is below the minimum of %.0f",
+						median.classesPerSecond(), minClassesPerSecond));
+				System.exit(1);
+			}
+		} finally {
+			Files.deleteIfExists(in);
+			Files.deleteIfExists(out);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * One run of {@link InstumentationCore}.
+	 */
+	private static Result run(Path in, Path out, InstrumentationOptions options) throws IOException {
+		System.gc();
+		List<MemoryPoolMXBean> pools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				pools.add(pool);
+			}
+
+		InstrumentationStatistics statistics = InstumentationCore.run(Collections.singletonList(in), out, options);
+
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : pools)
+			peakHeap += pool.getPeakUsage().getUsed();
+
+		return new Result(statistics, peakHeap);
+	}
+}
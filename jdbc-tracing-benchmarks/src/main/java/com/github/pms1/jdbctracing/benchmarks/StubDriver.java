@@ -0,0 +1,191 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.util.Enumeration;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.github.pms1.jdbctracing.api.TracingCallback;
+import com.github.pms1.jdbctracing.api.TracingCallbacks;
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore;
+import com.github.pms1.jdbctracing.benchmarks.stub.StubConnection;
+import com.github.pms1.jdbctracing.benchmarks.stub.StubInvocationHandler;
+import com.github.pms1.jdbctracing.tracers.LatencyTracingCallback;
+import com.github.pms1.jdbctracing.tracers.PrintTracingCallback;
+
+/**
+ * The stub driver of the {@code stub} package together with jdbc-tracing-api,
+ * copied to a directory, instrumented there and loaded by a class loader of
+ * its own. Each instance thus has its own {@code TracingCallback.instance},
+ * created for the {@link Tracer} when the first instrumented method is
+ * called.
+ *
+ * The instrumentation cannot read the class files of Java 9 and later. To run
+ * on such a JVM, e.g. for virtual threads, the directory is prepared by
+ * {@link #prepare(Path, InstrumentationOptions)} on Java 8 and passed to
+ * {@link #StubDriver(Tracer, Path)}.
+ *
+ * {@link System#out} is replaced by a stream discarding the output until
+ * {@link #close()}, so printing callbacks only pay for formatting.
+ *
+ * @author pms1
+ */
+public class StubDriver implements Closeable {
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private final Path directory;
+	private final boolean temporary;
+	private final URLClassLoader classLoader;
+	private final PrintStream out;
+
+	/**
+	 * Prepares the driver in a temporary directory, deleted by
+	 * {@link #close()}.
+	 */
+	public StubDriver(Tracer tracer, InstrumentationOptions options) throws IOException {
+		this(tracer, Files.createTempDirectory("jdbc-tracing-benchmark"), true);
+		try {
+			prepare(directory, tracer.isInstrumented() ? options : null);
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Loads the driver from a directory prepared by
+	 * {@link #prepare(Path, InstrumentationOptions)}, instrumented unless the
+	 * tracer is {@link Tracer#BASELINE}.
+	 */
+	public StubDriver(Tracer tracer, Path directory) throws IOException {
+		this(tracer, directory, false);
+	}
+
+	private StubDriver(Tracer tracer, Path directory, boolean temporary) throws IOException {
+		this.directory = directory;
+		this.temporary = temporary;
+
+		if (tracer.isInstrumented()) {
+			System.setProperty(TracingCallbacks.PROPERTY, tracer.getProperty());
+			System.setProperty(LatencyTracingCallback.REPORT_PROPERTY, "0");
+		}
+
+		classLoader = new URLClassLoader(new URL[] { directory.toUri().toURL() },
+				ClassLoader.getSystemClassLoader().getParent());
+
+		out = System.out;
+		System.setOut(new PrintStream(DISCARD));
+	}
+
+	/**
+	 * A new {@link StubConnection}.
+	 */
+	public Connection connect() throws ReflectiveOperationException {
+		return (Connection) classLoader.loadClass(StubConnection.class.getName()).newInstance();
+	}
+
+	/**
+	 * A proxy for a new {@link StubConnection} invoking it through a
+	 * {@link StubInvocationHandler}.
+	 */
+	public Connection connectProxied() throws ReflectiveOperationException {
+		InvocationHandler handler = (InvocationHandler) classLoader
+				.loadClass(StubInvocationHandler.class.getName()).getConstructor(Object.class)
+				.newInstance(connect());
+		return (Connection) Proxy.newProxyInstance(classLoader, new Class<?>[] { Connection.class }, handler);
+	}
+
+	/**
+	 * Copies the driver and jdbc-tracing-api to a directory and instruments
+	 * them with the options, if not {@code null}.
+	 */
+	public static void prepare(Path directory, InstrumentationOptions options) throws IOException {
+		copyPackage(TracingCallback.class, directory);
+		copyPackage(PrintTracingCallback.class, directory);
+		copyPackage(StubConnection.class, directory);
+
+		if (options != null)
+			InstumentationCore.run(directory, options);
+	}
+
+	@Override
+	public void close() throws IOException {
+		System.setOut(out);
+		classLoader.close();
+		if (!temporary)
+			return;
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Copies the classes of the package of a class, but not of its
+	 * subpackages, from the directory or jar the class was loaded from.
+	 */
+	private static void copyPackage(Class<?> c, Path directory) throws IOException {
+		String pkg = c.getPackage().getName().replace('.', '/') + "/";
+		Path target = directory.resolve(pkg);
+		Files.createDirectories(target);
+
+		Path location;
+		try {
+			location = Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+
+		if (Files.isDirectory(location)) {
+			try (Stream<Path> files = Files.list(location.resolve(pkg))) {
+				for (Path p : (Iterable<Path>) files::iterator)
+					if (Files.isRegularFile(p))
+						Files.copy(p, target.resolve(p.getFileName().toString()));
+			}
+		} else {
+			try (ZipFile zip = new ZipFile(location.toFile())) {
+				for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+					ZipEntry ze = e.nextElement();
+					String name = ze.getName();
+					if (ze.isDirectory() || !name.startsWith(pkg) || name.indexOf('/', pkg.length()) != -1)
+						continue;
+					Files.copy(zip.getInputStream(ze), target.resolve(name.substring(pkg.length())));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.sql.DataSource;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates the classes of a driver of a given size into a jar.
+ *
+ * The classes come in chains of {@link #depth} classes, each extending the
+ * previous one. The first class of a chain of implementors declares all
+ * methods of its JDBC interface, each subclass overrides a part of them. The
+ * remaining classes form chains that do not implement a JDBC interface. Every
+ * class additionally declares {@link #methods} methods of its own.
+ *
+ * @author pms1
+ */
+public class SyntheticDriver {
+	private int classes = 10000;
+	private int depth = 5;
+	private int connections = 50;
+	private int statements = 200;
+	private int dataSources = 10;
+	private int methods = 10;
+
+	public void setClasses(int classes) {
+		this.classes = classes;
+	}
+
+	public void setDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("depth must be positive: " + depth);
+		this.depth = depth;
+	}
+
+	/**
+	 * The number of classes implementing {@link Connection}.
+	 */
+	public void setConnections(int connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * The number of classes implementing {@link PreparedStatement}.
+	 */
+	public void setStatements(int statements) {
+		this.statements = statements;
+	}
+
+	/**
+	 * The number of classes implementing {@link DataSource}.
+	 */
+	public void setDataSources(int dataSources) {
+		this.dataSources = dataSources;
+	}
+
+	/**
+	 * The number of methods each class declares in addition to the JDBC
+	 * methods.
+	 */
+	public void setMethods(int methods) {
+		this.methods = methods;
+	}
+
+	public int getClasses() {
+		return classes;
+	}
+
+	@Override
+	public String toString() {
+		return classes + " classes, depth " + depth + ", " + connections + " connections, " + statements
+				+ " statements, " + dataSources + " data sources, " + methods + " methods per class";
+	}
+
+	public void write(Path jar) throws IOException {
+		if (connections + statements + dataSources > classes)
+			throw new IllegalArgumentException("More implementors than classes: " + this);
+
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(jar))) {
+			int next = 0;
+			next = writeChains(zos, next, connections, Connection.class);
+			next = writeChains(zos, next, statements, PreparedStatement.class);
+			next = writeChains(zos, next, dataSources, DataSource.class);
+			writeChains(zos, next, classes - next, null);
+		}
+	}
+
+	/**
+	 * Writes {@code count} classes numbered from {@code first}, returns the
+	 * number of the next class.
+	 */
+	private int writeChains(ZipOutputStream zos, int first, int count, Class<?> itf) throws IOException {
+		List<Method> jdbc = itf == null ? new ArrayList<Method>() : interfaceMethods(itf);
+
+		for (int i = 0; i < count; ++i) {
+			int level = i % depth;
+			String name = name(first + i);
+			String superName = level == 0 ? "java/lang/Object" : name(first + i - 1);
+			String[] interfaces = level == 0 && itf != null ? new String[] { Type.getInternalName(itf) }
+					: new String[0];
+
+			List<Method> declared = new ArrayList<>();
+			for (int j = 0; j < jdbc.size(); ++j)
+				if (level == 0 || j % depth == level)
+					declared.add(jdbc.get(j));
+
+			zos.putNextEntry(new ZipEntry(name + ".class"));
+			zos.write(generate(name, superName, interfaces, declared));
+			zos.closeEntry();
+		}
+
+		return first + count;
+	}
+
+	private static String name(int i) {
+		return "synthetic/p" + i / 100 + "/C" + i;
+	}
+
+	private static List<Method> interfaceMethods(Class<?> itf) {
+		Map<String, Method> result = new LinkedHashMap<>();
+		for (Method m : itf.getMethods())
+			if (!Modifier.isStatic(m.getModifiers()) && !m.isDefault())
+				result.putIfAbsent(m.getName() + Type.getMethodDescriptor(m), m);
+		return new ArrayList<>(result.values());
+	}
+
+	private byte[] generate(String name, String superName, String[] interfaces, List<Method> jdbc) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, interfaces);
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		for (Method m : jdbc)
+			generateMethod(cw, m.getName(), Type.getMethodDescriptor(m));
+		for (int i = 0; i < methods; ++i)
+			generateMethod(cw, "m" + i, "(I)I");
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * A method returning the default value of its return type.
+	 */
+	private static void generateMethod(ClassWriter cw, String name, String desc) {
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, name, desc, null, null);
+		mv.visitCode();
+		Type returnType = Type.getReturnType(desc);
+		switch (returnType.getSort()) {
+		case Type.VOID:
+			break;
+		case Type.OBJECT:
+		case Type.ARRAY:
+			mv.visitInsn(Opcodes.ACONST_NULL);
+			break;
+		case Type.LONG:
+			mv.visitInsn(Opcodes.LCONST_0);
+			break;
+		case Type.FLOAT:
+			mv.visitInsn(Opcodes.FCONST_0);
+			break;
+		case Type.DOUBLE:
+			mv.visitInsn(Opcodes.DCONST_0);
+			break;
+		default:
+			mv.visitInsn(Opcodes.ICONST_0);
+			break;
+		}
+		mv.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+}
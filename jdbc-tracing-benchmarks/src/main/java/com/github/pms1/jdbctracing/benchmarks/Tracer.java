@@ -0,0 +1,57 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import com.github.pms1.jdbctracing.api.TracingCallbacks;
+import com.github.pms1.jdbctracing.benchmarks.stub.NoopTracingCallback;
+import com.github.pms1.jdbctracing.tracers.AsyncTracingCallback;
+import com.github.pms1.jdbctracing.tracers.LatencyTracingCallback;
+import com.github.pms1.jdbctracing.tracers.PrintTracingCallback;
+
+/**
+ * The callbacks compared by the benchmarks, selected through
+ * {@link TracingCallbacks#PROPERTY}. All but {@link #NONE} are wrapped into a
+ * {@code FilterTracingCallback} by {@link TracingCallbacks}.
+ *
+ * @author pms1
+ */
+public enum Tracer {
+	/**
+	 * The stub driver is not instrumented.
+	 */
+	BASELINE(null),
+	/**
+	 * Instrumented, the callback ignores all events without filtering.
+	 */
+	NONE("none"),
+	/**
+	 * The filtering alone.
+	 */
+	FILTER(NoopTracingCallback.class.getName()),
+	/**
+	 * {@link PrintTracingCallback}, printing to a stream that discards the
+	 * output.
+	 */
+	PRINT(PrintTracingCallback.class.getName()),
+	LATENCY(LatencyTracingCallback.class.getName()),
+	/**
+	 * {@link AsyncTracingCallback} exporting to a stream that discards the
+	 * output.
+	 */
+	ASYNC(AsyncTracingCallback.class.getName());
+
+	private final String property;
+
+	Tracer(String property) {
+		this.property = property;
+	}
+
+	public boolean isInstrumented() {
+		return property != null;
+	}
+
+	/**
+	 * The value of {@link TracingCallbacks#PROPERTY}.
+	 */
+	String getProperty() {
+		return property;
+	}
+}
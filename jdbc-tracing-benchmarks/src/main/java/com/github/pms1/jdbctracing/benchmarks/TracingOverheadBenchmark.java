@@ -0,0 +1,124 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.github.pms1.jdbctracing.api.core.CallSiteMode;
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+
+/**
+ * The cost of one traced call of the {@link StubDriver} per {@link Tracer},
+ * for the different kinds of exits the instrumentation generates. The
+ * {@link Tracer#BASELINE} is the same call without instrumentation.
+ *
+ * Run with {@code java -jar target/benchmarks.jar -prof gc} for the
+ * allocation per call, or with {@link #main(String[])}, which adds the GC
+ * profiler to the given JMH options.
+ *
+ * @author pms1
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracingOverheadBenchmark {
+	private static final String SQL = "select * from t where id = ?";
+
+	@Param({ "BASELINE", "NONE", "FILTER", "PRINT", "LATENCY", "ASYNC" })
+	public Tracer tracer;
+
+	@Param({ "STATIC_FIELD" })
+	public CallSiteMode callSiteMode;
+
+	@Param({ "false" })
+	public boolean outline;
+
+	@Param({ "false" })
+	public boolean timing;
+
+	private StubDriver driver;
+	private Connection connection;
+	private Connection proxy;
+	private PreparedStatement statement;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, ReflectiveOperationException, SQLException {
+		InstrumentationOptions options = new InstrumentationOptions();
+		options.setCallSiteMode(callSiteMode);
+		options.setOutline(outline);
+		options.setTiming(timing);
+
+		driver = new StubDriver(tracer, options);
+		connection = driver.connect();
+		proxy = driver.connectProxied();
+		statement = connection.prepareStatement(SQL);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, SQLException {
+		statement.close();
+		connection.close();
+		proxy.close();
+		driver.close();
+	}
+
+	@Benchmark
+	public void voidMethod() throws SQLException {
+		statement.setInt(1, 42);
+	}
+
+	@Benchmark
+	public PreparedStatement objectReturning() throws SQLException {
+		return connection.prepareStatement(SQL);
+	}
+
+	@Benchmark
+	public boolean primitiveReturning() throws SQLException {
+		return connection.getAutoCommit();
+	}
+
+	@Benchmark
+	public SQLException exceptionThrowing() {
+		try {
+			statement.execute();
+			return null;
+		} catch (SQLException e) {
+			return e;
+		}
+	}
+
+	@Benchmark
+	public boolean proxied() throws SQLException {
+		return proxy.getAutoCommit();
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+				.include(TracingOverheadBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+	}
+}
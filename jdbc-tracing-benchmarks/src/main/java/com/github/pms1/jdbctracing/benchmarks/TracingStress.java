@@ -0,0 +1,388 @@
+package com.github.pms1.jdbctracing.benchmarks;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.github.pms1.jdbctracing.api.core.CallSiteMode;
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+
+/**
+ * Drives an increasing number of threads through the {@link StubDriver} per
+ * {@link Tracer} and reports the throughput, the latency percentiles of the
+ * traced {@code executeUpdate} and, for platform threads, how often and how
+ * long the threads were blocked on monitors.
+ *
+ * Each thread repeatedly prepares a statement on a connection of its own,
+ * sets a parameter, executes it and commits. The scaling of a thread count is
+ * its throughput relative to the single thread throughput times the number of
+ * threads that can run at the same time, i.e. at most the number of
+ * processors. The harness exits with status 1 if the scaling of any run is
+ * below {@code minScaling}.
+ *
+ * Options, all of the form {@code --name=value}: {@code threads} (comma
+ * separated, default 1 to 256 in powers of two), {@code kinds}
+ * ({@code PLATFORM}, {@code VIRTUAL}), {@code tracers}, {@code warmup} and
+ * {@code duration} in seconds per run, {@code minScaling}, and
+ * {@code callSiteMode}, {@code outline} and {@code timing} for the
+ * instrumentation.
+ *
+ * Virtual threads need Java 21, but the instrumentation only runs on Java 8.
+ * {@code --prepare=<dir>} instruments the driver into a directory and exits,
+ * {@code --driver=<dir>} uses such a directory instead of instrumenting.
+ *
+ * @author pms1
+ */
+public class TracingStress {
+	private static final String SQL = "update t set x = ? where id = 1";
+
+	/**
+	 * A real driver blocks on I/O, which lets other virtual threads run on the
+	 * carrier. The stub never blocks, so the workers yield every so many
+	 * operations instead, regardless of the kind of thread.
+	 */
+	private static final int YIELD_INTERVAL = 1024;
+
+	public enum Kind {
+		PLATFORM, VIRTUAL
+	}
+
+	/**
+	 * A log-linear histogram of nanoseconds with 8 buckets per power of two,
+	 * recorded by a single thread.
+	 */
+	static final class Histogram {
+		private final long[] counts = new long[8 + 61 * 8];
+
+		void record(long value) {
+			counts[index(Math.max(value, 0))]++;
+		}
+
+		void add(Histogram other) {
+			for (int i = 0; i != counts.length; ++i)
+				counts[i] += other.counts[i];
+		}
+
+		private static int index(long value) {
+			if (value < 8)
+				return (int) value;
+			int exp = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exp - 3)) - 8;
+			return 8 + (exp - 3) * 8 + sub;
+		}
+
+		/**
+		 * The upper bound of the bucket.
+		 */
+		private static long value(int index) {
+			if (index < 8)
+				return index;
+			int exp = (index - 8) / 8 + 3;
+			int sub = (index - 8) % 8;
+			return ((9L + sub) << (exp - 3)) - 1;
+		}
+
+		long percentile(double p) {
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			long rank = (long) Math.ceil(total * p);
+			long seen = 0;
+			for (int i = 0; i != counts.length; ++i) {
+				seen += counts[i];
+				if (seen >= rank && seen != 0)
+					return value(i);
+			}
+			return 0;
+		}
+
+		long max() {
+			for (int i = counts.length; i-- > 0;)
+				if (counts[i] != 0)
+					return value(i);
+			return 0;
+		}
+	}
+
+	private static final class Worker implements Runnable {
+		private final Connection connection;
+		private final CountDownLatch started;
+		private final Histogram histogram = new Histogram();
+		private long operations;
+		private Throwable failure;
+		volatile Thread thread;
+
+		Worker(Connection connection, CountDownLatch started) {
+			this.connection = connection;
+			this.started = started;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			started.countDown();
+			try {
+				for (int i = 0; !stop; ++i) {
+					PreparedStatement ps = connection.prepareStatement(SQL);
+					ps.setInt(1, i);
+					long start = System.nanoTime();
+					ps.executeUpdate();
+					long time = System.nanoTime() - start;
+					connection.commit();
+					if (measuring) {
+						histogram.record(time);
+						++operations;
+					}
+					if (i % YIELD_INTERVAL == 0)
+						Thread.yield();
+				}
+			} catch (SQLException | RuntimeException e) {
+				failure = e;
+			}
+		}
+	}
+
+	private static volatile boolean measuring;
+	private static volatile boolean stop;
+
+	private static final class Result {
+		final long operations;
+		final long nanos;
+		final Histogram histogram;
+		final long blockedCount;
+		final long blockedMillis;
+
+		Result(long operations, long nanos, Histogram histogram, long blockedCount, long blockedMillis) {
+			this.operations = operations;
+			this.nanos = nanos;
+			this.histogram = histogram;
+			this.blockedCount = blockedCount;
+			this.blockedMillis = blockedMillis;
+		}
+
+		double throughput() {
+			return operations * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<Integer> threads = new ArrayList<>();
+		for (int i = 1; i <= 256; i *= 2)
+			threads.add(i);
+		List<Kind> kinds = new ArrayList<>();
+		for (Kind k : Kind.values())
+			kinds.add(k);
+		List<Tracer> tracers = new ArrayList<>();
+		for (Tracer t : Tracer.values())
+			tracers.add(t);
+		double warmup = 1;
+		double duration = 2;
+		double minScaling = 0;
+		InstrumentationOptions options = new InstrumentationOptions();
+		Path prepare = null;
+		Path driver = null;
+
+		for (String arg : args) {
+			int idx = arg.indexOf('=');
+			if (!arg.startsWith("--") || idx == -1)
+				throw new IllegalArgumentException("Expected --name=value: " + arg);
+			String name = arg.substring(2, idx);
+			String value = arg.substring(idx + 1);
+			switch (name) {
+			case "threads":
+				threads.clear();
+				for (String v : value.split(","))
+					threads.add(Integer.parseInt(v.trim()));
+				break;
+			case "kinds":
+				kinds.clear();
+				for (String v : value.split(","))
+					kinds.add(Kind.valueOf(v.trim()));
+				break;
+			case "tracers":
+				tracers.clear();
+				for (String v : value.split(","))
+					tracers.add(Tracer.valueOf(v.trim()));
+				break;
+			case "warmup":
+				warmup = Double.parseDouble(value);
+				break;
+			case "duration":
+				duration = Double.parseDouble(value);
+				break;
+			case "minScaling":
+				minScaling = Double.parseDouble(value);
+				break;
+			case "callSiteMode":
+				options.setCallSiteMode(CallSiteMode.valueOf(value));
+				break;
+			case "outline":
+				options.setOutline(Boolean.parseBoolean(value));
+				break;
+			case "timing":
+				options.setTiming(Boolean.parseBoolean(value));
+				break;
+			case "prepare":
+				prepare = Paths.get(value);
+				break;
+			case "driver":
+				driver = Paths.get(value);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+		}
+
+		if (prepare != null) {
+			StubDriver.prepare(prepare.resolve("baseline"), null);
+			StubDriver.prepare(prepare.resolve("instrumented"), options);
+			return;
+		}
+
+		if (kinds.contains(Kind.VIRTUAL) && !supportsVirtualThreads()) {
+			System.out.println("Virtual threads are not supported by this JVM, skipping them");
+			kinds.remove(Kind.VIRTUAL);
+		}
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (threadBean.isThreadContentionMonitoringSupported())
+			threadBean.setThreadContentionMonitoringEnabled(true);
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		PrintStream out = System.out;
+		out.println(processors + " processors");
+		out.println(String.format("%-8s %-8s %7s %12s %10s %7s %7s %7s %9s %9s %8s %10s", "tracer", "kind",
+				"threads", "ops/s", "ops/s/thr", "scaling", "p50 ns", "p99 ns", "p99.9 ns", "max ns", "blocked",
+				"blocked ms"));
+
+		List<String> failures = new ArrayList<>();
+		for (Tracer tracer : tracers) {
+			try (StubDriver d = driver == null ? new StubDriver(tracer, options)
+					: new StubDriver(tracer, driver.resolve(tracer.isInstrumented() ? "instrumented" : "baseline"))) {
+				for (Kind kind : kinds) {
+					double single = 0;
+					for (int n : threads) {
+						Result r = run(d, kind, n, warmup, duration, threadBean);
+						if (n == threads.get(0))
+							single = r.throughput() / n;
+						double scaling = r.throughput() / (single * Math.min(n, processors));
+						out.println(String.format("%-8s %-8s %7d %12.0f %10.0f %7.2f %7d %7d %9d %9d %8s %10s",
+								tracer, kind, n, r.throughput(), r.throughput() / n, scaling,
+								r.histogram.percentile(0.5), r.histogram.percentile(0.99), r.histogram.percentile(0.999),
+								r.histogram.max(),
+								r.blockedCount < 0 ? "-" : Long.toString(r.blockedCount),
+								r.blockedMillis < 0 ? "-" : Long.toString(r.blockedMillis)));
+						if (scaling < minScaling)
+							failures.add(String.format("%s %s %d threads: scaling %.2f below %.2f", tracer, kind, n,
+									scaling, minScaling));
+					}
+				}
+			}
+		}
+
+		for (String f : failures)
+			out.println("FAILED: " + f);
+		if (!failures.isEmpty())
+			System.exit(1);
+	}
+
+	private static Result run(StubDriver driver, Kind kind, int n, double warmup, double duration,
+			ThreadMXBean threadBean) throws Exception {
+		measuring = false;
+		stop = false;
+
+		CountDownLatch started = new CountDownLatch(n);
+		List<Worker> workers = new ArrayList<>();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i != n; ++i) {
+			Worker w = new Worker(driver.connect(), started);
+			workers.add(w);
+			threads.add(newThread(kind, w));
+		}
+		for (Thread t : threads)
+			t.start();
+		started.await();
+
+		Thread.sleep((long) (warmup * 1000));
+		long[] ids = kind == Kind.PLATFORM && threadBean.isThreadContentionMonitoringEnabled() ? ids(workers) : null;
+		ThreadInfo[] before = ids != null ? threadBean.getThreadInfo(ids) : null;
+		long start = System.nanoTime();
+		measuring = true;
+		Thread.sleep((long) (duration * 1000));
+		measuring = false;
+		long nanos = System.nanoTime() - start;
+		ThreadInfo[] after = ids != null ? threadBean.getThreadInfo(ids) : null;
+		stop = true;
+		for (Thread t : threads)
+			t.join();
+
+		long operations = 0;
+		Histogram histogram = new Histogram();
+		for (Worker w : workers) {
+			if (w.failure != null)
+				throw new IllegalStateException("Worker failed", w.failure);
+			operations += w.operations;
+			histogram.add(w.histogram);
+			w.connection.close();
+		}
+
+		long blockedCount = -1;
+		long blockedMillis = -1;
+		if (before != null) {
+			blockedCount = 0;
+			blockedMillis = 0;
+			for (int i = 0; i != ids.length; ++i) {
+				if (before[i] == null || after[i] == null)
+					continue;
+				blockedCount += after[i].getBlockedCount() - before[i].getBlockedCount();
+				blockedMillis += after[i].getBlockedTime() - before[i].getBlockedTime();
+			}
+		}
+
+		return new Result(operations, nanos, histogram, blockedCount, blockedMillis);
+	}
+
+	private static long[] ids(List<Worker> workers) {
+		long[] result = new long[workers.size()];
+		for (int i = 0; i != result.length; ++i)
+			result[i] = workers.get(i).thread.getId();
+		return result;
+	}
+
+	private static boolean supportsVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a thread of the given kind. Virtual threads are created by
+	 * reflection, as the module is compiled for Java 8.
+	 */
+	private static Thread newThread(Kind kind, Runnable r) throws ReflectiveOperationException {
+		switch (kind) {
+		case PLATFORM:
+			return new Thread(r);
+		case VIRTUAL:
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			return (Thread) unstarted.invoke(builder, r);
+		default:
+			throw new IllegalArgumentException(kind.toString());
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.github.pms1.jdbctracing.benchmarks.stub;
+
+import com.github.pms1.jdbctracing.api.TracingCallback;
+
+/**
+ * A {@link TracingCallback} that ignores all events, to measure the cost of
+ * the instrumentation and of the filtering alone.
+ *
+ * @author pms1
+ */
+public class NoopTracingCallback implements TracingCallback {
+	@Override
+	public void initEnter(Object[] args, int method) {
+	}
+
+	@Override
+	public void initExitException(Throwable e, int method) {
+	}
+
+	@Override
+	public void enter(Object[] args, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method) {
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+	}
+}
@@ -0,0 +1,28 @@
+package com.github.pms1.jdbctracing.benchmarks.stub;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * An {@link InvocationHandler} forwarding to a target object, like the
+ * handlers of connection pools wrapping the connections of a driver.
+ *
+ * @author pms1
+ */
+public class StubInvocationHandler implements InvocationHandler {
+	private final Object target;
+
+	public StubInvocationHandler(Object target) {
+		this.target = target;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
@@ -1,7 +1,13 @@
 package com.github.pms1.tracing.jdbc.maven;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.artifact.resolver.ResolutionErrorHandler;
@@ -17,6 +23,13 @@ import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.repository.RepositorySystem;
 
+import com.github.pms1.jdbctracing.api.core.ArgumentCapture;
+import com.github.pms1.jdbctracing.api.core.CallSiteMode;
+import com.github.pms1.jdbctracing.api.core.InstrumentationCache;
+import com.github.pms1.jdbctracing.api.core.InstrumentationOptions;
+import com.github.pms1.jdbctracing.api.core.InstrumentationStatistics;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore;
+
 @Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES)
 public class InstrumentMojo extends AbstractMojo {
 
@@ -44,8 +57,174 @@ public class InstrumentMojo extends AbstractMojo {
 	@Parameter(defaultValue = "${mojoExecution}", readonly = true)
 	private MojoExecution mojo;
 
+	/**
+	 * Which arguments are passed to the callback unless configured otherwise
+	 * by {@link #argumentCapture}: {@code NONE}, {@code SQL} or {@code ALL}.
+	 */
+	@Parameter(defaultValue = "ALL")
+	private ArgumentCapture defaultArgumentCapture;
+
+	/**
+	 * The argument capture per interface ({@code java.sql.PreparedStatement})
+	 * or per method ({@code java.sql.PreparedStatement#setInt}).
+	 */
+	@Parameter
+	private Properties argumentCapture;
+
+	/**
+	 * Whether calls of instrumented methods made while another instrumented
+	 * method is running on the same thread are skipped in the generated code.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean suppressNested;
+
+	/**
+	 * How the instrumented code invokes the callback: {@code STATIC_FIELD} or
+	 * {@code INVOKEDYNAMIC}. The latter allows to switch tracing off at runtime
+	 * at almost no cost and needs Java 7.
+	 */
+	@Parameter(defaultValue = "STATIC_FIELD")
+	private CallSiteMode callSiteMode;
+
+	/**
+	 * Whether classes are scanned and rewritten in parallel. The instrumented
+	 * classes do not depend on this setting.
+	 */
+	@Parameter(defaultValue = "true")
+	private boolean parallel;
+
+	/**
+	 * Whether the classes are read a second time for rewriting instead of
+	 * being kept in memory. Reduces the heap needed for large drivers.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean streaming;
+
+	/**
+	 * Whether the callback code is moved into helper methods of the
+	 * instrumented classes, so that small traced methods stay small enough to
+	 * be inlined by the JIT.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean outline;
+
+	/**
+	 * Whether the instrumented code measures the time of each traced call and
+	 * passes it to the timed exit callbacks.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean timing;
+
+	/**
+	 * Whether the bytecode size of each traced method before and after the
+	 * instrumentation is logged.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean reportSizes;
+
+	/**
+	 * The jars to instrument, e.g. the driver and jdbc-tracing-api. If set,
+	 * the jars are instrumented into {@link #outputJar} and
+	 * {@link #target} is not touched.
+	 */
+	@Parameter
+	private List<File> inputJars;
+
+	/**
+	 * The jar written if {@link #inputJars} is set.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}-instrumented.jar")
+	private File outputJar;
+
+	/**
+	 * A directory shared by builds where jars instrumented from
+	 * {@link #inputJars} are kept, addressed by a hash of the inputs and the
+	 * configuration. Set {@link #useCache} to {@code false} to always
+	 * instrument.
+	 */
+	@Parameter(defaultValue = "${settings.localRepository}/.cache/jdbc-tracing")
+	private File cacheDirectory;
+
+	@Parameter(defaultValue = "true")
+	private boolean useCache;
+
+	/**
+	 * Whether only the classes changed since the last build are instrumented.
+	 * Classes already instrumented by a previous build are recognized and not
+	 * instrumented again.
+	 */
+	@Parameter(defaultValue = "false")
+	private boolean incremental;
+
+	/**
+	 * Where the incremental mode keeps the hashes of the instrumented classes
+	 * between builds.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/jdbc-tracing.state")
+	private File stateFile;
+
 	public void execute() throws MojoExecutionException, MojoFailureException {
-		com.github.pms1.jdbctracing.api.core.InstumentationCore.run(target.toPath());
+		InstrumentationOptions options = new InstrumentationOptions();
+		options.setDefaultArgumentCapture(defaultArgumentCapture);
+		options.setSuppressNested(suppressNested);
+		options.setCallSiteMode(callSiteMode);
+		options.setParallel(parallel);
+		options.setStreaming(streaming);
+		options.setOutline(outline);
+		options.setTiming(timing);
+		options.setReportSizes(reportSizes);
+		if (argumentCapture != null)
+			for (Map.Entry<Object, Object> e : argumentCapture.entrySet()) {
+				ArgumentCapture capture;
+				try {
+					capture = ArgumentCapture.valueOf((String) e.getValue());
+				} catch (IllegalArgumentException ex) {
+					throw new MojoExecutionException("Invalid argument capture for " + e.getKey() + ": " + e.getValue());
+				}
+				options.setArgumentCapture((String) e.getKey(), capture);
+			}
+
+		if (inputJars != null && !inputJars.isEmpty()) {
+			List<Path> in = new ArrayList<>();
+			for (File f : inputJars)
+				in.add(f.toPath());
+			try {
+				Files.createDirectories(outputJar.toPath().getParent());
+				if (useCache) {
+					InstrumentationStatistics statistics = new InstrumentationCache(cacheDirectory.toPath())
+							.run(in, outputJar.toPath(), options);
+					if (statistics == null)
+						getLog().info("Taken from the cache in " + cacheDirectory);
+					else
+						log(statistics);
+				} else {
+					log(InstumentationCore.run(in, outputJar.toPath(), options));
+				}
+			} catch (IOException e) {
+				throw new MojoExecutionException("Failed to instrument " + inputJars, e);
+			}
+		} else if (incremental) {
+			try {
+				log(InstumentationCore.run(target.toPath(), options, stateFile.toPath()));
+			} catch (IOException e) {
+				throw new MojoExecutionException("Failed to instrument " + target, e);
+			} catch (IllegalStateException e) {
+				throw new MojoFailureException(e.getMessage());
+			}
+		} else {
+			log(InstumentationCore.run(target.toPath(), options));
+		}
+	}
+
+	private void log(InstrumentationStatistics statistics) {
+		for (String warning : statistics.getWarnings())
+			getLog().warn(warning);
+		for (String size : statistics.getSizes())
+			getLog().info("Size " + size);
+		if (statistics.isUpToDate())
+			getLog().info("UP TO DATE " + statistics.getScanned() + " classes");
+		else
+			getLog().info("Instrumented: " + statistics);
 	}
 
 }
@@ -0,0 +1,24 @@
+package com.github.pms1.jdbctracing.api.core;
+
+/**
+ * Which arguments of a traced method are passed to the callback.
+ *
+ * @author pms1
+ */
+public enum ArgumentCapture {
+	/**
+	 * No argument array is created, the callback receives {@code null}.
+	 */
+	NONE,
+	/**
+	 * Only arguments of type {@link String} are passed, at their original
+	 * position. For JDBC methods these carry the SQL text. Methods without
+	 * such an argument pass {@code null}, so neither an array is created nor
+	 * a primitive argument is boxed.
+	 */
+	SQL,
+	/**
+	 * All arguments are passed, primitive arguments are boxed.
+	 */
+	ALL
+}
@@ -0,0 +1,22 @@
+package com.github.pms1.jdbctracing.api.core;
+
+/**
+ * How the instrumented code invokes the callback.
+ *
+ * @author pms1
+ */
+public enum CallSiteMode {
+	/**
+	 * The callback is read from the static field
+	 * {@code TracingCallback.instance} and invoked through the interface.
+	 * Tracing is always on.
+	 */
+	STATIC_FIELD,
+	/**
+	 * The callback is invoked through {@code invokedynamic} call sites bound by
+	 * {@code TracingCallSites}. Tracing can be switched off at runtime, which
+	 * relinks all call sites to constants the JIT folds away. Instrumented
+	 * classes are upgraded to class file version 51 (Java 7).
+	 */
+	INVOKEDYNAMIC
+}
@@ -0,0 +1,70 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * A directory of instrumented jars, addressed by a hash of the input jars,
+ * the jdbc-tracing code and the options. Instrumenting the same driver with
+ * the same options again only copies the jar from the cache.
+ *
+ * Entries are added with an atomic rename, so several builds can share the
+ * directory.
+ *
+ * @author pms1
+ */
+public class InstrumentationCache {
+	private final Path directory;
+
+	public InstrumentationCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Like {@link InstumentationCore#run(List, Path, InstrumentationOptions)},
+	 * but takes the result from the cache if present and adds it otherwise.
+	 *
+	 * @return the statistics of the run, {@code null} if the jar was taken
+	 *         from the cache
+	 */
+	public InstrumentationStatistics run(List<Path> in, Path out, InstrumentationOptions options)
+			throws IOException {
+		Path cached = path(key(in, options));
+
+		InstrumentationStatistics statistics = null;
+		if (!Files.isRegularFile(cached)) {
+			Files.createDirectories(cached.getParent());
+			Path tmp = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+			try {
+				statistics = InstumentationCore.run(in, tmp, options);
+				Files.move(tmp, cached, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				// added by a concurrent build in the meantime, use that one
+				statistics = null;
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+
+		Files.copy(cached, out, StandardCopyOption.REPLACE_EXISTING);
+		return statistics;
+	}
+
+	Path path(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key + ".jar");
+	}
+
+	String key(List<Path> in, InstrumentationOptions options) throws IOException {
+		StringBuilder key = new StringBuilder();
+		key.append(InstumentationCore.codeHash()).append('\n');
+		key.append(options.fingerprint()).append('\n');
+		for (Path p : in)
+			key.append(InstrumentationState.hash(p)).append('\n');
+		return InstrumentationState.hash(key.toString().getBytes(StandardCharsets.UTF_8));
+	}
+}
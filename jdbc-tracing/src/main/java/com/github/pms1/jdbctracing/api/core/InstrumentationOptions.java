@@ -0,0 +1,182 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Options controlling the code generated by {@link InstumentationCore}.
+ *
+ * @author pms1
+ */
+public class InstrumentationOptions {
+	private static final String INVOCATION_HANDLER = "java/lang/reflect/InvocationHandler";
+
+	private ArgumentCapture defaultArgumentCapture = ArgumentCapture.ALL;
+
+	private final Map<String, ArgumentCapture> argumentCapture = new HashMap<>();
+
+	private boolean suppressNested = true;
+
+	private CallSiteMode callSiteMode = CallSiteMode.STATIC_FIELD;
+
+	private boolean parallel = true;
+
+	private boolean streaming = false;
+
+	private boolean outline = false;
+
+	private boolean timing = false;
+
+	private boolean reportSizes = false;
+
+	public ArgumentCapture getDefaultArgumentCapture() {
+		return defaultArgumentCapture;
+	}
+
+	public void setDefaultArgumentCapture(ArgumentCapture defaultArgumentCapture) {
+		Objects.requireNonNull(defaultArgumentCapture);
+		this.defaultArgumentCapture = defaultArgumentCapture;
+	}
+
+	/**
+	 * Sets the argument capture for the methods of a class or interface
+	 * ({@code java.sql.PreparedStatement}) or for all methods of that name
+	 * ({@code java.sql.PreparedStatement#setInt}). The class is the one the
+	 * method is reported for, i.e. the JDBC interface declaring it.
+	 */
+	public void setArgumentCapture(String target, ArgumentCapture capture) {
+		Objects.requireNonNull(capture);
+		argumentCapture.put(normalize(target), capture);
+	}
+
+	private static String normalize(String target) {
+		int idx = target.indexOf('#');
+		if (idx == -1)
+			return target.replace('.', '/');
+		else
+			return target.substring(0, idx).replace('.', '/') + target.substring(idx);
+	}
+
+	public boolean isSuppressNested() {
+		return suppressNested;
+	}
+
+	/**
+	 * If set, the generated code tracks the call depth of instrumented methods
+	 * per thread and only invokes the callback for the outermost call, so
+	 * nested calls neither build argument arrays nor call the callback.
+	 */
+	public void setSuppressNested(boolean suppressNested) {
+		this.suppressNested = suppressNested;
+	}
+
+	public CallSiteMode getCallSiteMode() {
+		return callSiteMode;
+	}
+
+	public void setCallSiteMode(CallSiteMode callSiteMode) {
+		Objects.requireNonNull(callSiteMode);
+		this.callSiteMode = callSiteMode;
+	}
+
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * If set, classes are scanned and rewritten in parallel. The result does
+	 * not depend on this setting.
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * If set, only the metadata of the classes is kept between scanning and
+	 * rewriting and the classes to instrument are read again, so the memory
+	 * needed depends on the number of classes and methods, not on the size of
+	 * their code. The result does not depend on this setting.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	public boolean isOutline() {
+		return outline;
+	}
+
+	/**
+	 * If set, the callback sequences are moved into private static helper
+	 * methods of the instrumented class and the traced methods only call
+	 * these. This keeps small methods like getters below the inlining limits
+	 * of the JIT. Interfaces are always instrumented inline.
+	 */
+	public void setOutline(boolean outline) {
+		this.outline = outline;
+	}
+
+	public boolean isTiming() {
+		return timing;
+	}
+
+	/**
+	 * If set, the generated code reads {@link System#nanoTime()} after the
+	 * enter callback into a local and passes the elapsed time to the timed
+	 * exit callbacks, e.g.
+	 * {@code TracingCallback.exitReturn(Object, Object, int, long)}, instead of
+	 * the untimed ones. Callbacks then need no per-thread bookkeeping of start
+	 * times and the time does not include the callbacks. Inline code only reads
+	 * the time if the callbacks are invoked, outlined code on every call to
+	 * keep the traced method small.
+	 */
+	public void setTiming(boolean timing) {
+		this.timing = timing;
+	}
+
+	public boolean isReportSizes() {
+		return reportSizes;
+	}
+
+	/**
+	 * If set, the bytecode size of each traced method before and after the
+	 * instrumentation is reported in
+	 * {@link InstrumentationStatistics#getSizes()}, marking methods that grow
+	 * beyond the default inlining limits of HotSpot. The result does not
+	 * depend on this setting.
+	 */
+	public void setReportSizes(boolean reportSizes) {
+		this.reportSizes = reportSizes;
+	}
+
+	/**
+	 * Describes the settings that influence the generated code, i.e. all but
+	 * {@link #isParallel()}, {@link #isStreaming()} and
+	 * {@link #isReportSizes()}.
+	 */
+	String fingerprint() {
+		return defaultArgumentCapture + " " + new TreeMap<>(argumentCapture) + " " + suppressNested + " "
+				+ callSiteMode + " " + outline + " " + timing;
+	}
+
+	/**
+	 * The argument capture of a traced method. {@code InvocationHandler.invoke}
+	 * always captures all arguments: the proxied method and its arguments are
+	 * taken from them when the call is reported for the proxied interface.
+	 */
+	ArgumentCapture getArgumentCapture(String owner, String method) {
+		if (owner.equals(INVOCATION_HANDLER) && method.equals("invoke"))
+			return ArgumentCapture.ALL;
+		ArgumentCapture result = argumentCapture.get(owner + "#" + method);
+		if (result == null)
+			result = argumentCapture.get(owner);
+		if (result == null)
+			result = defaultArgumentCapture;
+		return result;
+	}
+}
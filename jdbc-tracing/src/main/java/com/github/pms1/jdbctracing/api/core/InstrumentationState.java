@@ -0,0 +1,187 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.github.pms1.jdbctracing.api.core.InstumentationCore.MethodSignature;
+
+/**
+ * What an incremental run of {@link InstumentationCore} did to the classes of
+ * a directory, kept in a small text file between runs: for each class the
+ * hash of its content before and after the instrumentation, a hash of its
+ * header and the methods that were instrumented, plus a hash of the
+ * configuration that was used.
+ *
+ * A class whose content matches the recorded output was not changed since the
+ * last run and is not instrumented again.
+ *
+ * @author pms1
+ */
+public class InstrumentationState {
+	static class Record {
+		final String input;
+		final String header;
+		final String output;
+		final Map<MethodSignature, TracedMethod> methods;
+
+		Record(String input, String header, String output, Map<MethodSignature, TracedMethod> methods) {
+			this.input = input;
+			this.header = header;
+			this.output = output;
+			this.methods = methods;
+		}
+
+		boolean isInstrumented() {
+			return !input.equals(output);
+		}
+	}
+
+	private String config;
+
+	private final SortedMap<String, Record> records = new TreeMap<>();
+
+	String getConfig() {
+		return config;
+	}
+
+	void setConfig(String config) {
+		this.config = config;
+	}
+
+	Record get(String name) {
+		return records.get(name);
+	}
+
+	void put(String name, Record record) {
+		records.put(name, record);
+	}
+
+	Set<String> getClasses() {
+		return records.keySet();
+	}
+
+	/**
+	 * Reads a state file, returns an empty state if the file does not exist.
+	 */
+	public static InstrumentationState read(Path path) throws IOException {
+		InstrumentationState result = new InstrumentationState();
+
+		try (BufferedReader r = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			Map<MethodSignature, TracedMethod> methods = null;
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.isEmpty())
+					continue;
+				String[] parts = line.split("\t");
+				switch (parts[0]) {
+				case "config":
+					result.config = parts[1];
+					break;
+				case "class":
+					methods = new HashMap<>();
+					result.records.put(parts[1], new Record(parts[2], parts[3], parts[4], methods));
+					break;
+				case "method":
+					if (methods == null || parts.length != 7)
+						throw new IOException("Invalid state file " + path + ": " + line);
+					methods.put(new MethodSignature(parts[1], parts[2]),
+							new TracedMethod(parts[3], parts[4], Integer.parseInt(parts[5]),
+									ArgumentCapture.valueOf(parts[6])));
+					break;
+				default:
+					throw new IOException("Invalid state file " + path + ": " + line);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			return new InstrumentationState();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Writes the state file. The file is replaced atomically, so an aborted
+	 * build leaves the previous state.
+	 */
+	public void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			if (config != null)
+				w.append("config\t").append(config).append('\n');
+			for (Map.Entry<String, Record> e : records.entrySet()) {
+				Record r = e.getValue();
+				w.append("class\t").append(e.getKey()).append('\t').append(r.input).append('\t').append(r.header)
+						.append('\t').append(r.output).append('\n');
+
+				SortedMap<String, String> methods = new TreeMap<>();
+				for (Map.Entry<MethodSignature, TracedMethod> m : r.methods.entrySet())
+					methods.put(m.getKey().name + "\t" + m.getKey().description, m.getValue().owner + "\t"
+							+ m.getValue().table + "\t" + m.getValue().id + "\t" + m.getValue().capture);
+				for (Map.Entry<String, String> m : methods.entrySet())
+					w.append("method\t").append(m.getKey()).append('\t').append(m.getValue()).append('\n');
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	void retain(Set<String> classes) {
+		records.keySet().retainAll(classes);
+	}
+
+	static Map<MethodSignature, TracedMethod> orEmpty(Map<MethodSignature, TracedMethod> methods) {
+		return methods == null ? Collections.emptyMap() : methods;
+	}
+
+	/**
+	 * The SHA-256 of some bytes as hex string.
+	 */
+	static String hash(byte[] bytes) {
+		MessageDigest md = sha256();
+		md.update(bytes);
+		return toHex(md.digest());
+	}
+
+	/**
+	 * The SHA-256 of the content of a file as hex string.
+	 */
+	static String hash(Path file) throws IOException {
+		MessageDigest md = sha256();
+		try (InputStream is = Files.newInputStream(file)) {
+			byte[] buf = new byte[8192];
+			int read;
+			while ((read = is.read(buf)) != -1)
+				md.update(buf, 0, read);
+		}
+		return toHex(md.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	private static String toHex(byte[] digest) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest)
+			result.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return result.toString();
+	}
+}
@@ -0,0 +1,125 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time spent in the phases of a run of {@link InstumentationCore} and the
+ * number of classes it processed.
+ *
+ * @author pms1
+ */
+public class InstrumentationStatistics {
+	private final int scanned;
+	private final int rewritten;
+	private final int instrumented;
+	private final long scanNanos;
+	private final long markNanos;
+	private final long rewriteNanos;
+	private final List<String> warnings = new ArrayList<>();
+	private final List<String> sizes = new ArrayList<>();
+	private boolean upToDate;
+
+	InstrumentationStatistics(int scanned, int rewritten, int instrumented, long scanNanos, long markNanos,
+			long rewriteNanos) {
+		this.scanned = scanned;
+		this.rewritten = rewritten;
+		this.instrumented = instrumented;
+		this.scanNanos = scanNanos;
+		this.markNanos = markNanos;
+		this.rewriteNanos = rewriteNanos;
+	}
+
+	/**
+	 * The statistics of an incremental run that found nothing changed since
+	 * the previous run.
+	 */
+	static InstrumentationStatistics upToDate(int scanned, long scanNanos) {
+		InstrumentationStatistics statistics = new InstrumentationStatistics(scanned, 0, 0, scanNanos, 0, 0);
+		statistics.upToDate = true;
+		return statistics;
+	}
+
+	/**
+	 * Whether an incremental run skipped all classes because none changed.
+	 */
+	public boolean isUpToDate() {
+		return upToDate;
+	}
+
+	/**
+	 * The number of classes read.
+	 */
+	public int getScanned() {
+		return scanned;
+	}
+
+	/**
+	 * The number of classes passed to the rewrite phase, i.e. all classes
+	 * but those recognized as instrumented by a previous incremental run.
+	 */
+	public int getRewritten() {
+		return rewritten;
+	}
+
+	/**
+	 * The number of classes with traced methods.
+	 */
+	public int getInstrumented() {
+		return instrumented;
+	}
+
+	public long getScanNanos() {
+		return scanNanos;
+	}
+
+	/**
+	 * The time spent analyzing the class hierarchy for the methods to trace.
+	 */
+	public long getMarkNanos() {
+		return markNanos;
+	}
+
+	public long getRewriteNanos() {
+		return rewriteNanos;
+	}
+
+	public long getTotalNanos() {
+		return scanNanos + markNanos + rewriteNanos;
+	}
+
+	void addWarning(String warning) {
+		warnings.add(warning);
+	}
+
+	/**
+	 * Problems with the input that did not stop the run, e.g. signatures
+	 * that were removed or classes that were not found.
+	 */
+	public List<String> getWarnings() {
+		return Collections.unmodifiableList(warnings);
+	}
+
+	void addSize(String size) {
+		sizes.add(size);
+	}
+
+	/**
+	 * The bytecode sizes of the traced methods before and after the
+	 * instrumentation, one line per method, if
+	 * {@link InstrumentationOptions#isReportSizes()} is set.
+	 */
+	public List<String> getSizes() {
+		return Collections.unmodifiableList(sizes);
+	}
+
+	@Override
+	public String toString() {
+		return "scan " + TimeUnit.NANOSECONDS.toMillis(scanNanos) + " ms, mark "
+				+ TimeUnit.NANOSECONDS.toMillis(markNanos) + " ms, rewrite "
+				+ TimeUnit.NANOSECONDS.toMillis(rewriteNanos) + " ms (" + rewritten + " classes, " + instrumented
+				+ " instrumented)";
+	}
+}
@@ -3,41 +3,83 @@ package com.github.pms1.jdbctracing.api.core;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
-import java.util.jar.JarInputStream;
-import java.util.jar.JarOutputStream;
+import java.util.jar.Attributes;
 import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
 
 public class InstumentationCore {
 
+	private static final List<String> all = Arrays.asList("javax/sql/DataSource", "javax/sql/XADataSource");
+	private static final List<String> ps = Arrays.asList("java/sql/CallableStatement",
+			"java/sql/PreparedStatement", "java/sql/Statement");
+	private static final List<String> conn2 = Arrays.asList("javax/sql/XAConnection",
+			"javax/sql/PooledConnection");
+	private static final List<String> conn = Arrays.asList("java/sql/Connection");
+	private static final List<String> ih = Arrays.asList("java/lang/reflect/InvocationHandler");
+	private static final List<String> xa = Arrays.asList("javax/transaction/xa/XAResource");
+
 	static class Entry {
 		String name;
+		Resource resource;
+		/**
+		 * The class read in the first pass, {@code null} in streaming mode
+		 * where the class is read again when rewriting it.
+		 */
 		ClassReader cr;
+		ClassMetadata cmd;
+		/**
+		 * Hashes of the content and of the header of the class, only computed
+		 * for incremental runs.
+		 */
+		String hash;
+		String header;
 	}
 
 	static abstract class AccessibleObjectMetadata {
@@ -47,6 +89,10 @@ public class InstumentationCore {
 			this.access = access;
 		}
 
+		int getAccess() {
+			return access;
+		}
+
 		boolean isPublic() {
 			return (access & Opcodes.ACC_PUBLIC) != 0;
 		}
@@ -72,52 +118,84 @@ public class InstumentationCore {
 
 	static class ClassHierarchy {
 		Map<String, ClassMetadata> classes = new HashMap<>();
-		Map<ClassReader, ClassMetadata> byReader = new HashMap<>();
 
-		void add(ClassReader reader, ClassMetadata cmd) {
+		void add(ClassMetadata cmd) {
 			Objects.requireNonNull(cmd);
 
 			ClassMetadata old = classes.putIfAbsent(cmd.name, cmd);
 			if (old != null)
 				throw new IllegalArgumentException();
-			old = byReader.putIfAbsent(reader, cmd);
-			if (old != null)
-				throw new IllegalArgumentException();
+			supertypes = null;
 		}
 
-		boolean hasSuperClass(String name, String cand) {
-			ClassMetadata classMetadata = classes.get(name);
-			if (classMetadata == null)
-				return false;
-			if (Objects.equals(classMetadata.superName, cand))
-				return true;
-			if (classMetadata.interfaces.contains(cand))
-				return true;
-			if (classMetadata.superName != null && hasSuperClass(classMetadata.superName, cand))
-				return true;
-			for (String i : classMetadata.interfaces)
-				if (hasSuperClass(i, cand))
-					return true;
-			return false;
+		/**
+		 * Ids of all classes and of the names they reference, assigned in name
+		 * order by {@link #index()}.
+		 */
+		private final Map<String, Integer> ids = new HashMap<>();
+
+		/**
+		 * The transitive supertypes of each class by id, {@code null} for names
+		 * that are referenced but not part of the hierarchy.
+		 */
+		private BitSet[] supertypes;
+
+		/**
+		 * Computes the transitive supertypes of all classes once, so that
+		 * {@link #hasSuperClass(String, String)} is a single bit test instead of
+		 * a walk through the hierarchy. Called lazily and again after classes
+		 * were added.
+		 */
+		void index() {
+			ids.clear();
+
+			List<String> names = new ArrayList<>(classes.keySet());
+			Collections.sort(names);
+			for (String n : names)
+				ids.put(n, ids.size());
+			for (String n : names) {
+				ClassMetadata c = classes.get(n);
+				if (c.superName != null)
+					ids.putIfAbsent(c.superName, ids.size());
+				for (String i : c.interfaces)
+					ids.putIfAbsent(i, ids.size());
+			}
+
+			supertypes = new BitSet[ids.size()];
+			for (ClassMetadata c : classes.values())
+				supertypes(c);
 		}
 
-		public Set<ClassMetadata> getHierarchy(ClassMetadata c) {
-			Set<ClassMetadata> r = new HashSet<>();
-			r.add(c);
+		private BitSet supertypes(ClassMetadata c) {
+			int id = ids.get(c.name);
+			BitSet result = supertypes[id];
+			if (result != null)
+				return result;
+
+			result = new BitSet();
 			if (c.superName != null)
-				r.addAll(getHierarchy(c.superName));
+				addSupertype(result, c.superName);
 			for (String i : c.interfaces)
-				r.addAll(getHierarchy(i));
-			return r;
+				addSupertype(result, i);
+			supertypes[id] = result;
+			return result;
+		}
 
+		private void addSupertype(BitSet result, String name) {
+			result.set(ids.get(name));
+			ClassMetadata c = classes.get(name);
+			if (c != null)
+				result.or(supertypes(c));
 		}
 
-		private Collection<ClassMetadata> getHierarchy(String superName) {
-			ClassMetadata classMetadata = classes.get(superName);
-			if (classMetadata == null)
-				return Collections.emptySet();
-			else
-				return getHierarchy(classMetadata);
+		boolean hasSuperClass(String name, String cand) {
+			if (supertypes == null)
+				index();
+			Integer id = ids.get(name);
+			Integer candId = ids.get(cand);
+			if (id == null || candId == null || supertypes[id] == null)
+				return false;
+			return supertypes[id].get(candId);
 		}
 
 		public ClassMetadata getSuperClass(ClassMetadata c1) {
@@ -127,8 +205,8 @@ public class InstumentationCore {
 				return null;
 		}
 
-		public void addLibrary(ClassReader r, ClassMetadata cmd) {
-			add(r, cmd);
+		public void addLibrary(ClassMetadata cmd) {
+			add(cmd);
 			libraryClasses.add(cmd);
 		}
 
@@ -157,6 +235,7 @@ public class InstumentationCore {
 		private final List<String> interfaces;
 
 		private final List<MethodMetadata> methods2;
+		private final Set<MethodSignature> signatures = new HashSet<>();
 
 		ClassMetadata(String name, ClassType type, String superName, List<String> interfaces,
 				List<MethodMetadata> methods2) {
@@ -165,6 +244,12 @@ public class InstumentationCore {
 			this.superName = superName;
 			this.interfaces = interfaces;
 			this.methods2 = methods2;
+			for (MethodMetadata m : methods2)
+				signatures.add(m.getSignature());
+		}
+
+		boolean declares(MethodSignature signature) {
+			return signatures.contains(signature);
 		}
 
 		@Override
@@ -175,6 +260,18 @@ public class InstumentationCore {
 		public List<MethodMetadata> getMethods() {
 			return methods2;
 		}
+
+		ClassType getType() {
+			return type;
+		}
+
+		String getSuperName() {
+			return superName;
+		}
+
+		List<String> getInterfaces() {
+			return interfaces;
+		}
 	}
 
 	public static class MethodSignature {
@@ -282,60 +379,547 @@ public class InstumentationCore {
 			Path in = Paths.get("W:/work/workspaces/fisng/workspace/tracing-db/target/tracing-db-0.0.1-SNAPSHOT.jar");
 			Path out = Paths.get("c:/temp/foo.jar");
 
-			Manifest manifest = null;
-			try (InputStream is = Files.newInputStream(in); JarInputStream jis = new JarInputStream(is);) {
+			run(Collections.singletonList(in), out, new InstrumentationOptions());
+		}
+	}
 
-				manifest = jis.getManifest();
+	static class Resource {
+		String name;
+		Supplier<InputStream> is;
+	}
+
+	static InstrumentationStatistics process(ClassLoader classLoader, Iterable<Resource> resources, Writer writer,
+			InstrumentationOptions options) throws IOException {
+		return process(classLoader, resources, writer, options, null);
+	}
+
+	/**
+	 * @param state
+	 *            the result of the previous run on the same resources, updated
+	 *            with the result of this run. Classes that did not change since
+	 *            are not instrumented again. {@code null} to process all
+	 *            classes.
+	 */
+	static InstrumentationStatistics process(ClassLoader classLoader, Iterable<Resource> resources, Writer writer,
+			InstrumentationOptions options, InstrumentationState state) throws IOException {
+		// Path in =
+		// Paths.get("W:/work/workspaces/fisng/workspace/tracing-db/target/tracing-db-0.0.1-SNAPSHOT.jar");
 
-				try (OutputStream os = Files.newOutputStream(out);
-						JarOutputStream jos = new JarOutputStream(os, manifest)) {
+		long start = System.nanoTime();
 
-					// ZipEntry ze = new ZipEntry(e.name);
-					// jos.putNextEntry(ze);
+		// the method tables written by a previous incremental run are not
+		// part of the input
+		String tables = MethodTable.PACKAGE.replace('.', '/') + "/";
+		List<Resource> classResources = new ArrayList<>();
+		for (Resource r : resources)
+			if (r.name.endsWith(".class") && (state == null || !r.name.startsWith(tables)))
+				classResources.add(r);
 
-					// jos.write(cw.toByteArray());
+		List<Entry> entries;
+		try {
+			entries = stream(classResources, options).map(r -> scan(r, options, state != null))
+					.collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 
+		// classes instrumented by a previous run that did not change since
+		Set<String> instrumented = new HashSet<>();
+		boolean sameHeaders = false;
+		String config = null;
+		if (state != null) {
+			config = InstrumentationState
+					.hash((codeHash() + " " + options.fingerprint()).getBytes(StandardCharsets.UTF_8));
+
+			Set<String> names = new HashSet<>();
+			for (Entry e : entries)
+				names.add(e.name);
+			boolean sameClasses = config.equals(state.getConfig()) && names.equals(state.getClasses());
+
+			sameHeaders = sameClasses;
+			int changed = 0;
+			for (Entry e : entries) {
+				InstrumentationState.Record r = state.get(e.name);
+				if (r != null && r.output.equals(e.hash)) {
+					if (r.isInstrumented())
+						instrumented.add(e.name);
+				} else {
+					++changed;
+					if (r == null || !r.header.equals(e.header))
+						sameHeaders = false;
 				}
 			}
+
+			if (!config.equals(state.getConfig()) && !instrumented.isEmpty())
+				throw new IllegalStateException(
+						"Classes were instrumented by a different configuration or version, a clean build is needed");
+
+			if (sameClasses && changed == 0)
+				return InstrumentationStatistics.upToDate(entries.size(), System.nanoTime() - start);
 		}
+
+		long scanned = System.nanoTime();
+
+		Map<ClassMetadata, Map<MethodSignature, TracedMethod>> traced;
+		ClassHierarchy ch = null;
+		if (sameHeaders) {
+			// only code changed (or classes were replaced by their originals),
+			// so the previous analysis still applies
+			traced = new HashMap<>();
+			for (Entry e : entries) {
+				Map<MethodSignature, TracedMethod> methods = state.get(e.name).methods;
+				if (!methods.isEmpty())
+					traced.put(e.cmd, methods);
+			}
+		} else {
+			ch = new ClassHierarchy();
+			for (Entry e : entries)
+				ch.add(e.cmd);
+
+			addLibraries(ch);
+			Map<ClassMetadata, Map<MethodSignature, String>> allMarks2 = mark(ch);
+
+			traced = assignIds(allMarks2, writer, options);
+
+			// classes that are not instrumented again must still match
+			for (Entry e : entries)
+				if (instrumented.contains(e.name) && !InstrumentationState.orEmpty(traced.get(e.cmd))
+						.equals(state.get(e.name).methods))
+					throw new IllegalStateException(
+							e.name + " was instrumented differently by a previous run, a clean build is needed");
+		}
+
+		long marked = System.nanoTime();
+
+		List<Entry> todo = new ArrayList<>();
+		for (Entry e : entries)
+			if (!instrumented.contains(e.name))
+				todo.add(e);
+		Map<String, String> outputs = new HashMap<>();
+		NonLoadingClassWriter.Types types = new NonLoadingClassWriter.Types(ch, classLoader);
+		Map<String, List<String>> sizes = new ConcurrentHashMap<>();
+
+		// rewrite in parallel, but write in the order of the entries. In
+		// streaming mode each class is written as soon as it is rewritten, so
+		// only one rewritten class is held in memory at a time.
+		try {
+			(options.isStreaming() ? todo.stream() : stream(todo, options)).map(e -> {
+				byte[] bytes = rewrite(types, e, traced.get(e.cmd), options);
+				if (bytes != null && options.isReportSizes() && traced.get(e.cmd) != null)
+					sizes.put(e.name, sizeReport(e, bytes, traced.get(e.cmd)));
+				return bytes == null ? null : new SimpleImmutableEntry<>(e.name, bytes);
+			}).forEachOrdered(e -> {
+				if (e == null)
+					return;
+				try {
+					writer.write(e.getKey(), e.getValue());
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+				if (state != null)
+					outputs.put(e.getKey(), InstrumentationState.hash(e.getValue()));
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		if (state != null) {
+			state.setConfig(config);
+			Set<String> names = new HashSet<>();
+			for (Entry e : entries) {
+				names.add(e.name);
+				if (instrumented.contains(e.name))
+					continue;
+				state.put(e.name, new InstrumentationState.Record(e.hash, e.header,
+						outputs.getOrDefault(e.name, e.hash), InstrumentationState.orEmpty(traced.get(e.cmd))));
+			}
+			state.retain(names);
+		}
+
+		long rewritten = System.nanoTime();
+
+		InstrumentationStatistics statistics = new InstrumentationStatistics(entries.size(), todo.size(),
+				traced.size(), scanned - start, marked - scanned, rewritten - marked);
+		for (Entry e : todo)
+			for (String size : sizes.getOrDefault(e.name, Collections.emptyList()))
+				statistics.addSize(size);
+		for (String name : new TreeSet<>(types.getMissing()))
+			statistics.addWarning("Class " + name.replace('/', '.')
+					+ " not found, the stack map frames assume java.lang.Object as common superclass");
+
+		if (false) {
+			for (String copy : new String[] { "tracing/Tracer.class", "tracing/Tracer$1.class",
+					"tracing/Tracer$2.class", "tracing/DefaultTracingCallback.class" }) {
+
+				try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+					try (InputStream stream = ClassLoader.getSystemClassLoader().getResourceAsStream(copy);) {
+						byte[] buf = new byte[8192];
+						int read;
+						while ((read = stream.read(buf)) != -1) {
+							baos.write(buf, 0, read);
+
+						}
+					}
+					baos.flush();
+					writer.write(copy, baos.toByteArray());
+				}
+			}
+
+			Path p = Paths.get("c:/Users/Mirko/git/jdbc-tracing/jdbc-tracing-api/target/classes");
+
+			try (InputStream stream = Files
+					.newInputStream(p.resolve(TracingMethodVisitor.callbackInterface + ".class"))) {
+				ClassReader cr = new ClassReader(stream);
+				ClassWriter cw = new ClassWriter(cr, 0);
+
+				cr.accept(cw, 0);
+
+				String impl = "tracing/DefaultTracingCallback";
+				{
+					FieldVisitor fv = cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
+							"instance", "L" + TracingMethodVisitor.callbackInterface + ";", null, null);
+					fv.visitEnd();
+				}
+				{
+					MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+					mv.visitCode();
+					mv.visitTypeInsn(Opcodes.NEW, impl);
+					mv.visitInsn(Opcodes.DUP);
+					mv.visitMethodInsn(Opcodes.INVOKESPECIAL, impl, "<init>", "()V", false);
+					mv.visitFieldInsn(Opcodes.PUTSTATIC, TracingMethodVisitor.callbackInterface, "instance",
+							"L" + TracingMethodVisitor.callbackInterface + ";");
+					mv.visitInsn(Opcodes.RETURN);
+					mv.visitMaxs(2, 0);
+					mv.visitEnd();
+				}
+
+				byte[] bytes = cw.toByteArray();
+
+				ZipEntry ze = new ZipEntry(TracingMethodVisitor.callbackInterface + ".class");
+				writer.write(TracingMethodVisitor.callbackInterface + ".class", bytes);
+
+			}
+		}
+
+		return statistics;
 	}
 
-	static class Resource {
-		String name;
-		Supplier<InputStream> is;
+	private static <T> Stream<T> stream(List<T> list, InstrumentationOptions options) {
+		return options.isParallel() ? list.parallelStream() : list.stream();
 	}
 
-	static void process(ClassLoader classLoader, Iterable<Resource> resources, Writer writer) throws IOException {
-		// Path in =
-		// Paths.get("W:/work/workspaces/fisng/workspace/tracing-db/target/tracing-db-0.0.1-SNAPSHOT.jar");
+	/**
+	 * The scan only needs the class header and the method signatures.
+	 */
+	private static final int SCAN_FLAGS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+	/**
+	 * Instruments the methods of a class, computing frames only for the
+	 * instrumented methods. These are written to a separate class first, all
+	 * other methods are copied without being decoded.
+	 */
+	private static byte[] instrumentMethods(ClassReader cr, Map<MethodSignature, TracedMethod> map,
+			InstrumentationOptions options, NonLoadingClassWriter.Types types) {
+		ClassWriter fw = new NonLoadingClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, types);
+		cr.accept(new ClassVisitor(Opcodes.ASM5, new TracingClassVisitor(fw, map, options)) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions) {
+				if (!map.containsKey(new MethodSignature(name, desc)))
+					return null;
+				return super.visitMethod(access, name, desc, signature, exceptions);
+			}
+		}, ClassReader.EXPAND_FRAMES);
+
+		ClassNode instrumented = new ClassNode();
+		new ClassReader(fw.toByteArray()).accept(instrumented, 0);
+		Map<MethodSignature, MethodNode> methods = new LinkedHashMap<>();
+		for (Object o : instrumented.methods) {
+			MethodNode mn = (MethodNode) o;
+			methods.put(new MethodSignature(mn.name, mn.desc), mn);
+		}
 
-		List<Entry> entries = new ArrayList<>();
-		ClassHierarchy ch = new ClassHierarchy();
-
-		System.err.println("X");
-		for (Resource r : resources) {
-			System.err.println("ENTRY " + r.name);
-			if (r.name.endsWith(".class")) {
-				ClassReader reader = new ClassReader(r.is.get());
-
-				ScanClassVisitor v = new ScanClassVisitor();
-				reader.accept(v, 0);
-				ch.add(reader, v.cmd);
-				Entry e = new Entry();
-				e.cr = reader;
-				e.name = r.name;
-				entries.add(e);
+		ClassWriter cw = new ClassWriter(cr, 0);
+		cr.accept(new ClassVisitor(Opcodes.ASM5, cw) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions) {
+				MethodNode mn = methods.remove(new MethodSignature(name, desc));
+				if (mn == null)
+					return super.visitMethod(access, name, desc, signature, exceptions);
+				mn.accept(cv);
+				return null;
+			}
+
+			@Override
+			public void visitEnd() {
+				// methods added by the instrumentation
+				for (MethodNode mn : methods.values())
+					mn.accept(cv);
+				super.visitEnd();
 			}
+		}, 0);
+
+		return cw.toByteArray();
+	}
+
+	/**
+	 * The default limits of HotSpot for inlining a method: always inlined up
+	 * to {@code MaxInlineSize}, if called frequently up to
+	 * {@code FreqInlineSize}.
+	 */
+	private static final int MAX_INLINE_SIZE = 35;
+
+	private static final int FREQ_INLINE_SIZE = 325;
+
+	/**
+	 * Lists the bytecode size of the traced methods of a class before and
+	 * after the instrumentation and the size of the outlined helpers, one line
+	 * each.
+	 */
+	private static List<String> sizeReport(Entry e, byte[] bytes, Map<MethodSignature, TracedMethod> map) {
+		Map<MethodSignature, Integer> before = codeSizes(e.cr != null ? e.cr : read(e.resource));
+		Map<MethodSignature, Integer> after = codeSizes(new ClassReader(bytes));
+
+		String className = e.cmd.name;
+		List<String> result = new ArrayList<>();
+		List<MethodSignature> sigs = new ArrayList<>(map.keySet());
+		sigs.sort(Comparator.comparing((MethodSignature m) -> m.name).thenComparing(m -> m.description));
+		for (MethodSignature sig : sigs) {
+			int from = before.get(sig);
+			int to = after.get(sig);
+			StringBuilder b = new StringBuilder();
+			b.append(className).append('.').append(sig.name).append(sig.description).append(' ')
+					.append(from).append(" -> ").append(to);
+			if (from <= MAX_INLINE_SIZE && to > MAX_INLINE_SIZE)
+				b.append(" exceeds MaxInlineSize ").append(MAX_INLINE_SIZE);
+			else if (from <= FREQ_INLINE_SIZE && to > FREQ_INLINE_SIZE)
+				b.append(" exceeds FreqInlineSize ").append(FREQ_INLINE_SIZE);
+			result.add(b.toString());
 		}
 
-		List<String> all = Arrays.asList("javax/sql/DataSource", "javax/sql/XADataSource");
-		List<String> ps = Arrays.asList("java/sql/CallableStatement", "java/sql/PreparedStatement",
-				"java/sql/Statement");
-		List<String> conn2 = Arrays.asList("javax/sql/XAConnection", "javax/sql/PooledConnection");
-		List<String> conn = Arrays.asList("java/sql/Connection");
-		List<String> ih = Arrays.asList("java/lang/reflect/InvocationHandler");
-		List<String> xa = Arrays.asList("javax/transaction/xa/XAResource");
+		int helpers = 0;
+		int helperSize = 0;
+		for (Map.Entry<MethodSignature, Integer> m : after.entrySet())
+			if (m.getKey().name.startsWith(OutlinedCallbacks.PREFIX)) {
+				++helpers;
+				helperSize += m.getValue();
+			}
+		if (helpers != 0)
+			result.add(className + " " + helpers + " helpers " + helperSize);
+
+		return result;
+	}
 
+	static Map<MethodSignature, Integer> codeSizes(ClassReader cr) {
+		Map<MethodSignature, Integer> result = new HashMap<>();
+		cr.accept(new ClassVisitor(Opcodes.ASM5) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+					String[] exceptions) {
+				return new CodeSizeEvaluator(null) {
+					@Override
+					public void visitEnd() {
+						result.put(new MethodSignature(name, desc), getMaxSize());
+					}
+				};
+			}
+		}, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return result;
+	}
+
+	private static Entry scan(Resource r, InstrumentationOptions options, boolean hash) {
+		Entry e = new Entry();
+		e.name = r.name;
+		e.resource = r;
+		ClassReader cr = read(r);
+		ScanClassVisitor v = new ScanClassVisitor();
+		cr.accept(v, SCAN_FLAGS);
+		e.cmd = v.cmd;
+		if (hash) {
+			e.hash = InstrumentationState.hash(cr.b);
+			e.header = header(e.cmd);
+		}
+		if (!options.isStreaming())
+			e.cr = cr;
+		return e;
+	}
+
+	private static String header(ClassMetadata cmd) {
+		StringBuilder b = new StringBuilder();
+		b.append(cmd.name).append(' ').append(cmd.type).append(' ').append(cmd.superName).append(' ')
+				.append(cmd.interfaces);
+		for (MethodMetadata m : cmd.getMethods())
+			b.append('\n').append(m.getAccess()).append(' ').append(m.getSignature());
+		return InstrumentationState.hash(b.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String codeHash;
+
+	/**
+	 * Identifies the code of this library, so that classes instrumented by a
+	 * different build of it are recognized.
+	 */
+	static synchronized String codeHash() throws IOException {
+		if (codeHash == null) {
+			Path location;
+			try {
+				location = Paths.get(InstumentationCore.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+
+			if (Files.isDirectory(location)) {
+				Path dir = location.resolve(InstumentationCore.class.getPackage().getName().replace('.', '/'));
+				List<Path> files;
+				try (Stream<Path> s = Files.list(dir)) {
+					files = s.sorted().collect(Collectors.toList());
+				}
+				ByteArrayOutputStream content = new ByteArrayOutputStream();
+				for (Path p : files) {
+					content.write(p.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+					content.write(Files.readAllBytes(p));
+				}
+				codeHash = InstrumentationState.hash(content.toByteArray());
+			} else {
+				codeHash = InstrumentationState.hash(Files.readAllBytes(location));
+			}
+		}
+		return codeHash;
+	}
+
+	private static ClassReader read(Resource r) {
+		try (InputStream is = r.is.get()) {
+			return new ClassReader(is);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Instruments a class, returns {@code null} if the class is not changed.
+	 */
+	private static byte[] rewrite(NonLoadingClassWriter.Types types, Entry e, Map<MethodSignature, TracedMethod> map,
+			InstrumentationOptions options) {
+		if (map != null) {
+			ClassReader cr = e.cr != null ? e.cr : read(e.resource);
+
+			if (TracingClassVisitor.raisesVersion(cr.readInt(4), options)) {
+				ClassWriter cw = new NonLoadingClassWriter(cr,
+						0 | ClassReader.EXPAND_FRAMES | ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS, types);
+
+				ClassVisitor returnAdapter;
+				returnAdapter = new TracingClassVisitor(cw, map, options);
+				cr.accept(returnAdapter, 0 | ClassReader.EXPAND_FRAMES);
+
+				return cw.toByteArray();
+			}
+
+			return instrumentMethods(cr, map, options, types);
+		} else if (e.name.equals(TracingMethodVisitor.callbackInterface + ".class")) {
+			ClassReader cr = e.cr != null ? e.cr : read(e.resource);
+			ClassWriter cw = new ClassWriter(cr, 0);
+
+			cr.accept(cw, 0);
+
+			String factory = "com/github/pms1/jdbctracing/api/TracingCallbacks";
+			{
+				FieldVisitor fv = cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
+						"instance", "L" + TracingMethodVisitor.callbackInterface + ";", null, null);
+				fv.visitEnd();
+			}
+			{
+				MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+				mv.visitCode();
+				mv.visitMethodInsn(Opcodes.INVOKESTATIC, factory, "create",
+						"()L" + TracingMethodVisitor.callbackInterface + ";", false);
+				mv.visitFieldInsn(Opcodes.PUTSTATIC, TracingMethodVisitor.callbackInterface, "instance",
+						"L" + TracingMethodVisitor.callbackInterface + ";");
+				mv.visitInsn(Opcodes.RETURN);
+				mv.visitMaxs(1, 0);
+				mv.visitEnd();
+			}
+
+			return cw.toByteArray();
+		}
+		return null;
+	}
+
+	/**
+	 * Assigns dense ids to the marked methods and writes the method table
+	 * class of the artifact with its list of methods. Ids are assigned in
+	 * lexical order of class, name and signature so the result does not depend
+	 * on the order of the resources. The table class is named after the hash
+	 * of the list, so artifacts instrumented separately get different tables.
+	 */
+	private static Map<ClassMetadata, Map<MethodSignature, TracedMethod>> assignIds(
+			Map<ClassMetadata, Map<MethodSignature, String>> allMarks, Writer writer, InstrumentationOptions options)
+			throws IOException {
+		SortedMap<String, Integer> ids = new TreeMap<>();
+		for (Map<MethodSignature, String> marks : allMarks.values())
+			for (java.util.Map.Entry<MethodSignature, String> e : marks.entrySet())
+				ids.put(e.getValue() + " " + e.getKey().name + " " + e.getKey().description, null);
+
+		if (ids.isEmpty())
+			return Collections.emptyMap();
+
+		StringBuilder table = new StringBuilder();
+		int id = 0;
+		for (java.util.Map.Entry<String, Integer> e : ids.entrySet()) {
+			e.setValue(id++);
+			table.append(e.getKey()).append('\n');
+		}
+		byte[] list = table.toString().getBytes(StandardCharsets.UTF_8);
+		String tableClass = MethodTable.PACKAGE.replace('.', '/') + "/Methods_"
+				+ InstrumentationState.hash(list).substring(0, 16);
+		writer.write(tableClass + MethodTable.TABLE_RESOURCE_SUFFIX, list);
+		writer.write(tableClass + ".class", tableClass(tableClass));
+
+		Map<ClassMetadata, Map<MethodSignature, TracedMethod>> result = new HashMap<>();
+		for (java.util.Map.Entry<ClassMetadata, Map<MethodSignature, String>> c : allMarks.entrySet()) {
+			Map<MethodSignature, TracedMethod> traced = new HashMap<>();
+			for (java.util.Map.Entry<MethodSignature, String> e : c.getValue().entrySet()) {
+				String owner = e.getValue();
+				traced.put(e.getKey(),
+						new TracedMethod(owner, tableClass, ids.get(owner + " " + e.getKey().name + " " + e.getKey().description),
+								options.getArgumentCapture(owner, e.getKey().name)));
+			}
+			result.put(c.getKey(), traced);
+		}
+		return result;
+	}
+
+	/**
+	 * Generates a table class: its static initializer registers the list of
+	 * methods next to it with the {@link MethodTable} and stores the first id
+	 * in its {@value MethodTable#BASE} field.
+	 */
+	private static byte[] tableClass(String name) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC, name,
+				null, "java/lang/Object", null);
+		cw.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, MethodTable.BASE, "I", null, null)
+				.visitEnd();
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(Type.getObjectType(name));
+		mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/github/pms1/jdbctracing/api/MethodTable", "register",
+				"(Ljava/lang/Class;)I", false);
+		mv.visitFieldInsn(Opcodes.PUTSTATIC, name, MethodTable.BASE, "I");
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Adds the JDBC interfaces and their superinterfaces from the system class
+	 * loader to the hierarchy.
+	 */
+	static void addLibraries(ClassHierarchy ch) throws IOException {
 		LinkedList<String> todo = new LinkedList<>();
 		todo.add("java/lang/Object");
 		todo.addAll(all);
@@ -352,10 +936,21 @@ public class InstumentationCore {
 
 			ClassReader r = new ClassReader(ClassLoader.getSystemClassLoader().getResourceAsStream(t + ".class"));
 			ScanClassVisitor v = new ScanClassVisitor();
-			r.accept(v, 0);
-			ch.addLibrary(r, v.cmd);
+			r.accept(v, SCAN_FLAGS);
+			ch.addLibrary(v.cmd);
 			todo.addAll(v.cmd.interfaces);
 		}
+	}
+
+	/**
+	 * Determines the methods to trace: for each concrete class implementing one
+	 * of the JDBC interfaces the implementation of each interface method is
+	 * marked with the interface it is reported for.
+	 */
+	static Map<ClassMetadata, Map<MethodSignature, String>> mark(ClassHierarchy ch) {
+		ch.index();
+
+		Map<String, Map<MethodSignature, ClassMetadata>> signatures = new HashMap<>();
 
 		Map<ClassMetadata, Map<MethodSignature, String>> allMarks2 = new HashMap<>();
 
@@ -369,8 +964,11 @@ public class InstumentationCore {
 					if (!ch.hasSuperClass(c.name, l1))
 						continue;
 
-					Map<MethodSignature, ClassMetadata> toSet = new HashMap<>();
-					collectSignatures(ch, ch.get(l1), toSet);
+					Map<MethodSignature, ClassMetadata> toSet = signatures.computeIfAbsent(l1, (x) -> {
+						Map<MethodSignature, ClassMetadata> result = new HashMap<>();
+						collectSignatures(ch, ch.get(x), result);
+						return result;
+					});
 
 					ClassMetadata c1;
 
@@ -380,8 +978,7 @@ public class InstumentationCore {
 
 						for (c1 = c; c1 != null; c1 = ch.getSuperClass(c1)) {
 
-							if (!c1.getMethods().stream().map(MethodMetadata::getSignature)
-									.anyMatch(e.getKey()::equals))
+							if (!c1.declares(e.getKey()))
 								continue;
 
 							Map<MethodSignature, String> marks = allMarks2.computeIfAbsent(c1, (x) -> new HashMap<>());
@@ -392,14 +989,8 @@ public class InstumentationCore {
 							}
 
 							marks.put(e.getKey(), mark);
-							mark = "";
 							break;
 						}
-
-						if (!mark.isEmpty()) {
-							System.err.println("not marked " + e);
-						}
-
 					}
 				}
 
@@ -412,8 +1003,6 @@ public class InstumentationCore {
 
 			for (String t : all) {
 				if (ch.hasSuperClass(c.name, t)) {
-
-					System.err.println("MARK ALL " + c);
 					boolean seenObject = false;
 
 					Set<MethodSignature> m = new HashSet<>();
@@ -447,129 +1036,7 @@ public class InstumentationCore {
 			}
 		}
 
-		for (Entry e : entries) {
-			ClassMetadata cmd = ch.byReader.get(e.cr);
-			Map<MethodSignature, String> map = allMarks2.get(cmd);
-			if (map != null) {
-				ClassWriter cw = new ClassWriter(e.cr,
-						0 | ClassReader.EXPAND_FRAMES | ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
-					protected String getCommonSuperClass(final String type1, final String type2) {
-						Class<?> c, d;
-
-						try {
-							c = Class.forName(type1.replace('/', '.'), false, classLoader);
-							d = Class.forName(type2.replace('/', '.'), false, classLoader);
-						} catch (ClassNotFoundException e) {
-							return "java/lang/Object";
-							// throw new RuntimeException(e.toString() + " " +
-							// type1 + " " + type2);
-						}
-						if (c.isAssignableFrom(d)) {
-							return type1;
-						}
-						if (d.isAssignableFrom(c)) {
-							return type2;
-						}
-						if (c.isInterface() || d.isInterface()) {
-							return "java/lang/Object";
-						} else {
-							do {
-								c = c.getSuperclass();
-							} while (!c.isAssignableFrom(d));
-							return c.getName().replace('.', '/');
-						}
-					}
-				};
-
-				ClassVisitor returnAdapter;
-				returnAdapter = new TracingClassVisitor(cw, map);
-				e.cr.accept(returnAdapter, 0 | ClassReader.EXPAND_FRAMES);
-
-				writer.write(e.name, cw.toByteArray());
-			} else if (e.name.equals(TracingMethodVisitor.callbackInterface + ".class")) {
-				ClassWriter cw = new ClassWriter(e.cr, 0);
-
-				e.cr.accept(cw, 0);
-
-				String impl = "com/github/pms1/jdbctracing/tracers/DefaultTracingCallback";
-				{
-					FieldVisitor fv = cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
-							"instance", "L" + TracingMethodVisitor.callbackInterface + ";", null, null);
-					fv.visitEnd();
-				}
-				{
-					MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
-					mv.visitCode();
-					mv.visitTypeInsn(Opcodes.NEW, impl);
-					mv.visitInsn(Opcodes.DUP);
-					mv.visitMethodInsn(Opcodes.INVOKESPECIAL, impl, "<init>", "()V", false);
-					mv.visitFieldInsn(Opcodes.PUTSTATIC, TracingMethodVisitor.callbackInterface, "instance",
-							"L" + TracingMethodVisitor.callbackInterface + ";");
-					mv.visitInsn(Opcodes.RETURN);
-					mv.visitMaxs(2, 0);
-					mv.visitEnd();
-				}
-
-				byte[] bytes = cw.toByteArray();
-
-				writer.write(TracingMethodVisitor.callbackInterface + ".class", bytes);
-			}
-		}
-
-		if (false) {
-			for (String copy : new String[] { "tracing/Tracer.class", "tracing/Tracer$1.class",
-					"tracing/Tracer$2.class", "tracing/DefaultTracingCallback.class" }) {
-
-				try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-					try (InputStream stream = ClassLoader.getSystemClassLoader().getResourceAsStream(copy);) {
-						byte[] buf = new byte[8192];
-						int read;
-						while ((read = stream.read(buf)) != -1) {
-							baos.write(buf, 0, read);
-
-						}
-					}
-					baos.flush();
-					writer.write(copy, baos.toByteArray());
-				}
-			}
-
-			Path p = Paths.get("c:/Users/Mirko/git/jdbc-tracing/jdbc-tracing-api/target/classes");
-
-			try (InputStream stream = Files
-					.newInputStream(p.resolve(TracingMethodVisitor.callbackInterface + ".class"))) {
-				ClassReader cr = new ClassReader(stream);
-				ClassWriter cw = new ClassWriter(cr, 0);
-
-				cr.accept(cw, 0);
-
-				String impl = "tracing/DefaultTracingCallback";
-				{
-					FieldVisitor fv = cw.visitField(Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_STATIC,
-							"instance", "L" + TracingMethodVisitor.callbackInterface + ";", null, null);
-					fv.visitEnd();
-				}
-				{
-					MethodVisitor mv = cw.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
-					mv.visitCode();
-					mv.visitTypeInsn(Opcodes.NEW, impl);
-					mv.visitInsn(Opcodes.DUP);
-					mv.visitMethodInsn(Opcodes.INVOKESPECIAL, impl, "<init>", "()V", false);
-					mv.visitFieldInsn(Opcodes.PUTSTATIC, TracingMethodVisitor.callbackInterface, "instance",
-							"L" + TracingMethodVisitor.callbackInterface + ";");
-					mv.visitInsn(Opcodes.RETURN);
-					mv.visitMaxs(2, 0);
-					mv.visitEnd();
-				}
-
-				byte[] bytes = cw.toByteArray();
-
-				ZipEntry ze = new ZipEntry(TracingMethodVisitor.callbackInterface + ".class");
-				writer.write(TracingMethodVisitor.callbackInterface + ".class", bytes);
-
-			}
-		}
-
+		return allMarks2;
 	}
 
 	private static void collectSignatures(ClassHierarchy ch, ClassMetadata classMetadata,
@@ -590,11 +1057,20 @@ public class InstumentationCore {
 	}
 
 	public static void run(Path path) {
+		run(path, new InstrumentationOptions());
+	}
+
+	public static InstrumentationStatistics run(Path path, InstrumentationOptions options) {
+		return run(path, options, (InstrumentationState) null);
+	}
+
+	private static InstrumentationStatistics run(Path path, InstrumentationOptions options,
+			InstrumentationState state) {
 
 		Iterable<Resource> files = () -> {
 
 			try {
-				return Files.find(path, Integer.MAX_VALUE, (p, b) -> !b.isDirectory()).map(p -> {
+				return Files.find(path, Integer.MAX_VALUE, (p, b) -> !b.isDirectory()).sorted().map(p -> {
 					Resource r = new Resource();
 					r.name = path.relativize(p).toString().replace('\\', '/');
 					r.is = () -> {
@@ -611,16 +1087,199 @@ public class InstumentationCore {
 			}
 		};
 
-		try {
-			ClassLoader classLoader = new URLClassLoader(new URL[] { path.toUri().toURL() });
-			process(classLoader, files, (p1, bytes) -> {
-				Files.write(path.resolve(p1), bytes);
-				Path palt = Paths.get("c:/temp/").resolve(p1);
-				Files.createDirectories(palt.getParent());
-				Files.write(palt, bytes);
-			});
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[] { path.toUri().toURL() })) {
+			return process(classLoader, files, (p1, bytes) -> {
+				Path target = path.resolve(p1);
+				Files.createDirectories(target.getParent());
+				Files.write(target, bytes);
+			}, options, state);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Instruments the classes of a directory in place, skipping the classes
+	 * that were not changed since the run that wrote the state file.
+	 */
+	public static InstrumentationStatistics run(Path path, InstrumentationOptions options, Path stateFile)
+			throws IOException {
+		InstrumentationState state = InstrumentationState.read(stateFile);
+		InstrumentationStatistics statistics = run(path, options, state);
+		Files.createDirectories(stateFile.toAbsolutePath().getParent());
+		state.write(stateFile);
+		return statistics;
+	}
+
+	/**
+	 * Instruments the classes of some jars and writes them together with all
+	 * other entries to a new jar, in the order of the input. Entries that are
+	 * not changed are copied without being decompressed, instrumented classes
+	 * keep their compression method and are written as they are rewritten.
+	 * The method table is added at the end. If an entry exists in more than
+	 * one jar, the one of the first jar is used.
+	 *
+	 * The signatures of signed jars would not match the instrumented classes,
+	 * so they are removed together with the digests in the manifest, with a
+	 * warning in the returned statistics.
+	 */
+	public static InstrumentationStatistics run(List<Path> in, Path out, InstrumentationOptions options)
+			throws IOException {
+		List<ZipFile> zips = new ArrayList<>();
+		try {
+			Map<String, ZipFile> sources = new LinkedHashMap<>();
+			List<Resource> resources = new ArrayList<>();
+			List<String> warnings = new ArrayList<>();
+			Set<ZipFile> signed = new HashSet<>();
+			URL[] urls = new URL[in.size()];
+
+			for (int i = 0; i != in.size(); ++i) {
+				ZipFile zip = new ZipFile(in.get(i).toFile());
+				zips.add(zip);
+				urls[i] = in.get(i).toUri().toURL();
+
+				for (ZipArchiveEntry ze : Collections.list(zip.getEntriesInPhysicalOrder())) {
+					if (isSignature(ze.getName())) {
+						if (signed.add(zip))
+							warnings.add("Removed the signature of " + in.get(i)
+									+ ", the instrumented jar is not signed");
+						continue;
+					}
+					if (sources.putIfAbsent(ze.getName(), zip) != null || ze.isDirectory())
+						continue;
+
+					Resource r = new Resource();
+					r.name = ze.getName();
+					r.is = () -> {
+						try {
+							return zip.getInputStream(ze);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					};
+					resources.add(r);
+				}
+			}
+
+			InstrumentationStatistics statistics;
+			try (URLClassLoader classLoader = new URLClassLoader(urls);
+					ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out.toFile())) {
+				JarWriter writer = new JarWriter(zos, sources, signed);
+				statistics = process(classLoader, resources, writer, options);
+				writer.finish();
+			}
+
+			for (String warning : warnings)
+				statistics.addWarning(warning);
+			return statistics;
+		} finally {
+			for (ZipFile zip : zips)
+				zip.close();
+		}
+	}
+
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+	/**
+	 * Whether an entry is part of the signature of a jar.
+	 */
+	static boolean isSignature(String name) {
+		if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1)
+			return false;
+		String n = name.substring("META-INF/".length()).toUpperCase(Locale.ROOT);
+		return n.startsWith("SIG-") || n.endsWith(".SF") || n.endsWith(".RSA") || n.endsWith(".DSA")
+				|| n.endsWith(".EC");
+	}
+
+	/**
+	 * Writes the output jar in the order of the input. The classes arrive in
+	 * the order of the resources, the entries before each class are copied
+	 * when it is written. Generated resources are kept until the end.
+	 */
+	private static final class JarWriter implements Writer {
+		private final ZipArchiveOutputStream zos;
+		private final Map<String, ZipFile> sources;
+		private final Set<ZipFile> signed;
+		private final Iterator<Map.Entry<String, ZipFile>> pending;
+		private final Map<String, byte[]> generated = new LinkedHashMap<>();
+
+		JarWriter(ZipArchiveOutputStream zos, Map<String, ZipFile> sources, Set<ZipFile> signed) {
+			this.zos = zos;
+			this.sources = sources;
+			this.signed = signed;
+			this.pending = sources.entrySet().iterator();
+		}
+
+		@Override
+		public void write(String name, byte[] bytes) throws IOException {
+			if (name.startsWith(MethodTable.PACKAGE.replace('.', '/') + "/") || !sources.containsKey(name)) {
+				generated.put(name, bytes);
+				return;
+			}
+
+			for (;;) {
+				if (!pending.hasNext())
+					throw new IllegalStateException("Entry written out of order: " + name);
+				Map.Entry<String, ZipFile> e = pending.next();
+				ZipArchiveEntry ze = e.getValue().getEntry(e.getKey());
+				if (e.getKey().equals(name)) {
+					ZipArchiveEntry copy = new ZipArchiveEntry(name);
+					copy.setTime(ze.getTime());
+					InstumentationCore.write(zos, copy, ze.getMethod(), bytes);
+					return;
+				}
+				copy(e.getKey(), e.getValue(), ze);
+			}
+		}
+
+		private void copy(String name, ZipFile zip, ZipArchiveEntry ze) throws IOException {
+			if (generated.containsKey(name)) {
+				// replaced by the generated resource
+			} else if (name.equals(MANIFEST) && signed.contains(zip)) {
+				ZipArchiveEntry copy = new ZipArchiveEntry(name);
+				copy.setTime(ze.getTime());
+				try (InputStream is = zip.getInputStream(ze)) {
+					InstumentationCore.write(zos, copy, ze.getMethod(), withoutDigests(is));
+				}
+			} else {
+				zos.addRawArchiveEntry(ze, zip.getRawInputStream(ze));
+			}
+		}
+
+		void finish() throws IOException {
+			while (pending.hasNext()) {
+				Map.Entry<String, ZipFile> e = pending.next();
+				copy(e.getKey(), e.getValue(), e.getValue().getEntry(e.getKey()));
+			}
+
+			for (Map.Entry<String, byte[]> e : generated.entrySet())
+				InstumentationCore.write(zos, new ZipArchiveEntry(e.getKey()), ZipArchiveEntry.DEFLATED,
+						e.getValue());
+		}
+	}
+
+	/**
+	 * The manifest without the digests of the entries, entries without other
+	 * attributes are removed.
+	 */
+	private static byte[] withoutDigests(InputStream is) throws IOException {
+		Manifest manifest = new Manifest(is);
+		for (Iterator<Attributes> i = manifest.getEntries().values().iterator(); i.hasNext();) {
+			Attributes attributes = i.next();
+			attributes.keySet().removeIf(k -> k.toString().toUpperCase(Locale.ROOT).endsWith("-DIGEST"));
+			if (attributes.isEmpty())
+				i.remove();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+		return out.toByteArray();
+	}
+
+	private static void write(ZipArchiveOutputStream zos, ZipArchiveEntry ze, int method, byte[] bytes)
+			throws IOException {
+		ze.setMethod(method);
+		zos.putArchiveEntry(ze);
+		zos.write(bytes);
+		zos.closeArchiveEntry();
+	}
 }
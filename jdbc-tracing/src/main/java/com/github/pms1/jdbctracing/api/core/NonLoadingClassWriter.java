@@ -2,156 +2,197 @@ package com.github.pms1.jdbctracing.api.core;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import com.github.pms1.jdbctracing.api.core.InstumentationCore.ClassHierarchy;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore.ClassMetadata;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore.ClassType;
 
 /**
  * A {@link ClassWriter} that implements
  * {@link #getCommonSuperClass(String, String)} without loading classes into a
- * {@link ClassLoader}.
- * 
- * This implementation is likely to be sub-optimal regarding performance or
- * correctness.
- * 
+ * {@link ClassLoader}. The result is the same as that of
+ * {@link ClassWriter#getCommonSuperClass(String, String)}, except for classes
+ * that are not found: these are assumed to have only {@code java/lang/Object}
+ * in common with other classes and are collected in
+ * {@link Types#getMissing()} for the statistics of the run.
+ *
  * @author pms1
  */
 final class NonLoadingClassWriter extends ClassWriter {
+	private static final String OBJECT = "java/lang/Object";
+
 	static class Metaclass {
 		final String className;
 		final String superClass;
-		final String[] interfaces;
+		final List<String> interfaces;
+		final boolean isInterface;
 
-		Metaclass(String className, String superClass, String[] interfaces) {
+		Metaclass(String className, String superClass, List<String> interfaces, boolean isInterface) {
 			this.className = className;
 			this.superClass = superClass;
 			this.interfaces = interfaces;
+			this.isInterface = isInterface;
 		}
 	}
 
-	static Metaclass load(String className, ClassLoader classLoader) {
-
-		try (InputStream is = classLoader.getResourceAsStream(className + ".class")) {
-			if (is != null) {
-				ClassReader cr = new ClassReader(is);
+	private static final Metaclass MISSING = new Metaclass(null, null, Collections.emptyList(), false);
+
+	/**
+	 * The supertypes of the classes seen in a run, shared by all classes
+	 * written in the run. Classes of the {@link ClassHierarchy} are taken from
+	 * there, all others are read from the class files found by the
+	 * {@link ClassLoader}.
+	 */
+	static final class Types {
+		private final ClassHierarchy hierarchy;
+		private final ClassLoader classLoader;
+
+		private final ConcurrentMap<String, Metaclass> classes = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String, Set<String>> supertypes = new ConcurrentHashMap<>();
+		private final ConcurrentMap<String, String> common = new ConcurrentHashMap<>();
+		private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * @param hierarchy
+		 *            the classes already scanned, may be {@code null}
+		 */
+		Types(ClassHierarchy hierarchy, ClassLoader classLoader) {
+			this.hierarchy = hierarchy;
+			this.classLoader = classLoader;
+		}
 
-				return new Metaclass(cr.getClassName(), cr.getSuperName(), cr.getInterfaces());
+		private Metaclass get(String name) {
+			Metaclass result = classes.get(name);
+			if (result == null) {
+				result = load(name);
+				Metaclass old = classes.putIfAbsent(name, result);
+				if (old != null)
+					result = old;
+				else if (result == MISSING && !name.startsWith("["))
+					missing.add(name);
 			}
-		} catch (IOException e) {
-			throw new Error(e);
+			return result;
 		}
 
-		throw new Error("no class " + className);
-	}
-
-	private final Map<String, Metaclass> classes = new HashMap<>();
-	private final ClassLoader cl;
+		private Metaclass load(String name) {
+			if (name.startsWith("["))
+				return MISSING;
 
-	NonLoadingClassWriter(ClassReader classReader, int flags, ClassLoader cl) {
-		super(classReader, flags);
-		this.cl = cl;
-	}
-
-	private Metaclass get(String name) {
-		return classes.computeIfAbsent(name, c -> load(c, cl));
-	}
+			if (hierarchy != null) {
+				ClassMetadata cmd = hierarchy.classes.get(name);
+				if (cmd != null)
+					return new Metaclass(name, cmd.getSuperName(), cmd.getInterfaces(),
+							cmd.getType() == ClassType.INTERFACE);
+			}
 
-	private Set<String> all(Metaclass c) {
-		Set<String> r = new HashSet<>();
-		LinkedList<Metaclass> todo = new LinkedList<>();
-		todo.add(c);
-
-		while (!todo.isEmpty()) {
-			c = todo.removeFirst();
-			if (r.contains(c.className))
-				continue;
-			if (c.superClass != null)
-				todo.add(get(c.superClass));
-			for (String s : c.interfaces)
-				todo.add(get(s));
-			r.add(c.className);
+			try (InputStream is = classLoader.getResourceAsStream(name + ".class")) {
+				if (is == null)
+					return MISSING;
+				ClassReader cr = new ClassReader(is);
+				return new Metaclass(name, cr.getSuperName(), Arrays.asList(cr.getInterfaces()),
+						(cr.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
-		return r;
-	}
 
-	protected String getCommonSuperClass(String type1, String type2) {
-		if (type1.equals(type2))
-			return type1;
+		/**
+		 * The class itself and all its superclasses and interfaces, or
+		 * {@code null} if one of them is missing.
+		 */
+		private Set<String> supertypes(String name) {
+			Set<String> result = supertypes.get(name);
+			if (result != null)
+				return result;
+
+			Metaclass c = get(name);
+			if (c == MISSING)
+				return null;
+
+			result = new HashSet<>();
+			result.add(name);
+			if (c.superClass != null) {
+				Set<String> s = supertypes(c.superClass);
+				if (s == null)
+					return null;
+				result.addAll(s);
+			}
+			for (String i : c.interfaces) {
+				Set<String> s = supertypes(i);
+				if (s == null)
+					return null;
+				result.addAll(s);
+			}
 
-		if (type1.equals("java/lang/Object")) {
-			System.err.println("GCSC4 " + type1 + " " + type2 + " -> " + type1);
-			return type1;
+			Set<String> old = supertypes.putIfAbsent(name, result);
+			return old != null ? old : result;
 		}
-		if (type2.equals("java/lang/Object")) {
-			System.err.println("GCSC5 " + type1 + " " + type2 + " -> " + type2);
-			return type2;
+
+		/**
+		 * The classes that were needed but not found.
+		 */
+		Set<String> getMissing() {
+			return Collections.unmodifiableSet(missing);
 		}
 
-		Metaclass c1 = get(type1);
-		Set<String> all1 = all(c1);
+		String getCommonSuperClass(String type1, String type2) {
+			String key = type1 + " " + type2;
+			String result = common.get(key);
+			if (result == null) {
+				result = compute(type1, type2);
+				common.putIfAbsent(key, result);
+			}
+			return result;
+		}
 
-		if (all1.contains(type2)) {
-			System.err.println("GCSC1 " + type1 + " " + type2 + " -> " + type2);
-			return type2;
+		private String compute(String type1, String type2) {
+			Set<String> s1 = supertypes(type1);
+			Set<String> s2 = supertypes(type2);
+			if (s1 == null || s2 == null)
+				return OBJECT;
+
+			if (s2.contains(type1))
+				return type1;
+			if (s1.contains(type2))
+				return type2;
+
+			Metaclass c = get(type1);
+			if (c.isInterface || get(type2).isInterface)
+				return OBJECT;
+
+			do {
+				c = get(c.superClass);
+			} while (!s2.contains(c.className));
+			return c.className;
 		}
+	}
 
-		Metaclass c2 = get(type2);
-		Set<String> all2 = all(c2);
+	private final Types types;
 
-		if (all2.contains(type1)) {
-			System.err.println("GCSC2 " + type1 + " " + type2 + " -> " + type1);
-			return type1;
-		}
+	NonLoadingClassWriter(int flags, Types types) {
+		super(flags);
+		this.types = types;
+	}
 
-		all1.retainAll(all2);
-
-		// At this point, all1 contains all common superclasses and interfaces.
-		// Probably the lowest common class should be searched, but it seems
-		// that any will suffice as long as it is not Object or Serializable.
-		// Most likely this is *NOT* true and this code needs to be better.
-		all1.remove("java/lang/Object");
-		boolean hasSerializeable = all1.remove("java/io/Serializable");
-
-		if (!all1.isEmpty()) {
-			System.err.println("GCSC3 " + type1 + " " + type2 + " -> " + all1);
-			return all1.iterator().next();
-		} else if (hasSerializeable) {
-			System.err.println("GCSC3 " + type1 + " " + type2 + " -> java/io/Serializable [" + all1 + "]");
-			return "java/io/Serializable";
-		} else {
-			System.err.println("GCSC3 " + type1 + " " + type2 + " -> java/lang/Object [" + all1 + "]");
-			return "java/lang/Object";
-		}
+	NonLoadingClassWriter(ClassReader classReader, int flags, Types types) {
+		super(classReader, flags);
+		this.types = types;
+	}
 
-		// if(true)
-		// super.getCommonSuperClass(type1, type2);
-		//
-		// Class<?> c, d;
-		// ClassLoader classLoader = wc.getBundleWiring().getClassLoader();
-		// try {
-		// c = Class.forName(type1.replace('/', '.'), false, classLoader);
-		// d = Class.forName(type2.replace('/', '.'), false, classLoader);
-		// } catch (Exception e) {
-		// throw new RuntimeException(e.toString());
-		// }
-		// if (c.isAssignableFrom(d)) {
-		// return type1;
-		// }
-		// if (d.isAssignableFrom(c)) {
-		// return type2;
-		// }
-		// if (c.isInterface() || d.isInterface()) {
-		// return "java/lang/Object";
-		// } else {
-		// do {
-		// c = c.getSuperclass();
-		// } while (!c.isAssignableFrom(d));
-		// return c.getName().replace('.', '/');
-		// }
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		return types.getCommonSuperClass(type1, type2);
 	}
-}
\ No newline at end of file
+}
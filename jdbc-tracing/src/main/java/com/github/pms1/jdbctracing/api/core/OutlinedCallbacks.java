@@ -0,0 +1,439 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import com.github.pms1.jdbctracing.api.TracingCallSites;
+
+/**
+ * The helper methods of a class instrumented with
+ * {@link InstrumentationOptions#isOutline()}. Each helper contains a complete
+ * callback sequence (call depth, argument array, callback invocation), so an
+ * instrumented method only passes its arguments or result, its instance and
+ * the level returned by the enter helper. This keeps small methods small
+ * enough to be inlined by the JIT.
+ *
+ * If nested calls are suppressed, the instrumented method reads the depth slot
+ * of the thread once and passes it to all helpers, before the level.
+ *
+ * The helpers are private static synthetic methods of the instrumented class,
+ * created per traced method and added by {@link #generate(ClassVisitor)}.
+ *
+ * @author pms1
+ */
+final class OutlinedCallbacks {
+	static final String PREFIX = "jdbctracing$";
+
+	private static final Type objectType = Type.getType(Object.class);
+
+	private static final Type throwableType = Type.getType(Throwable.class);
+
+	private static final Type stringType = Type.getType(String.class);
+
+	private static final Type depthType = Type.getType(int[].class);
+
+	private static class Helper {
+		final String name;
+		final String desc;
+		final Consumer<GeneratorAdapter> body;
+
+		Helper(String name, String desc, Consumer<GeneratorAdapter> body) {
+			this.name = name;
+			this.desc = desc;
+			this.body = body;
+		}
+	}
+
+	private final String owner;
+	private final boolean suppressNested;
+	private final boolean switchable;
+	private final boolean timing;
+	private final List<Helper> helpers = new ArrayList<>();
+
+	OutlinedCallbacks(String owner, InstrumentationOptions options) {
+		this.owner = owner;
+		this.suppressNested = options.isSuppressNested();
+		this.switchable = options.getCallSiteMode() == CallSiteMode.INVOKEDYNAMIC;
+		this.timing = options.isTiming();
+	}
+
+	/**
+	 * A helper to be called by an instrumented method.
+	 */
+	static final class Call {
+		final String owner;
+		final String name;
+		final String desc;
+
+		Call(String owner, String name, String desc) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+		}
+	}
+
+	private Call add(String kind, String desc, Consumer<GeneratorAdapter> body) {
+		Helper h = new Helper(PREFIX + kind + "$" + helpers.size(), desc, body);
+		helpers.add(h);
+		return new Call(owner, h.name, h.desc);
+	}
+
+	/**
+	 * {@code ([int[] depth,] Object instance, args...) -> int level}: reads the
+	 * depth, calls {@code enter} and increments the depth. If the callback
+	 * throws, the depth is unchanged.
+	 */
+	Call enter(TracedMethod traced, Type[] args) {
+		String desc = Type.getMethodDescriptor(Type.INT_TYPE, withDepth(prepend(objectType, args)));
+		return add("enter", desc, g -> {
+			int first = suppressNested ? 1 : 0;
+			int level = g.newLocal(Type.INT_TYPE);
+			readLevel(g, level);
+			Label skip = skipCallback(g, () -> g.loadLocal(level));
+			loadCallback(g);
+			loadCapturedArgs(g, traced.capture, args, first + 1);
+			g.loadArg(first);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeCallback(g, "enter", "([Ljava/lang/Object;Ljava/lang/Object;I)V");
+			endSkip(g, skip);
+			incrementDepth(g, 0, () -> g.loadLocal(level));
+			g.loadLocal(level);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * {@code ([int[] depth,] args...) -> int level}: reads the depth and calls
+	 * {@code initEnter}, before the next constructor is called.
+	 */
+	Call initEnter(TracedMethod traced, Type[] args) {
+		String desc = Type.getMethodDescriptor(Type.INT_TYPE, withDepth(args));
+		return add("initEnter", desc, g -> {
+			int level = g.newLocal(Type.INT_TYPE);
+			readLevel(g, level);
+			Label skip = skipCallback(g, () -> g.loadLocal(level));
+			loadCallback(g);
+			loadCapturedArgs(g, traced.capture, args, suppressNested ? 1 : 0);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeCallback(g, "initEnter", "([Ljava/lang/Object;I)V");
+			endSkip(g, skip);
+			g.loadLocal(level);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * {@code (Object instance, args..., [int[] depth,] int level)}: calls
+	 * {@code enter} and increments the depth, after the next constructor was
+	 * called.
+	 */
+	Call initEntered(TracedMethod traced, Type[] args) {
+		Type[] params = prepend(objectType, args);
+		String desc = Type.getMethodDescriptor(Type.VOID_TYPE, levelParams(params, false));
+		return add("initEntered", desc, g -> {
+			int depth = params.length;
+			Runnable level = () -> g.loadArg(depth + (suppressNested ? 1 : 0));
+			Label skip = skipCallback(g, level);
+			loadCallback(g);
+			loadCapturedArgs(g, traced.capture, args, 1);
+			g.loadArg(0);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeCallback(g, "enter", "([Ljava/lang/Object;Ljava/lang/Object;I)V");
+			endSkip(g, skip);
+			incrementDepth(g, depth, level);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * {@code (result, Object instance, [int[] depth,] int level) -> result},
+	 * or {@code (Object instance, [int[] depth,] int level)} for void methods:
+	 * calls the {@code exitReturn} variant for the type and restores the
+	 * depth. If timing, the start time follows the level.
+	 */
+	Call exit(TracedMethod traced, Type returnType) {
+		boolean isVoid = returnType.getSort() == Type.VOID;
+		String desc = isVoid ? Type.getMethodDescriptor(Type.VOID_TYPE, exitParams(objectType))
+				: Type.getMethodDescriptor(returnType, exitParams(returnType, objectType));
+		return add("exit", desc, g -> {
+			int first = isVoid ? 0 : 1;
+			int depth = first + 1;
+			int levelArg = depth + (suppressNested ? 1 : 0);
+			Runnable level = () -> g.loadArg(levelArg);
+			Label skip = skipCallback(g, level);
+			loadCallback(g);
+			String method;
+			String firstArg;
+			if (isVoid) {
+				method = "exitReturn";
+				firstArg = "";
+			} else {
+				g.loadArg(0);
+				if (returnType.getSort() == Type.OBJECT || returnType.getSort() == Type.ARRAY) {
+					method = "exitReturn";
+					firstArg = "Ljava/lang/Object;";
+				} else {
+					method = "exitReturn" + TracingMethodVisitor.primitiveNames[returnType.getSort()];
+					firstArg = returnType.getDescriptor();
+				}
+			}
+			g.loadArg(first);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeExit(g, method, "(" + firstArg + "Ljava/lang/Object;I", levelArg + 1);
+			endSkip(g, skip);
+			restoreDepth(g, depth, level);
+			if (!isVoid)
+				g.loadArg(0);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * {@code (Throwable e, Object instance, [int[] depth,] int level) -> e}:
+	 * calls {@code exitException} and restores the depth. If timing, the start
+	 * time follows the level.
+	 */
+	Call exitException(TracedMethod traced) {
+		String desc = Type.getMethodDescriptor(throwableType, exitParams(throwableType, objectType));
+		return add("exitException", desc, g -> {
+			int depth = 2;
+			int levelArg = depth + (suppressNested ? 1 : 0);
+			Runnable level = () -> g.loadArg(levelArg);
+			Label skip = skipCallback(g, level);
+			loadCallback(g);
+			g.loadArg(0);
+			g.loadArg(1);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeExit(g, "exitException", "(Ljava/lang/Throwable;Ljava/lang/Object;I", levelArg + 1);
+			endSkip(g, skip);
+			restoreDepth(g, depth, level);
+			g.loadArg(0);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * {@code (Throwable e, int level) -> e}: calls
+	 * {@code initExitException}.
+	 */
+	Call initExitException(TracedMethod traced) {
+		String desc = Type.getMethodDescriptor(throwableType, throwableType, Type.INT_TYPE);
+		return add("initExitException", desc, g -> {
+			Label skip = skipCallback(g, () -> g.loadArg(1));
+			loadCallback(g);
+			g.loadArg(0);
+			TracingMethodVisitor.pushId(g, traced);
+			invokeCallback(g, "initExitException", "(Ljava/lang/Throwable;I)V");
+			endSkip(g, skip);
+			g.loadArg(0);
+			g.returnValue();
+		});
+	}
+
+	/**
+	 * Adds the helpers to the class.
+	 */
+	void generate(ClassVisitor cv) {
+		int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+		for (Helper h : helpers) {
+			MethodVisitor mv = cv.visitMethod(access, h.name, h.desc, null, null);
+			GeneratorAdapter g = new GeneratorAdapter(mv, access, h.name, h.desc);
+			g.visitCode();
+			h.body.accept(g);
+			g.endMethod();
+		}
+	}
+
+	/**
+	 * Stores the depth on entry into {@code level}, -1 if tracing is switched
+	 * off. The depth slot is the first argument.
+	 */
+	private void readLevel(GeneratorAdapter g, int level) {
+		Label done = new Label();
+		if (switchable) {
+			Label enabled = new Label();
+			g.visitInvokeDynamicInsn(TracingCallSites.ENABLED, "()Z", TracingMethodVisitor.bootstrap);
+			g.visitJumpInsn(Opcodes.IFNE, enabled);
+			g.push(-1);
+			g.storeLocal(level);
+			g.goTo(done);
+			g.visitLabel(enabled);
+		}
+
+		if (suppressNested) {
+			g.loadArg(0);
+			g.push(0);
+			g.arrayLoad(Type.INT_TYPE);
+			g.storeLocal(level);
+		} else {
+			g.push(0);
+			g.storeLocal(level);
+		}
+
+		g.visitLabel(done);
+	}
+
+	private void incrementDepth(GeneratorAdapter g, int depth, Runnable level) {
+		if (!suppressNested)
+			return;
+
+		Label skip = skipIfDisabled(g, level);
+		g.loadArg(depth);
+		g.push(0);
+		level.run();
+		g.push(1);
+		g.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+		g.arrayStore(Type.INT_TYPE);
+		endSkip(g, skip);
+	}
+
+	private void restoreDepth(GeneratorAdapter g, int depth, Runnable level) {
+		if (!suppressNested)
+			return;
+
+		Label skip = skipIfDisabled(g, level);
+		g.loadArg(depth);
+		g.push(0);
+		level.run();
+		g.arrayStore(Type.INT_TYPE);
+		endSkip(g, skip);
+	}
+
+	private Label skipIfDisabled(GeneratorAdapter g, Runnable level) {
+		if (!switchable)
+			return null;
+
+		Label skip = new Label();
+		level.run();
+		g.visitJumpInsn(Opcodes.IFLT, skip);
+		return skip;
+	}
+
+	private Label skipCallback(GeneratorAdapter g, Runnable level) {
+		if (!suppressNested && !switchable)
+			return null;
+
+		Label skip = new Label();
+		level.run();
+		g.visitJumpInsn(Opcodes.IFNE, skip);
+		return skip;
+	}
+
+	private static void endSkip(GeneratorAdapter g, Label skip) {
+		if (skip != null)
+			g.visitLabel(skip);
+	}
+
+	private void loadCallback(GeneratorAdapter g) {
+		if (switchable)
+			return;
+		g.visitFieldInsn(Opcodes.GETSTATIC, TracingMethodVisitor.callbackInterface, "instance",
+				"L" + TracingMethodVisitor.callbackInterface + ";");
+	}
+
+	private void invokeCallback(GeneratorAdapter g, String method, String desc) {
+		if (switchable)
+			g.visitInvokeDynamicInsn(method, desc, TracingMethodVisitor.bootstrap);
+		else
+			g.visitMethodInsn(Opcodes.INVOKEINTERFACE, TracingMethodVisitor.callbackInterface, method, desc, true);
+	}
+
+	/**
+	 * Pushes the argument array according to the {@link ArgumentCapture}, the
+	 * arguments of the traced method start at argument {@code first} of the
+	 * helper.
+	 */
+	private static void loadCapturedArgs(GeneratorAdapter g, ArgumentCapture capture, Type[] args, int first) {
+		switch (capture) {
+		case NONE:
+			g.visitInsn(Opcodes.ACONST_NULL);
+			return;
+		case SQL:
+			boolean hasString = false;
+			for (Type t : args)
+				hasString |= t.equals(stringType);
+			if (!hasString) {
+				g.visitInsn(Opcodes.ACONST_NULL);
+				return;
+			}
+			break;
+		default:
+			break;
+		}
+
+		g.push(args.length);
+		g.newArray(objectType);
+		for (int i = 0; i < args.length; ++i) {
+			if (capture == ArgumentCapture.SQL && !args[i].equals(stringType))
+				continue;
+			g.dup();
+			g.push(i);
+			g.loadArg(first + i);
+			g.box(args[i]);
+			g.arrayStore(objectType);
+		}
+	}
+
+	/**
+	 * The parameters of an exit helper: the given ones, the depth slot if
+	 * nested calls are suppressed, the level and the start time if timing.
+	 */
+	private Type[] exitParams(Type... params) {
+		return levelParams(params, timing);
+	}
+
+	/**
+	 * The given parameters followed by the depth slot if nested calls are
+	 * suppressed, the level and optionally the start time.
+	 */
+	private Type[] levelParams(Type[] params, boolean start) {
+		int length = params.length + (suppressNested ? 1 : 0);
+		Type[] result = Arrays.copyOf(params, length + (start ? 2 : 1));
+		if (suppressNested)
+			result[params.length] = depthType;
+		result[length] = Type.INT_TYPE;
+		if (start)
+			result[length + 1] = Type.LONG_TYPE;
+		return result;
+	}
+
+	/**
+	 * The parameters of an enter helper: the depth slot if nested calls are
+	 * suppressed, followed by the given ones.
+	 */
+	private Type[] withDepth(Type[] params) {
+		return suppressNested ? prepend(depthType, params) : params;
+	}
+
+	/**
+	 * Invokes an exit callback whose descriptor starts with {@code desc} and
+	 * lacks the closing parenthesis. If timing, the time elapsed since the
+	 * start time in argument {@code start} is passed as additional argument.
+	 */
+	private void invokeExit(GeneratorAdapter g, String method, String desc, int start) {
+		if (timing) {
+			g.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+			g.loadArg(start);
+			g.math(GeneratorAdapter.SUB, Type.LONG_TYPE);
+			invokeCallback(g, method, desc + "J)V");
+		} else {
+			invokeCallback(g, method, desc + ")V");
+		}
+	}
+
+	private static Type[] prepend(Type first, Type[] rest) {
+		Type[] result = new Type[rest.length + 1];
+		result[0] = first;
+		System.arraycopy(rest, 0, result, 1, rest.length);
+		return result;
+	}
+}
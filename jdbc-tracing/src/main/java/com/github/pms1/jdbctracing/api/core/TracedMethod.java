@@ -0,0 +1,64 @@
+package com.github.pms1.jdbctracing.api.core;
+
+/**
+ * A method marked for tracing: the class or interface it is reported for, the
+ * generated method table class of the artifact, its index in that table and
+ * which of its arguments are captured.
+ *
+ * @author pms1
+ */
+public class TracedMethod {
+	public final String owner;
+	public final String table;
+	public final int id;
+	public final ArgumentCapture capture;
+
+	public TracedMethod(String owner, String table, int id, ArgumentCapture capture) {
+		this.owner = owner;
+		this.table = table;
+		this.id = id;
+		this.capture = capture;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((capture == null) ? 0 : capture.hashCode());
+		result = prime * result + id;
+		result = prime * result + ((owner == null) ? 0 : owner.hashCode());
+		result = prime * result + ((table == null) ? 0 : table.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TracedMethod other = (TracedMethod) obj;
+		if (capture != other.capture)
+			return false;
+		if (id != other.id)
+			return false;
+		if (owner == null) {
+			if (other.owner != null)
+				return false;
+		} else if (!owner.equals(other.owner))
+			return false;
+		if (table == null) {
+			if (other.table != null)
+				return false;
+		} else if (!table.equals(other.table))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return table + " " + id + " " + owner + " " + capture;
+	}
+}
@@ -17,17 +17,35 @@ import com.github.pms1.jdbctracing.api.core.InstumentationCore.MethodSignature;
  */
 public class TracingClassVisitor extends ClassVisitor {
 	private String className;
-	private Map<MethodSignature, String> sigs;
+	private Map<MethodSignature, TracedMethod> sigs;
+	private final InstrumentationOptions options;
+	private OutlinedCallbacks outlined;
 
-	public TracingClassVisitor(ClassVisitor cv, Map<MethodSignature, String> sigs) {
+	public TracingClassVisitor(ClassVisitor cv, Map<MethodSignature, TracedMethod> sigs,
+			InstrumentationOptions options) {
 		super(Opcodes.ASM5, cv);
 		this.sigs = sigs;
+		this.options = options;
+	}
+
+	/**
+	 * Whether the class file version has to be raised, in which case all
+	 * methods of the class need frames and must not use JSR/RET.
+	 */
+	static boolean raisesVersion(int version, InstrumentationOptions options) {
+		return options.getCallSiteMode() == CallSiteMode.INVOKEDYNAMIC && (version & 0xFFFF) < Opcodes.V1_7;
 	}
 
 	@Override
 	public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+		// invokedynamic needs class files of Java 7, JSR/RET are inlined below
+		if (raisesVersion(version, options))
+			version = Opcodes.V1_7;
 		super.visit(version, access, name, signature, superName, interfaces);
 		this.className = name;
+		// private static methods are only allowed in classes
+		if (options.isOutline() && (access & Opcodes.ACC_INTERFACE) == 0)
+			outlined = new OutlinedCallbacks(name, options);
 	}
 
 	@Override
@@ -36,10 +54,17 @@ public class TracingClassVisitor extends ClassVisitor {
 		mv = cv.visitMethod(access, name, desc, signature, exceptions);
 		mv = new JSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
 
-		String mark = sigs.get(new MethodSignature(name, desc));
+		TracedMethod mark = sigs.get(new MethodSignature(name, desc));
 		if (mark != null)
-			mv = new TracingMethodVisitor(Opcodes.ASM5, mark, access, name, desc, mv);
+			mv = new TracingMethodVisitor(Opcodes.ASM5, mark, options, outlined, access, name, desc, mv);
 
 		return mv;
 	}
+
+	@Override
+	public void visitEnd() {
+		if (outlined != null)
+			outlined.generate(cv);
+		super.visitEnd();
+	}
 }
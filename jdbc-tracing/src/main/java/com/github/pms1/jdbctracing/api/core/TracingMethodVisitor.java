@@ -1,11 +1,15 @@
 package com.github.pms1.jdbctracing.api.core;
 
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
 
+import com.github.pms1.jdbctracing.api.MethodTable;
+import com.github.pms1.jdbctracing.api.TracingCallSites;
+
 /**
  * A {@link MethodVisitor} that instruments code for tracing
  * 
@@ -15,59 +19,451 @@ import org.objectweb.asm.commons.AdviceAdapter;
 public class TracingMethodVisitor extends AdviceAdapter {
 	private final Label startSuper = new Label();
 	private final Label startBody = new Label();
+	private Label endSuper;
+	private boolean bodyStarted;
 
-	private final String owner;
+	private final TracedMethod traced;
+	private final ArgumentCapture capture;
+	private final boolean suppressNested;
+	private final boolean switchable;
+	private final boolean timing;
 	private final String name;
 	private final int access;
 
-	public TracingMethodVisitor(int api, String owner, int access, String name, String desc, MethodVisitor mv) {
+	/**
+	 * The helpers of the class if the callback sequences are outlined,
+	 * {@code null} if they are generated inline.
+	 */
+	private final OutlinedCallbacks outlined;
+
+	/**
+	 * The locals holding the depth slot of the thread and the depth when the
+	 * method was entered. The depth slot is only used if nested calls are
+	 * suppressed. A level of -1 marks an invocation that was entered while
+	 * tracing was switched off.
+	 */
+	private int depth;
+	private int level;
+
+	/**
+	 * The local holding the {@link System#nanoTime()} after the enter callback
+	 * if {@link InstrumentationOptions#isTiming()}.
+	 */
+	private int start;
+
+	public TracingMethodVisitor(int api, TracedMethod method, InstrumentationOptions options, int access, String name,
+			String desc, MethodVisitor mv) {
+		this(api, method, options, null, access, name, desc, mv);
+	}
+
+	TracingMethodVisitor(int api, TracedMethod method, InstrumentationOptions options, OutlinedCallbacks outlined,
+			int access, String name, String desc, MethodVisitor mv) {
 		super(Opcodes.ASM5, mv, access, name, desc);
-		this.owner = owner;
+		this.traced = method;
+		this.capture = method.capture;
+		this.suppressNested = options.isSuppressNested();
+		this.switchable = options.getCallSiteMode() == CallSiteMode.INVOKEDYNAMIC;
+		this.timing = options.isTiming();
 		this.name = name;
 		this.access = access;
+		this.outlined = outlined;
 	}
 
 	public static final String callbackInterface = "com/github/pms1/jdbctracing/api/TracingCallback";
 
+	public static final String callDepth = "com/github/pms1/jdbctracing/api/CallDepth";
+
+	public static final String callSites = "com/github/pms1/jdbctracing/api/TracingCallSites";
+
+	static final Handle bootstrap = new Handle(H_INVOKESTATIC, callSites, "bootstrap",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+			false);
+
+	/**
+	 * Pushes the id of a method: the base of the method table of the artifact
+	 * plus the index of the method in it. Written to the given visitor directly
+	 * as {@link AdviceAdapter} cannot track it before the next constructor is
+	 * called.
+	 */
+	static void pushId(MethodVisitor mv, TracedMethod method) {
+		mv.visitFieldInsn(GETSTATIC, method.table, MethodTable.BASE, "I");
+		int id = method.id;
+		if (id == 0)
+			return;
+		if (id <= 5)
+			mv.visitInsn(ICONST_0 + id);
+		else if (id <= Byte.MAX_VALUE)
+			mv.visitIntInsn(BIPUSH, id);
+		else if (id <= Short.MAX_VALUE)
+			mv.visitIntInsn(SIPUSH, id);
+		else
+			mv.visitLdcInsn(id);
+		mv.visitInsn(IADD);
+	}
+
+	/**
+	 * The suffixes of the primitive exitReturn variants, indexed by
+	 * {@link Type#getSort()}.
+	 */
+	static final String[] primitiveNames = { "", "Boolean", "Char", "Byte", "Short", "Int", "Float", "Long",
+			"Double" };
+
 	@Override
 	public void visitCode() {
-		if (name.equals("<init>")) {
+		if (outlined != null && name.equals("<init>")) {
+			readDepth();
+			level = newLocal(Type.INT_TYPE);
+			loadDepth();
+			loadArgs();
+			invokeHelper(outlined.initEnter(traced, argumentTypes()));
+			storeLocal(level);
+		} else if (name.equals("<init>")) {
+			readState();
+			Label skip = skipCallback();
 			loadCallback();
-			loadArgArray();
-			mv.visitLdcInsn(owner);
-			mv.visitLdcInsn(name);
-			mv.visitLdcInsn(methodDesc);
-			mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, callbackInterface, "initEnter",
-					"([Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", true);
+			loadCapturedArgs();
+			pushId(mv, traced);
+			invokeCallback("initEnter", "([Ljava/lang/Object;I)V");
+			endSkip(skip);
 		}
 		visitLabel(startSuper);
 		super.visitCode();
 	}
 
-	private void invokeTracer(String method, String firstArg) {
+	/**
+	 * Stores the depth slot of the current thread and its current value into
+	 * new locals. If tracing can be switched off and is off, the depth is not
+	 * touched and the level is set to -1, so the callbacks of this invocation
+	 * are consistently skipped even if tracing is switched on meanwhile.
+	 */
+	private void readState() {
+		if (!suppressNested && !switchable)
+			return;
+
+		level = newLocal(Type.INT_TYPE);
+		if (suppressNested)
+			depth = newLocal(Type.getType(int[].class));
+
+		Label disabled = null;
+		Label done = null;
+		if (switchable) {
+			disabled = new Label();
+			done = new Label();
+			mv.visitInvokeDynamicInsn(TracingCallSites.ENABLED, "()Z", bootstrap);
+			mv.visitJumpInsn(IFEQ, disabled);
+		}
+
+		if (suppressNested) {
+			mv.visitMethodInsn(INVOKESTATIC, callDepth, "get", "()[I", false);
+			dup();
+			storeLocal(depth);
+			push(0);
+			arrayLoad(Type.INT_TYPE);
+		} else {
+			push(0);
+		}
+		storeLocal(level);
+
+		if (switchable) {
+			mv.visitJumpInsn(GOTO, done);
+			mv.visitLabel(disabled);
+			push(-1);
+			storeLocal(level);
+			if (suppressNested) {
+				mv.visitInsn(ACONST_NULL);
+				storeLocal(depth);
+			}
+			mv.visitLabel(done);
+		}
+	}
+
+	/**
+	 * Stores the depth slot of the current thread into a new local for the
+	 * outlined helpers.
+	 */
+	private void readDepth() {
+		if (!suppressNested)
+			return;
+
+		depth = newLocal(Type.getType(int[].class));
+		mv.visitMethodInsn(INVOKESTATIC, callDepth, "get", "()[I", false);
+		storeLocal(depth);
+	}
+
+	private void loadDepth() {
+		if (suppressNested)
+			loadLocal(depth);
+	}
+
+	private void incrementDepth() {
+		if (!suppressNested)
+			return;
+
+		Label skip = skipIfDisabled();
+		loadLocal(depth);
+		push(0);
+		loadLocal(level);
+		push(1);
+		math(ADD, Type.INT_TYPE);
+		arrayStore(Type.INT_TYPE);
+		endSkip(skip);
+	}
+
+	/**
+	 * Sets the depth back to the value on entry. Setting instead of
+	 * decrementing keeps the depth correct even if a callback throws.
+	 */
+	private void restoreDepth() {
+		if (!suppressNested)
+			return;
+
+		Label skip = skipIfDisabled();
+		loadLocal(depth);
+		push(0);
+		loadLocal(level);
+		arrayStore(Type.INT_TYPE);
+		endSkip(skip);
+	}
+
+	private Label skipIfDisabled() {
+		if (!switchable)
+			return null;
+
+		Label skip = new Label();
+		loadLocal(level);
+		mv.visitJumpInsn(IFLT, skip);
+		return skip;
+	}
+
+	/**
+	 * Skips the following callback invocation up to {@link #endSkip(Label)} if
+	 * this is a nested call of an instrumented method or if tracing was
+	 * switched off when the method was entered.
+	 */
+	private Label skipCallback() {
+		if (!suppressNested && !switchable)
+			return null;
+
+		Label skip = new Label();
+		loadLocal(level);
+		mv.visitJumpInsn(IFNE, skip);
+		return skip;
+	}
+
+	private void endSkip(Label skip) {
+		if (skip != null)
+			mv.visitLabel(skip);
+	}
+
+	/**
+	 * The exception handler for the code before the body of a constructor must
+	 * end right before the call of the next constructor: the verifier rejects
+	 * any handler frame for ranges covering that call. As it is unknown which
+	 * constructor call is the one of the next constructor, every call gets a
+	 * label and the last one before the body starts is used.
+	 */
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+		if (!bodyStarted && opcode == INVOKESPECIAL && name.equals("<init>")
+				&& this.name.equals("<init>")) {
+			endSuper = new Label();
+			mv.visitLabel(endSuper);
+		}
+		super.visitMethodInsn(opcode, owner, name, desc, itf);
+	}
+
+	private void loadInstance() {
 		if ((access & Opcodes.ACC_STATIC) != 0)
 			mv.visitInsn(ACONST_NULL);
 		else
 			loadThis();
+	}
+
+	private void invokeTracer(String method, String firstArg) {
+		loadInstance();
 
-		mv.visitLdcInsn(owner);
-		mv.visitLdcInsn(name);
-		mv.visitLdcInsn(methodDesc);
+		pushId(mv, traced);
 
-		mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, callbackInterface, method,
-				"(" + firstArg + "Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", true);
+		invokeCallback(method, "(" + firstArg + "Ljava/lang/Object;I)V");
+	}
+
+	/**
+	 * Like {@link #invokeTracer(String, String)} for the exit callbacks, which
+	 * get the elapsed time as additional argument if timing.
+	 */
+	private void invokeExit(String method, String firstArg) {
+		if (!timing) {
+			invokeTracer(method, firstArg);
+			return;
+		}
 
+		loadInstance();
+		pushId(mv, traced);
+		invokeNanoTime();
+		loadLocal(start);
+		math(SUB, Type.LONG_TYPE);
+		invokeCallback(method, "(" + firstArg + "Ljava/lang/Object;IJ)V");
+	}
+
+	private void invokeNanoTime() {
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+	}
+
+	/**
+	 * Creates the local for the start time. If the callbacks can be skipped, it
+	 * is initialized, as the exits read it on all paths.
+	 */
+	private void newStart() {
+		if (!timing)
+			return;
+
+		start = newLocal(Type.LONG_TYPE);
+		if (suppressNested || switchable) {
+			push(0L);
+			storeLocal(start);
+		}
+	}
+
+	private void storeStart() {
+		if (!timing)
+			return;
+
+		invokeNanoTime();
+		storeLocal(start);
+	}
+
+	/**
+	 * Invokes a method of the callback. With {@link CallSiteMode#INVOKEDYNAMIC}
+	 * the callback is bound by the call site, so nothing was pushed by
+	 * {@link #loadCallback()} and the descriptor is used as is.
+	 */
+	private void invokeCallback(String method, String desc) {
+		if (switchable)
+			mv.visitInvokeDynamicInsn(method, desc, bootstrap);
+		else
+			mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, callbackInterface, method, desc, true);
+	}
+
+	private void invokeHelper(OutlinedCallbacks.Call call) {
+		mv.visitMethodInsn(INVOKESTATIC, call.owner, call.name, call.desc, false);
+	}
+
+	private Type[] argumentTypes() {
+		return Type.getArgumentTypes(methodDesc);
+	}
+
+	/**
+	 * Pushes the argument array according to the {@link ArgumentCapture}.
+	 */
+	private void loadCapturedArgs() {
+		switch (capture) {
+		case NONE:
+			mv.visitInsn(ACONST_NULL);
+			break;
+		case SQL:
+			loadStringArgArray();
+			break;
+		default:
+			loadArgArray();
+			break;
+		}
+	}
+
+	private static final Type stringType = Type.getType(String.class);
+
+	private static final Type objectType = Type.getType(Object.class);
+
+	private static final Type throwableType = Type.getType(Throwable.class);
+
+	private void loadStringArgArray() {
+		Type[] argumentTypes = Type.getArgumentTypes(methodDesc);
+
+		boolean hasString = false;
+		for (Type t : argumentTypes)
+			hasString |= t.equals(stringType);
+
+		if (!hasString) {
+			mv.visitInsn(ACONST_NULL);
+			return;
+		}
+
+		push(argumentTypes.length);
+		newArray(objectType);
+		for (int i = 0; i < argumentTypes.length; ++i) {
+			if (!argumentTypes[i].equals(stringType))
+				continue;
+			dup();
+			push(i);
+			loadArg(i);
+			arrayStore(objectType);
+		}
 	}
 
 	private void loadCallback() {
+		if (switchable)
+			return;
 		mv.visitFieldInsn(Opcodes.GETSTATIC, callbackInterface, "instance", "L" + callbackInterface + ";");
 	}
 
+	/**
+	 * Like {@link #loadCallback()}, but places the callback below the value of
+	 * the given type on top of the stack.
+	 */
+	private void loadCallbackBelow(Type top) {
+		if (switchable)
+			return;
+		loadCallback();
+		if (top.getSize() == 2) {
+			dupX2();
+			pop();
+		} else {
+			swap();
+		}
+	}
+
+	/**
+	 * For constructors the depth is read before, but only incremented after the
+	 * next constructor was called: exceptions of that call cannot be caught to
+	 * restore the depth. For the same reason the depth is incremented after the
+	 * enter callback, which is not covered by the exception handler of the
+	 * body.
+	 */
 	@Override
 	protected void onMethodEnter() {
+		bodyStarted = true;
+		if (outlined != null) {
+			if (name.equals("<init>")) {
+				loadThis();
+				loadArgs();
+				loadDepth();
+				loadLocal(level);
+				invokeHelper(outlined.initEntered(traced, argumentTypes()));
+			} else {
+				readDepth();
+				level = newLocal(Type.INT_TYPE);
+				loadDepth();
+				loadInstance();
+				loadArgs();
+				invokeHelper(outlined.enter(traced, argumentTypes()));
+				storeLocal(level);
+			}
+			if (timing) {
+				start = newLocal(Type.LONG_TYPE);
+				storeStart();
+			}
+			visitLabel(startBody);
+			return;
+		}
+		if (!name.equals("<init>"))
+			readState();
+		newStart();
+		Label skip = skipCallback();
 		loadCallback();
-		loadArgArray();
+		loadCapturedArgs();
 		invokeTracer("enter", "[Ljava/lang/Object;");
+		storeStart();
+		endSkip(skip);
+		incrementDepth();
 		visitLabel(startBody);
 	}
 
@@ -76,24 +472,46 @@ public class TracingMethodVisitor extends AdviceAdapter {
 		mv.visitLabel(endBody);
 
 		mv.visitTryCatchBlock(startBody, endBody, endBody, "java/lang/Throwable");
+		if (outlined != null) {
+			loadInstance();
+			loadDepth();
+			loadLocal(level);
+			if (timing)
+				loadLocal(start);
+			invokeHelper(outlined.exitException(traced));
+			mv.visitInsn(ATHROW);
+
+			if (name.equals("<init>") && endSuper != null) {
+				Label superExceptionHandler = new Label();
+				mv.visitLabel(superExceptionHandler);
+				mv.visitTryCatchBlock(startSuper, endSuper, superExceptionHandler, "java/lang/Throwable");
+				loadLocal(level);
+				invokeHelper(outlined.initExitException(traced));
+				mv.visitInsn(ATHROW);
+			}
+
+			mv.visitMaxs(maxStack, maxLocals);
+			return;
+		}
+
+		Label skip = skipCallback();
 		dup();
-		loadCallback();
-		swap();
-		invokeTracer("exitException", "Ljava/lang/Throwable;");
+		loadCallbackBelow(throwableType);
+		invokeExit("exitException", "Ljava/lang/Throwable;");
+		endSkip(skip);
+		restoreDepth();
 		mv.visitInsn(ATHROW);
 
-		if (name.equals("<init>")) {
+		if (name.equals("<init>") && endSuper != null) {
 			Label superExceptionHandler = new Label();
 			mv.visitLabel(superExceptionHandler);
-			mv.visitTryCatchBlock(startSuper, startBody, superExceptionHandler, "java/lang/Throwable");
+			mv.visitTryCatchBlock(startSuper, endSuper, superExceptionHandler, "java/lang/Throwable");
+			skip = skipCallback();
 			dup();
-			loadCallback();
-			swap();
-			mv.visitLdcInsn(owner);
-			mv.visitLdcInsn(name);
-			mv.visitLdcInsn(methodDesc);
-			mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, callbackInterface, "initExitException",
-					"(Ljava/lang/Throwable;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V", true);
+			loadCallbackBelow(throwableType);
+			pushId(mv, traced);
+			invokeCallback("initExitException", "(Ljava/lang/Throwable;I)V");
+			endSkip(skip);
 			mv.visitInsn(ATHROW);
 		}
 
@@ -108,33 +526,41 @@ public class TracingMethodVisitor extends AdviceAdapter {
 		if (opcode == ATHROW)
 			return;
 
+		if (outlined != null) {
+			loadInstance();
+			loadDepth();
+			loadLocal(level);
+			if (timing)
+				loadLocal(start);
+			invokeHelper(outlined.exit(traced, Type.getReturnType(methodDesc)));
+			return;
+		}
+
+		Label skip = skipCallback();
+
 		if (opcode == RETURN) {
 			loadCallback();
 			method = "exitReturn";
 			firstArg = "";
 		} else if (opcode == ARETURN) {
 			dup();
-			loadCallback();
-			swap();
+			loadCallbackBelow(objectType);
 			method = "exitReturn";
 			firstArg = "Ljava/lang/Object;";
 		} else {
-			if (opcode == LRETURN || opcode == DRETURN) {
+			Type returnType = Type.getReturnType(this.methodDesc);
+			if (returnType.getSize() == 2)
 				dup2();
-				loadCallback();
-				dupX2();
-				pop();
-			} else {
+			else
 				dup();
-				loadCallback();
-				swap();
-			}
-			box(Type.getReturnType(this.methodDesc));
-			method = "exitReturn";
-			firstArg = "Ljava/lang/Object;";
+			loadCallbackBelow(returnType);
+			method = "exitReturn" + primitiveNames[returnType.getSort()];
+			firstArg = returnType.getDescriptor();
 		}
 
-		invokeTracer(method, firstArg);
+		invokeExit(method, firstArg);
 
+		endSkip(skip);
+		restoreDepth();
 	}
 }
\ No newline at end of file
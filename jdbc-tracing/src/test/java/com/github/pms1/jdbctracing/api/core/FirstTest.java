@@ -1,10 +1,15 @@
 package com.github.pms1.jdbctracing.api.core;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
@@ -12,16 +17,43 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
 
+import com.github.pms1.jdbctracing.api.MethodTable;
+import com.github.pms1.jdbctracing.api.TracingCallSites;
 import com.github.pms1.jdbctracing.api.TracingCallback;
+import com.github.pms1.jdbctracing.api.TracingCallbacks;
+import com.github.pms1.jdbctracing.api.core.InstumentationCore.MethodSignature;
 import com.github.pms1.jdbctracing.api.core.ds1.DS1;
 import com.github.pms1.jdbctracing.api.core.ds1.DS2;
 import com.github.pms1.jdbctracing.api.core.ds1.DS3;
+import com.github.pms1.jdbctracing.api.core.ds1.DS3Super;
+import com.github.pms1.jdbctracing.api.core.proxy.ConnectionHandler;
+import com.github.pms1.jdbctracing.api.core.recording.RecordingTracingCallback;
 import com.github.pms1.jdbctracing.tracers.DefaultTracingCallback;
 
 public class FirstTest {
@@ -56,6 +88,10 @@ public class FirstTest {
 	}
 
 	private void copyPackage(Class<?> c) throws IOException, URISyntaxException {
+		copyPackage(c, tfolder.getRoot().toPath());
+	}
+
+	private void copyPackage(Class<?> c, Path t) throws IOException, URISyntaxException {
 		String res = c.getName().replace('.', '/') + ".class";
 
 		URL url = c.getClassLoader().getResource(res);
@@ -107,7 +143,6 @@ public class FirstTest {
 		String r = c.getPackage().getName().replace('.', '/');
 		Path pf = p.resolve(r);
 
-		Path t = tfolder.getRoot().toPath();
 		Path tf = t.resolve(r);
 
 		Files.createDirectories(tf);
@@ -130,6 +165,100 @@ public class FirstTest {
 			fs.close();
 	}
 
+	@After
+	public void resetCallback() {
+		System.clearProperty(TracingCallbacks.PROPERTY);
+	}
+
+	/**
+	 * Copies the fixtures, the api and the {@link RecordingTracingCallback}
+	 * and configures the latter as callback.
+	 */
+	private void copyRecording(Path t) throws IOException, URISyntaxException {
+		copyPackage(DS1.class, t);
+		copyPackage(TracingCallback.class, t);
+		copyPackage(DefaultTracingCallback.class, t);
+		copyPackage(RecordingTracingCallback.class, t);
+		System.setProperty(TracingCallbacks.PROPERTY, RecordingTracingCallback.class.getName());
+	}
+
+	private static URLClassLoader load(Path... roots) throws MalformedURLException {
+		URL[] urls = new URL[roots.length];
+		for (int i = 0; i != roots.length; ++i)
+			urls[i] = roots[i].toUri().toURL();
+		return new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> recorded(ClassLoader cl, String field) throws ReflectiveOperationException {
+		return (List<T>) cl.loadClass(RecordingTracingCallback.class.getName()).getField(field).get(null);
+	}
+
+	private static void newInstance(ClassLoader cl, Class<?> c) throws ReflectiveOperationException {
+		try {
+			cl.loadClass(c.getName()).newInstance();
+		} catch (IllegalArgumentException e) {
+
+		}
+	}
+
+	/**
+	 * The files below the root by their relative path.
+	 */
+	private static Map<String, String> contents(Path root) throws IOException {
+		Map<String, String> result = new TreeMap<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				result.put(root.relativize(file).toString().replace('\\', '/'),
+						InstrumentationState.hash(Files.readAllBytes(file)));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Instruments copies of the fixtures and the api with both values of a
+	 * setting that must not change the result and compares the outputs.
+	 */
+	private void assertSameOutput(InstrumentationOptions options,
+			BiConsumer<InstrumentationOptions, Boolean> setting) throws Exception {
+		Map<String, String> expected = null;
+		for (boolean value : new boolean[] { false, true }) {
+			Path root = tfolder.newFolder().toPath();
+			copyRecording(root);
+			setting.accept(options, value);
+			InstumentationCore.run(root, options);
+
+			Map<String, String> actual = contents(root);
+			if (expected == null)
+				expected = actual;
+			else
+				Assert.assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void parallelDeterministic() throws Exception {
+		for (boolean outline : new boolean[] { false, true }) {
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setOutline(outline);
+			assertSameOutput(options, InstrumentationOptions::setParallel);
+		}
+	}
+
+	@Test
+	public void streamingSameOutput() throws Exception {
+		for (boolean outline : new boolean[] { false, true }) {
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setOutline(outline);
+			// the size report reads the classes again in streaming mode
+			options.setReportSizes(outline);
+			assertSameOutput(options, InstrumentationOptions::setStreaming);
+		}
+	}
+
 	@Test
 	public void t1() throws Exception {
 
@@ -164,4 +293,386 @@ public class FirstTest {
 
 		c1.newInstance();
 	}
+
+	@Test
+	public void outline() throws Exception {
+
+		copyPackage(DS1.class);
+		copyPackage(TracingCallback.class);
+		copyPackage(DefaultTracingCallback.class);
+
+		InstrumentationOptions options = new InstrumentationOptions();
+		options.setOutline(true);
+		options.setReportSizes(true);
+		List<String> sizes = InstumentationCore.run(tfolder.getRoot().toPath(), options).getSizes();
+
+		Path inline = tfolder.newFolder().toPath();
+		copyPackage(DS1.class, inline);
+		copyPackage(TracingCallback.class, inline);
+		InstumentationCore.run(inline, new InstrumentationOptions());
+
+		String ds1 = DS1.class.getName().replace('.', '/') + ".class";
+		Map<MethodSignature, Integer> original = InstumentationCore
+				.codeSizes(new ClassReader(Files.readAllBytes(findClassPath(DS1.class).resolve(ds1))));
+		Map<MethodSignature, Integer> inlined = InstumentationCore
+				.codeSizes(new ClassReader(Files.readAllBytes(inline.resolve(ds1))));
+		Map<MethodSignature, Integer> outlined = InstumentationCore
+				.codeSizes(new ClassReader(Files.readAllBytes(tfolder.getRoot().toPath().resolve(ds1))));
+
+		// every traced method calls an enter, exit and exitException helper,
+		// the constructor initEnter, initEntered and initExitException instead
+		// of enter
+		int helpers = 0;
+		for (Map.Entry<MethodSignature, Integer> e : outlined.entrySet()) {
+			String name = e.getKey().name;
+			if (name.startsWith(OutlinedCallbacks.PREFIX)) {
+				Assert.assertTrue(name, name.matches(Pattern.quote(OutlinedCallbacks.PREFIX) + "\\w+\\$\\d+"));
+				++helpers;
+				continue;
+			}
+			Assert.assertTrue(name, original.containsKey(e.getKey()));
+			Assert.assertTrue(name, inlined.get(e.getKey()) > original.get(e.getKey()));
+			Assert.assertTrue(name, e.getValue() < inlined.get(e.getKey()));
+		}
+		Assert.assertEquals(3 * original.size() + 2, helpers);
+
+		// the size report lists each traced method
+		for (Map.Entry<MethodSignature, Integer> e : original.entrySet()) {
+			String size = DS1.class.getName().replace('.', '/') + "." + e.getKey().name + e.getKey().description
+					+ " " + e.getValue() + " -> " + outlined.get(e.getKey());
+			Assert.assertTrue(size, sizes.stream().anyMatch(s -> s.startsWith(size)));
+		}
+
+		URLClassLoader cl = new URLClassLoader(new URL[] { tfolder.getRoot().toURI().toURL() },
+				ClassLoader.getSystemClassLoader().getParent());
+
+		Class<?> c1 = cl.loadClass(DS1.class.getName());
+
+		c1.newInstance();
+
+		Class<?> c3 = cl.loadClass(DS3.class.getName());
+
+		try {
+			c3.newInstance();
+		} catch (IllegalArgumentException e) {
+
+		}
+	}
+
+	@Test
+	public void timing() throws Exception {
+		for (boolean outline : new boolean[] { false, true }) {
+			Path root = tfolder.newFolder().toPath();
+			copyRecording(root);
+
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setTiming(true);
+			options.setOutline(outline);
+			InstumentationCore.run(root, options);
+
+			URLClassLoader cl = load(root);
+			Object ds1 = cl.loadClass(DS1.class.getName()).newInstance();
+			ds1.getClass().getMethod("getLoginTimeout").invoke(ds1);
+			ds1.getClass().getMethod("getConnection").invoke(ds1);
+			newInstance(cl, DS2.class);
+
+			// methods are reported for the interface declaring them
+			Assert.assertEquals(Arrays.asList("initEnter DS1.<init>", "enter DS1.<init>",
+					"exitReturn DS1.<init> timed", "enter CommonDataSource.getLoginTimeout",
+					"exitReturnInt CommonDataSource.getLoginTimeout timed", "enter DataSource.getConnection",
+					"exitReturn DataSource.getConnection timed", "initEnter DS2.<init>", "enter DS2.<init>",
+					"exitException DS2.<init> timed"), recorded(cl, "events"));
+			List<Long> nanos = recorded(cl, "nanos");
+			Assert.assertEquals(4, nanos.size());
+			for (long n : nanos)
+				Assert.assertTrue(nanos.toString(), n >= 0);
+		}
+	}
+
+	@Test
+	public void jar() throws Exception {
+
+		copyPackage(DS1.class);
+		copyPackage(TracingCallback.class);
+		copyPackage(DefaultTracingCallback.class);
+
+		Path root = tfolder.getRoot().toPath();
+		Path in = tfolder.newFile("in.jar").toPath();
+		Path out = tfolder.getRoot().toPath().resolve("out.jar");
+
+		List<String> classes;
+		try (Stream<Path> s = Files.find(root, Integer.MAX_VALUE,
+				(p, a) -> p.toString().endsWith(".class"))) {
+			classes = s.map(p -> root.relativize(p).toString().replace('\\', '/')).collect(Collectors.toList());
+		}
+		// not sorted, to see that the order of the input is kept
+		Collections.sort(classes, Collections.reverseOrder());
+
+		byte[] stored = "stored resource".getBytes(StandardCharsets.UTF_8);
+		byte[] deflated = "deflated resource".getBytes(StandardCharsets.UTF_8);
+		String manifest = "Manifest-Version: 1.0\r\nCreated-By: test\r\n\r\n" + "Name: "
+				+ classes.get(0) + "\r\nSHA-256-Digest: AAAA\r\n\r\n" + "Name: " + classes.get(1)
+				+ "\r\nSHA-256-Digest: AAAA\r\nX-Test: kept\r\n\r\n";
+
+		List<String> order = new ArrayList<>();
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(in))) {
+			putEntry(zos, order, "META-INF/MANIFEST.MF", manifest.getBytes(StandardCharsets.UTF_8), false);
+			putEntry(zos, order, "META-INF/TEST.SF", new byte[1], false);
+			putEntry(zos, order, "META-INF/TEST.RSA", new byte[1], false);
+			for (int i = 0; i != classes.size(); ++i) {
+				putEntry(zos, order, classes.get(i), Files.readAllBytes(root.resolve(classes.get(i))), false);
+				if (i == 2)
+					putEntry(zos, order, "stored.txt", stored, true);
+			}
+			putEntry(zos, order, "deflated.txt", deflated, false);
+		}
+
+		InstrumentationStatistics statistics = InstumentationCore.run(Collections.singletonList(in), out,
+				new InstrumentationOptions());
+		Assert.assertEquals(1, statistics.getWarnings().size());
+		Assert.assertTrue(statistics.getWarnings().get(0), statistics.getWarnings().get(0).contains(in.toString()));
+
+		String tables = MethodTable.PACKAGE.replace('.', '/') + "/";
+		try (ZipFile zip = new ZipFile(out.toFile())) {
+			List<String> names = new ArrayList<>();
+			boolean inTables = false;
+			for (ZipEntry ze : Collections.list(zip.entries())) {
+				// the generated tables come last
+				if (ze.getName().startsWith(tables))
+					inTables = true;
+				else if (inTables)
+					Assert.fail(ze.getName() + " after the tables");
+				else
+					names.add(ze.getName());
+			}
+			Assert.assertTrue(inTables);
+			order.remove("META-INF/TEST.SF");
+			order.remove("META-INF/TEST.RSA");
+			Assert.assertEquals(order, names);
+
+			ZipEntry ze = zip.getEntry("stored.txt");
+			Assert.assertEquals(ZipEntry.STORED, ze.getMethod());
+			Assert.assertArrayEquals(stored, read(zip, ze));
+			ze = zip.getEntry("deflated.txt");
+			Assert.assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+			Assert.assertArrayEquals(deflated, read(zip, ze));
+
+			// traced classes and the callback interface are rewritten, others copied
+			for (Class<?> c : new Class<?>[] { DS1.class, TracingCallback.class }) {
+				String name = c.getName().replace('.', '/') + ".class";
+				Assert.assertFalse(name,
+						Arrays.equals(Files.readAllBytes(root.resolve(name)), read(zip, zip.getEntry(name))));
+			}
+			String callbacks = TracingCallbacks.class.getName().replace('.', '/') + ".class";
+			Assert.assertArrayEquals(Files.readAllBytes(root.resolve(callbacks)), read(zip, zip.getEntry(callbacks)));
+
+			Manifest m = new Manifest(zip.getInputStream(zip.getEntry("META-INF/MANIFEST.MF")));
+			Assert.assertEquals("test", m.getMainAttributes().getValue("Created-By"));
+			Assert.assertNull(m.getAttributes(classes.get(0)));
+			Assert.assertEquals(1, m.getAttributes(classes.get(1)).size());
+			Assert.assertEquals("kept", m.getAttributes(classes.get(1)).getValue("X-Test"));
+		}
+
+		URLClassLoader cl = new URLClassLoader(new URL[] { out.toUri().toURL() },
+				ClassLoader.getSystemClassLoader().getParent());
+
+		Class<?> c1 = cl.loadClass(DS1.class.getName());
+
+		c1.newInstance();
+	}
+
+	private static void putEntry(ZipOutputStream zos, List<String> order, String name, byte[] bytes, boolean stored)
+			throws IOException {
+		ZipEntry ze = new ZipEntry(name);
+		if (stored) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			ze.setMethod(ZipEntry.STORED);
+			ze.setSize(bytes.length);
+			ze.setCompressedSize(bytes.length);
+			ze.setCrc(crc.getValue());
+		}
+		zos.putNextEntry(ze);
+		zos.write(bytes);
+		zos.closeEntry();
+		order.add(name);
+	}
+
+	private static byte[] read(ZipFile zip, ZipEntry ze) throws IOException {
+		try (InputStream is = zip.getInputStream(ze)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			for (int read; (read = is.read(buf)) != -1;)
+				out.write(buf, 0, read);
+			return out.toByteArray();
+		}
+	}
+
+	@Test
+	public void constructorChain() throws Exception {
+		for (boolean suppressNested : new boolean[] { true, false }) {
+			Path root = tfolder.newFolder().toPath();
+			copyRecording(root);
+
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setSuppressNested(suppressNested);
+			InstumentationCore.run(root, options);
+
+			URLClassLoader cl = load(root);
+
+			newInstance(cl, DS1.class);
+			// the constructor of DS3Super is nested in the one of DS3, its
+			// failure must not leave the thread nested
+			newInstance(cl, DS3.class);
+			newInstance(cl, DS1.class);
+
+			Assert.assertEquals(Arrays.asList("initEnter DS1.<init>", "enter DS1.<init>", "exitReturn DS1.<init>",
+					"initEnter DS3.<init>", "initEnter DS1.<init>", "enter DS1.<init>", "exitReturn DS1.<init>"),
+					recorded(cl, "events"));
+		}
+	}
+
+	@Test
+	public void incremental() throws Exception {
+		Path root = tfolder.newFolder().toPath();
+		copyRecording(root);
+		Path stateFile = tfolder.getRoot().toPath().resolve("state");
+		InstrumentationOptions options = new InstrumentationOptions();
+
+		InstrumentationStatistics first = InstumentationCore.run(root, options, stateFile);
+		Assert.assertFalse(first.isUpToDate());
+		Assert.assertEquals(first.getScanned(), first.getRewritten());
+		Map<String, String> instrumented = contents(root);
+
+		// nothing changed
+		InstrumentationStatistics second = InstumentationCore.run(root, options, stateFile);
+		Assert.assertTrue(second.isUpToDate());
+		Assert.assertEquals(first.getScanned(), second.getScanned());
+		Assert.assertEquals(0, second.getRewritten());
+		Assert.assertEquals(instrumented, contents(root));
+
+		// a class compiled again replaces its instrumented version
+		String ds1 = DS1.class.getName().replace('.', '/') + ".class";
+		Files.copy(findClassPath(DS1.class).resolve(ds1), root.resolve(ds1), StandardCopyOption.REPLACE_EXISTING);
+		InstrumentationStatistics third = InstumentationCore.run(root, options, stateFile);
+		Assert.assertFalse(third.isUpToDate());
+		// the other instrumented classes are skipped
+		Assert.assertTrue(third.getRewritten() > 0);
+		Assert.assertTrue(third.getRewritten() < first.getRewritten());
+		Assert.assertEquals(instrumented, contents(root));
+
+		URLClassLoader cl = load(root);
+		newInstance(cl, DS1.class);
+		Assert.assertEquals(Arrays.asList("initEnter DS1.<init>", "enter DS1.<init>", "exitReturn DS1.<init>"),
+				recorded(cl, "events"));
+	}
+
+	@Test
+	public void failingEnter() throws Exception {
+		for (boolean outline : new boolean[] { false, true }) {
+			Path root = tfolder.newFolder().toPath();
+			copyRecording(root);
+
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setOutline(outline);
+			InstumentationCore.run(root, options);
+
+			URLClassLoader cl = load(root);
+			Object ds1 = cl.loadClass(DS1.class.getName()).newInstance();
+			Method getLoginTimeout = ds1.getClass().getMethod("getLoginTimeout");
+			List<String> events = recorded(cl, "events");
+			events.clear();
+
+			RuntimeException failure = new IllegalStateException();
+			cl.loadClass(RecordingTracingCallback.class.getName()).getField("enterFailure").set(null, failure);
+			try {
+				getLoginTimeout.invoke(ds1);
+				Assert.fail();
+			} catch (InvocationTargetException e) {
+				Assert.assertSame(failure, e.getCause());
+			}
+			Assert.assertEquals(Collections.emptyList(), events);
+
+			// the failed call did not leave the thread nested
+			getLoginTimeout.invoke(ds1);
+			Assert.assertEquals(Arrays.asList("enter CommonDataSource.getLoginTimeout",
+					"exitReturnInt CommonDataSource.getLoginTimeout"), events);
+		}
+	}
+
+	@Test
+	public void proxyArgumentsCaptured() throws Exception {
+		for (ArgumentCapture capture : ArgumentCapture.values()) {
+			Path root = tfolder.newFolder().toPath();
+			copyRecording(root);
+			copyPackage(ConnectionHandler.class, root);
+
+			// the filter needs the arguments of invoke for any capture
+			InstrumentationOptions options = new InstrumentationOptions();
+			options.setDefaultArgumentCapture(capture);
+			InstumentationCore.run(root, options);
+
+			URLClassLoader cl = load(root);
+			Object connection = cl.loadClass(ConnectionHandler.class.getName()).getMethod("connection")
+					.invoke(null);
+			Connection.class.getMethod("commit").invoke(connection);
+			Connection.class.getMethod("createStatement").invoke(connection);
+
+			Assert.assertEquals(capture.toString(), Arrays.asList("enter Connection.commit",
+					"exitReturn Connection.commit", "enter Connection.createStatement",
+					"exitReturn Connection.createStatement"), recorded(cl, "events"));
+		}
+	}
+
+	@Test
+	public void separateArtifacts() throws Exception {
+		Path a = tfolder.newFolder("a").toPath();
+		copyRecording(a);
+		Path b = tfolder.newFolder("b").toPath();
+		copyPackage(DS1.class, b);
+
+		String ds1 = DS1.class.getName().replace('.', '/') + ".class";
+		for (Class<?> c : Arrays.asList(DS2.class, DS3.class, DS3Super.class))
+			Files.delete(a.resolve(c.getName().replace('.', '/') + ".class"));
+		Files.delete(b.resolve(ds1));
+
+		InstumentationCore.run(a);
+		InstumentationCore.run(b);
+
+		URLClassLoader cl = load(a, b);
+
+		newInstance(cl, DS1.class);
+		newInstance(cl, DS2.class);
+
+		Assert.assertEquals(Arrays.asList("initEnter DS1.<init>", "enter DS1.<init>", "exitReturn DS1.<init>",
+				"initEnter DS2.<init>", "enter DS2.<init>", "exitException DS2.<init>"), recorded(cl, "events"));
+	}
+
+	@Test
+	public void switchable() throws Exception {
+		Path root = tfolder.getRoot().toPath();
+		copyRecording(root);
+
+		InstrumentationOptions options = new InstrumentationOptions();
+		options.setCallSiteMode(CallSiteMode.INVOKEDYNAMIC);
+		InstumentationCore.run(root, options);
+
+		URLClassLoader cl = load(root);
+		Method setEnabled = cl.loadClass(TracingCallSites.class.getName()).getMethod("setEnabled", boolean.class);
+		List<String> events = recorded(cl, "events");
+		List<String> ds1 = Arrays.asList("initEnter DS1.<init>", "enter DS1.<init>", "exitReturn DS1.<init>");
+
+		// the sites are linked when first invoked and relinked on each switch
+		for (int i = 0; i != 2; ++i) {
+			newInstance(cl, DS1.class);
+			Assert.assertEquals(ds1, events);
+			events.clear();
+
+			setEnabled.invoke(null, false);
+			newInstance(cl, DS1.class);
+			Assert.assertEquals(Collections.emptyList(), events);
+
+			setEnabled.invoke(null, true);
+		}
+	}
 }
@@ -0,0 +1,108 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.pms1.jdbctracing.api.core.ds1.DS1;
+import com.github.pms1.jdbctracing.api.core.ds1.DS2;
+
+public class InstrumentationCacheTest {
+	@Rule
+	public TemporaryFolder tfolder = new TemporaryFolder();
+
+	private InstrumentationCache cache;
+
+	private Path jar;
+
+	@Before
+	public void setUp() throws IOException, URISyntaxException {
+		cache = new InstrumentationCache(tfolder.newFolder("cache").toPath());
+		jar = tfolder.getRoot().toPath().resolve("in.jar");
+		writeJar(jar, DS1.class);
+	}
+
+	private static void writeJar(Path jar, Class<?>... classes) throws IOException, URISyntaxException {
+		try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(jar))) {
+			for (Class<?> c : classes) {
+				String name = c.getName().replace('.', '/') + ".class";
+				zos.putNextEntry(new ZipEntry(name));
+				Files.copy(Paths.get(c.getClassLoader().getResource(name).toURI()), zos);
+				zos.closeEntry();
+			}
+		}
+	}
+
+	private String key(Consumer<InstrumentationOptions> setting) throws IOException {
+		InstrumentationOptions options = new InstrumentationOptions();
+		setting.accept(options);
+		return cache.key(Collections.singletonList(jar), options);
+	}
+
+	@Test
+	public void keyChangesWithOptions() throws IOException {
+		String key = key(o -> {
+		});
+		Assert.assertEquals(key, key(o -> {
+		}));
+
+		List<Consumer<InstrumentationOptions>> changes = Arrays.asList(o -> o.setSuppressNested(false),
+				o -> o.setCallSiteMode(CallSiteMode.INVOKEDYNAMIC), o -> o.setOutline(true), o -> o.setTiming(true),
+				o -> o.setDefaultArgumentCapture(ArgumentCapture.NONE),
+				o -> o.setArgumentCapture("java.sql.Statement", ArgumentCapture.NONE));
+		for (Consumer<InstrumentationOptions> change : changes)
+			Assert.assertNotEquals(key, key(change));
+
+		// settings that do not change the generated code share the entry
+		Assert.assertEquals(key, key(o -> o.setParallel(false)));
+		Assert.assertEquals(key, key(o -> o.setStreaming(true)));
+		Assert.assertEquals(key, key(o -> o.setReportSizes(true)));
+	}
+
+	@Test
+	public void keyChangesWithInput() throws Exception {
+		String key = key(o -> {
+		});
+
+		// the same content elsewhere
+		Path copy = tfolder.getRoot().toPath().resolve("copy.jar");
+		Files.copy(jar, copy);
+		Assert.assertEquals(key, cache.key(Collections.singletonList(copy), new InstrumentationOptions()));
+
+		// a changed input
+		writeJar(jar, DS1.class, DS2.class);
+		Assert.assertNotEquals(key, key(o -> {
+		}));
+
+		// the order of the input jars matters as the first entry wins
+		Assert.assertNotEquals(cache.key(Arrays.asList(jar, copy), new InstrumentationOptions()),
+				cache.key(Arrays.asList(copy, jar), new InstrumentationOptions()));
+	}
+
+	@Test
+	public void hitAndMiss() throws IOException {
+		Path out1 = tfolder.getRoot().toPath().resolve("out1.jar");
+		Path out2 = tfolder.getRoot().toPath().resolve("out2.jar");
+		InstrumentationOptions options = new InstrumentationOptions();
+
+		Assert.assertNotNull(cache.run(Collections.singletonList(jar), out1, options));
+		Assert.assertTrue(Files.isRegularFile(cache.path(cache.key(Collections.singletonList(jar), options))));
+
+		Assert.assertNull(cache.run(Collections.singletonList(jar), out2, options));
+		Assert.assertArrayEquals(Files.readAllBytes(out1), Files.readAllBytes(out2));
+	}
+}
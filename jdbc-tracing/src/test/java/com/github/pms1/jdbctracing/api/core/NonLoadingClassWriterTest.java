@@ -0,0 +1,36 @@
+package com.github.pms1.jdbctracing.api.core;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NonLoadingClassWriterTest {
+	@Test
+	public void commonSuperClass() throws IOException {
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[0], null)) {
+			NonLoadingClassWriter.Types types = new NonLoadingClassWriter.Types(null, classLoader);
+
+			Assert.assertEquals("java/lang/Number",
+					types.getCommonSuperClass("java/lang/Integer", "java/lang/Long"));
+			Assert.assertEquals("java/lang/Object",
+					types.getCommonSuperClass("java/lang/Integer", "java/lang/String"));
+			Assert.assertEquals(Collections.emptySet(), types.getMissing());
+		}
+	}
+
+	@Test
+	public void missingClass() throws IOException {
+		try (URLClassLoader classLoader = new URLClassLoader(new URL[0], null)) {
+			NonLoadingClassWriter.Types types = new NonLoadingClassWriter.Types(null, classLoader);
+
+			Assert.assertEquals("java/lang/Object", types.getCommonSuperClass("x/Missing", "java/lang/Integer"));
+			Assert.assertEquals("java/lang/Object",
+					types.getCommonSuperClass("[Ljava/lang/String;", "java/lang/Integer"));
+			Assert.assertEquals(Collections.singleton("x/Missing"), types.getMissing());
+		}
+	}
+}
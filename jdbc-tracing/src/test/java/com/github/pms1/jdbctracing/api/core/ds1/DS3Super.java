@@ -1,8 +1,8 @@
-package com.github.pms1.jdbctracing.api.core.ds1;
-
-public class DS3Super {
-
-	public DS3Super() {
-		throw new IllegalArgumentException();
-	}
-}
+package com.github.pms1.jdbctracing.api.core.ds1;
+
+public class DS3Super {
+
+	public DS3Super() {
+		throw new IllegalArgumentException();
+	}
+}
@@ -0,0 +1,171 @@
+package com.github.pms1.jdbctracing.api.core.recording;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.pms1.jdbctracing.api.MethodTable;
+import com.github.pms1.jdbctracing.api.TracingCallback;
+
+/**
+ * A {@link TracingCallback} for the tests that records the calls as
+ * {@code "<callback> <simple class name>.<method>"}, with a {@code " timed"}
+ * suffix for the timed exit variants. The elapsed times are recorded
+ * separately.
+ *
+ * The tests load it together with the instrumented classes in their own class
+ * loader and read the static lists by reflection.
+ */
+public class RecordingTracingCallback implements TracingCallback {
+	public static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+	public static final List<Long> nanos = Collections.synchronizedList(new ArrayList<Long>());
+
+	/**
+	 * Thrown by the next call of {@code enter} instead of recording it.
+	 */
+	public static volatile RuntimeException enterFailure;
+
+	private static void record(String callback, int method) {
+		String className = MethodTable.getClassName(method);
+		events.add(callback + " " + className.substring(className.lastIndexOf('/') + 1) + "."
+				+ MethodTable.getName(method));
+	}
+
+	private static void record(String callback, int method, long elapsed) {
+		record(callback, method);
+		int last = events.size() - 1;
+		events.set(last, events.get(last) + " timed");
+		nanos.add(elapsed);
+	}
+
+	@Override
+	public void initEnter(Object[] args, int method) {
+		record("initEnter", method);
+	}
+
+	@Override
+	public void initExitException(Throwable e, int method) {
+		record("initExitException", method);
+	}
+
+	@Override
+	public void enter(Object[] args, Object instance, int method) {
+		RuntimeException failure = enterFailure;
+		if (failure != null) {
+			enterFailure = null;
+			throw failure;
+		}
+		record("enter", method);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method) {
+		record("exitReturn", method);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method) {
+		record("exitReturnBoolean", method);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method) {
+		record("exitReturnByte", method);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method) {
+		record("exitReturnChar", method);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method) {
+		record("exitReturnShort", method);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method) {
+		record("exitReturnInt", method);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method) {
+		record("exitReturnLong", method);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method) {
+		record("exitReturnFloat", method);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method) {
+		record("exitReturnDouble", method);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method) {
+		record("exitReturn", method);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method) {
+		record("exitException", method);
+	}
+
+	@Override
+	public void exitReturn(Object result, Object instance, int method, long nanos) {
+		record("exitReturn", method, nanos);
+	}
+
+	@Override
+	public void exitReturnBoolean(boolean result, Object instance, int method, long nanos) {
+		record("exitReturnBoolean", method, nanos);
+	}
+
+	@Override
+	public void exitReturnByte(byte result, Object instance, int method, long nanos) {
+		record("exitReturnByte", method, nanos);
+	}
+
+	@Override
+	public void exitReturnChar(char result, Object instance, int method, long nanos) {
+		record("exitReturnChar", method, nanos);
+	}
+
+	@Override
+	public void exitReturnShort(short result, Object instance, int method, long nanos) {
+		record("exitReturnShort", method, nanos);
+	}
+
+	@Override
+	public void exitReturnInt(int result, Object instance, int method, long nanos) {
+		record("exitReturnInt", method, nanos);
+	}
+
+	@Override
+	public void exitReturnLong(long result, Object instance, int method, long nanos) {
+		record("exitReturnLong", method, nanos);
+	}
+
+	@Override
+	public void exitReturnFloat(float result, Object instance, int method, long nanos) {
+		record("exitReturnFloat", method, nanos);
+	}
+
+	@Override
+	public void exitReturnDouble(double result, Object instance, int method, long nanos) {
+		record("exitReturnDouble", method, nanos);
+	}
+
+	@Override
+	public void exitReturn(Object instance, int method, long nanos) {
+		record("exitReturn", method, nanos);
+	}
+
+	@Override
+	public void exitException(Throwable e, Object instance, int method, long nanos) {
+		record("exitException", method, nanos);
+	}
+}